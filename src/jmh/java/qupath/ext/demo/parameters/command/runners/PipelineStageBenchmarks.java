@@ -0,0 +1,241 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import ij.gui.Roi;
+import ij.plugin.filter.MaximumFinder;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import qupath.ext.demo.parameters.command.AnalysisResult;
+import qupath.imagej.processing.RoiLabeling;
+import qupath.imagej.processing.SimpleThresholding;
+import qupath.imagej.tools.IJTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for each stage of the threshold and watershed analysis, run in isolation on synthetic images.
+ * <p>
+ * Each stage starts from the output of the previous stages, which is computed once per trial. Stages that replaced
+ * an ImageJ or QuPath implementation also benchmark the original, for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineStageBenchmarks {
+
+    private static final float NOISE = 10f;
+    private static final int NOISE_SEED = 1;
+    private static final double SIGMA = 2.0;
+    // Sigma used to benchmark blurring, which can be computed incrementally from SIGMA
+    private static final double SIGMA_NEXT = 2.5;
+    private static final String THRESHOLD_METHOD = "Otsu";
+    private static final double TOLERANCE = 5.0;
+
+    @Param({"256", "512", "1024", "2048"})
+    public int size;
+
+    @Param({"SPARSE", "DENSE"})
+    public SyntheticImages.Density density;
+
+    private ImageData<BufferedImage> imageData;
+    private ImageServer<BufferedImage> server;
+    private RegionRequest request;
+
+    private FloatProcessor fpOriginal;
+    private NoiseFieldPool noiseFields;
+    private FloatProcessor fpBlurred;
+    private double threshold;
+    private ByteProcessor bpThresholded;
+    private HierarchicalWatershed watershed;
+    private ImageProcessor ipLabels;
+    private LabelMeasurements measurements;
+    private LabelContourTracer contours;
+    private List<PathObject> pathObjects;
+
+    private final GaussianBlurEngine blurEngine = new GaussianBlurEngine();
+
+    @Setup
+    public void setup() throws IOException {
+        imageData = SyntheticImages.createImageData(size, density);
+        server = imageData.getServer();
+        request = RegionRequest.createInstance(server, 1.0);
+
+        var bp = PixelStore.readBytes(server, request);
+        fpOriginal = bp.convertToFloatProcessor();
+        // Large enough to keep all the base fields, and add noise once so that the field for the seed is pooled
+        noiseFields = new NoiseFieldPool((long) size * size * 4 * 8);
+        noiseFields.addNoise(new float[size * size], size, size, NOISE_SEED, NOISE);
+
+        fpBlurred = (FloatProcessor) fpOriginal.duplicate();
+        blurEngine.blur(fpBlurred, SIGMA);
+
+        threshold = AutoThresholds.compute(fpBlurred).getThreshold(THRESHOLD_METHOD);
+        bpThresholded = SimpleThresholding.thresholdAbove(fpBlurred, (float) threshold);
+        watershed = HierarchicalWatershed.build(fpBlurred, threshold);
+        ipLabels = watershed.createLabels(TOLERANCE);
+        measurements = LabelMeasurements.measure(ipLabels, fpOriginal);
+        contours = LabelContourTracer.trace(ipLabels, measurements.getMaxLabel());
+        pathObjects = createObjects();
+    }
+
+    @Benchmark
+    public ByteProcessor convertTo8Bit() throws IOException {
+        return PixelStore.readBytes(server, request);
+    }
+
+    @Benchmark
+    public float[] createNoiseField() {
+        return NoiseFieldPool.create(size, size, 1);
+    }
+
+    @Benchmark
+    public FloatProcessor addNoise() {
+        var fp = (FloatProcessor) fpOriginal.duplicate();
+        noiseFields.addNoise((float[]) fp.getPixels(), size, size, NOISE_SEED, NOISE);
+        return fp;
+    }
+
+    @Benchmark
+    public FloatProcessor addIndependentNoise() {
+        var fp = (FloatProcessor) fpOriginal.duplicate();
+        NoiseFieldPool.addIndependentNoise((float[]) fp.getPixels(), size, size, NOISE_SEED, NOISE);
+        return fp;
+    }
+
+    @Benchmark
+    public FloatProcessor blur() {
+        var fp = (FloatProcessor) fpOriginal.duplicate();
+        blurEngine.blur(fp, SIGMA_NEXT);
+        return fp;
+    }
+
+    @Benchmark
+    public FloatProcessor blurIncremental() {
+        return blurEngine.blurFrom(fpOriginal, fpBlurred, SIGMA, SIGMA_NEXT);
+    }
+
+    @Benchmark
+    public FloatProcessor blurImageJ() {
+        var fp = (FloatProcessor) fpOriginal.duplicate();
+        fp.blurGaussian(SIGMA_NEXT);
+        return fp;
+    }
+
+    @Benchmark
+    public AutoThresholds autoThresholdAll() {
+        return AutoThresholds.compute(fpBlurred);
+    }
+
+    @Benchmark
+    public double autoThresholdImageJ() {
+        // The cost of a single method, as previously computed for each parameter change
+        var fp = (FloatProcessor) fpBlurred.duplicate();
+        fp.setAutoThreshold(THRESHOLD_METHOD, true, ImageProcessor.NO_LUT_UPDATE);
+        return fp.getMinThreshold();
+    }
+
+    @Benchmark
+    public ByteProcessor maximumFinder() {
+        return new MaximumFinder().findMaxima(fpBlurred, TOLERANCE, threshold, MaximumFinder.SEGMENTED, false, false);
+    }
+
+    @Benchmark
+    public HierarchicalWatershed watershedBuild() {
+        return HierarchicalWatershed.build(fpBlurred, threshold);
+    }
+
+    @Benchmark
+    public ImageProcessor watershedLabels() {
+        return watershed.createLabels(TOLERANCE);
+    }
+
+    @Benchmark
+    public ImageProcessor labelThresholded() {
+        return RoiLabeling.labelImage(bpThresholded, 0.5f, false);
+    }
+
+    @Benchmark
+    public ComponentTree componentTreeBuild() {
+        return ComponentTree.build(fpBlurred, fpOriginal);
+    }
+
+    @Benchmark
+    public LabelMeasurements measure() {
+        return LabelMeasurements.measure(ipLabels, fpOriginal);
+    }
+
+    @Benchmark
+    public LabelContourTracer traceContours() {
+        return LabelContourTracer.trace(ipLabels, measurements.getMaxLabel());
+    }
+
+    @Benchmark
+    public List<PathObject> createObjectsFromContours() {
+        return createObjects();
+    }
+
+    @Benchmark
+    public List<PathObject> createObjectsImageJ() {
+        // The previous approach, converting each label to an ImageJ Roi and measuring within it
+        var plane = ImagePlane.getDefaultPlane();
+        List<PathObject> list = new ArrayList<>();
+        for (Roi roi : RoiLabeling.labelsToConnectedROIs(ipLabels, measurements.getMaxLabel())) {
+            var pathObject = IJTools.convertToAnnotation(roi, 0, 0, 1.0, plane);
+            fpOriginal.setRoi(roi);
+            var stats = fpOriginal.getStatistics();
+            try (var ml = pathObject.getMeasurementList()) {
+                ml.put("Mean", stats.mean);
+                ml.put("Area", stats.area);
+            }
+            list.add(pathObject);
+        }
+        fpOriginal.resetRoi();
+        return list;
+    }
+
+    @Benchmark
+    public AnalysisResult createResult() {
+        return new AnalysisResult(imageData, pathObjects);
+    }
+
+    private List<PathObject> createObjects() {
+        var plane = ImagePlane.getDefaultPlane();
+        List<PathObject> list = new ArrayList<>();
+        for (int label = 1; label <= contours.getMaxLabel(); label++) {
+            if (!contours.hasContour(label))
+                continue;
+            var pathObject = PathObjects.createAnnotationObject(contours.createROI(label, 0, 0, 1.0, plane));
+            try (var ml = pathObject.getMeasurementList()) {
+                ml.put("Mean", measurements.getMean(label));
+                ml.put("Area", measurements.getCount(label));
+            }
+            list.add(pathObject);
+        }
+        return list;
+    }
+
+}
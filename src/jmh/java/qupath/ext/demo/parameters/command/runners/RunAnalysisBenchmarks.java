@@ -0,0 +1,97 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import qupath.ext.demo.parameters.command.AnalysisResult;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.plugins.parameters.ParameterList;
+
+import java.awt.image.BufferedImage;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for a complete call to {@link ThresholdWatershedRunner#runAnalysis(ImageData, ParameterList)}.
+ * <p>
+ * 'Cold' benchmarks use a new runner for every call, so nothing is cached (apart from static state such as Gaussian
+ * kernels), while 'warm' benchmarks reuse a runner that has already analysed the image - as happens when returning to
+ * parameters that were used before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RunAnalysisBenchmarks {
+
+    private static final long MAX_CACHE_BYTES = 512L * 1024 * 1024;
+
+    @Param({"256", "512", "1024", "2048"})
+    public int size;
+
+    @Param({"SPARSE", "DENSE"})
+    public SyntheticImages.Density density;
+
+    @Param({"false", "true"})
+    public boolean doWatershed;
+
+    private ImageData<BufferedImage> imageData;
+    private ParameterList params;
+    private ThresholdWatershedRunner warmRunner;
+    private ThresholdWatershedRunner pixelsRunner;
+
+    @Setup
+    public void setup() {
+        imageData = SyntheticImages.createImageData(size, density);
+
+        warmRunner = new ThresholdWatershedRunner(MAX_CACHE_BYTES);
+        params = createParameters(warmRunner);
+        warmRunner.runAnalysis(imageData, params).getObjects();
+
+        pixelsRunner = new ThresholdWatershedRunner(MAX_CACHE_BYTES);
+        pixelsRunner.runAnalysis(imageData, params);
+    }
+
+    private ParameterList createParameters(ThresholdWatershedRunner runner) {
+        var params = runner.createParameterList();
+        ParameterTools.setValue(params, "gaussianSigma", 2.0);
+        ParameterTools.setValue(params, "autoThreshold", "Otsu");
+        ParameterTools.setValue(params, "doWatershed", doWatershed);
+        ParameterTools.setValue(params, "tolerance", 5);
+        return params;
+    }
+
+    @Benchmark
+    public AnalysisResult cold() {
+        return new ThresholdWatershedRunner(MAX_CACHE_BYTES).runAnalysis(imageData, params);
+    }
+
+    @Benchmark
+    public List<PathObject> coldWithObjects() {
+        return new ThresholdWatershedRunner(MAX_CACHE_BYTES).runAnalysis(imageData, params).getObjects();
+    }
+
+    @Benchmark
+    public AnalysisResult warm() {
+        return warmRunner.runAnalysis(imageData, params);
+    }
+
+    @Benchmark
+    public AnalysisResult warmPixelsOnly() {
+        // The pixels are already read and stored, but every analysis step is repeated
+        pixelsRunner.getCache().clear();
+        return pixelsRunner.runAnalysis(imageData, params);
+    }
+
+}
@@ -0,0 +1,124 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferUShort;
+import java.util.Random;
+
+/**
+ * Synthetic fluorescence images of nuclei, loosely resembling the BBBC001 dataset (16-bit images of Hoechst-stained
+ * nuclei), so that benchmarks don't depend on image files or a QuPath project.
+ * <p>
+ * Nuclei are elliptical blobs with soft edges and some internal texture, on a dark, slightly uneven background with
+ * additive noise. Images are generated from a fixed seed, so every run benchmarks the same pixels.
+ */
+final class SyntheticImages {
+
+    /**
+     * Object densities, as the approximate number of nuclei per megapixel.
+     */
+    enum Density {
+        SPARSE(250),
+        DENSE(1500);
+
+        private final int nucleiPerMegapixel;
+
+        Density(int nucleiPerMegapixel) {
+            this.nucleiPerMegapixel = nucleiPerMegapixel;
+        }
+    }
+
+    private static final long SEED = 1001L;
+
+    private static final double BACKGROUND = 300;
+    private static final double BACKGROUND_NOISE = 40;
+    private static final double RADIUS_MEAN = 8;
+    private static final double RADIUS_SD = 1.5;
+
+    private SyntheticImages() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Create a square 16-bit image.
+     * @param size the width and height
+     * @param density the density of nuclei
+     * @return
+     */
+    static BufferedImage create(int size, Density density) {
+        var random = new Random(SEED + size * 31L + density.ordinal());
+        double[] pixels = new double[size * size];
+
+        // Uneven illumination
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                double dx = (x - size / 2.0) / size;
+                double dy = (y - size / 2.0) / size;
+                pixels[y * size + x] = BACKGROUND * (1.0 - 0.4 * (dx * dx + dy * dy));
+            }
+        }
+
+        int nNuclei = (int) Math.round((double) size * size * density.nucleiPerMegapixel / 1e6);
+        for (int i = 0; i < nNuclei; i++)
+            addNucleus(pixels, size, random);
+
+        var img = new BufferedImage(size, size, BufferedImage.TYPE_USHORT_GRAY);
+        short[] data = ((DataBufferUShort) img.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < pixels.length; i++) {
+            double v = pixels[i] + random.nextGaussian() * BACKGROUND_NOISE;
+            data[i] = (short) Math.max(0, Math.min(65535, Math.round(v)));
+        }
+        return img;
+    }
+
+    /**
+     * Create an image wrapped as an {@link ImageData}, without a QuPath project or viewer.
+     * @param size the width and height
+     * @param density the density of nuclei
+     * @return
+     */
+    static ImageData<BufferedImage> createImageData(int size, Density density) {
+        var img = create(size, density);
+        var server = new WrappedBufferedImageServer("synthetic-" + size + "-" + density.name().toLowerCase(), img);
+        return new ImageData<>(server);
+    }
+
+    private static void addNucleus(double[] pixels, int size, Random random) {
+        double cx = random.nextDouble() * size;
+        double cy = random.nextDouble() * size;
+        double radius = Math.max(3, RADIUS_MEAN + random.nextGaussian() * RADIUS_SD);
+        double aspect = 1.0 + random.nextDouble() * 0.5;
+        double angle = random.nextDouble() * Math.PI;
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+        double intensity = 1500 + random.nextDouble() * 2500;
+        double textureFrequency = 0.5 + random.nextDouble();
+        double texturePhase = random.nextDouble() * 2 * Math.PI;
+
+        double rx = radius * aspect;
+        double ry = radius / aspect;
+        int extent = (int) Math.ceil(rx + 3);
+        int x0 = Math.max(0, (int) cx - extent);
+        int x1 = Math.min(size - 1, (int) cx + extent);
+        int y0 = Math.max(0, (int) cy - extent);
+        int y1 = Math.min(size - 1, (int) cy + extent);
+        for (int y = y0; y <= y1; y++) {
+            for (int x = x0; x <= x1; x++) {
+                double dx = x - cx;
+                double dy = y - cy;
+                double u = (dx * cos + dy * sin) / rx;
+                double v = (-dx * sin + dy * cos) / ry;
+                double r = Math.sqrt(u * u + v * v);
+                // Soft edge over roughly a pixel, brighter towards the centre, with some chromatin-like texture
+                double edge = 1.0 / (1.0 + Math.exp((r - 1.0) * radius * 2.0));
+                if (edge < 1e-3)
+                    continue;
+                double texture = 1.0 + 0.1 * Math.sin(textureFrequency * x + texturePhase) * Math.cos(textureFrequency * y);
+                pixels[y * size + x] += intensity * edge * (1.0 - 0.3 * r * r) * texture;
+            }
+        }
+    }
+
+}
@@ -1,14 +1,20 @@
 package qupath.ext.template;
 
 import javafx.scene.control.MenuItem;
+import qupath.ext.demo.parameters.command.runners.BatchAnalysis;
+import qupath.ext.demo.parameters.command.runners.BatchOutput;
+import qupath.ext.demo.parameters.command.runners.NoiseRobustnessAnalysis;
+import qupath.ext.demo.parameters.command.runners.ThresholdWatershedRunner;
 import qupath.lib.common.Version;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.dialogs.Dialogs;
 import qupath.lib.gui.extensions.QuPathExtension;
+import qupath.lib.plugins.parameters.ParameterList;
 
 
 /**
- * This is a demo to provide a template for creating a new QuPath extension in Groovy.
+ * A Groovy extension that makes it possible to run a {@link BatchAnalysis} on all the images in the current project,
+ * writing the results with a {@link BatchOutput}, or a {@link NoiseRobustnessAnalysis} on the open images.
  * <p>
  * <b>Important!</b> For your extension to work in QuPath, you need to make sure the name & package
  * of this class is consistent with the file
@@ -19,9 +25,20 @@ import qupath.lib.gui.extensions.QuPathExtension;
 class DemoGroovyExtension implements QuPathExtension {
 
 	// Setting the variables here is enough for them to be available in the extension
-	String name = "My Groovy extension"
-	String description = "This is just a demo to show how Groovy extensions work"
-	Version QuPathVersion = Version.parse("v0.4.0")
+	String name = "Parameter demo batch analysis"
+	String description = "Apply the parameter demo analysis to every image in a project, or assess its robustness to noise"
+	Version QuPathVersion = Version.parse("v0.4.3")
+
+	private static final String MENU = "Extensions>Parameter demo"
+
+	private static final String CSV = "CSV files"
+	private static final String BINARY = "Binary file"
+
+	private final ThresholdWatershedRunner runner = new ThresholdWatershedRunner((long)(Runtime.getRuntime().maxMemory() / 4))
+	private final ParameterList params = runner.createParameterList()
+	private String format = CSV
+	private double noise = 5.0
+	private int nRealisations = 100
 
 	@Override
 	void installExtension(QuPathGUI qupath) {
@@ -29,13 +46,88 @@ class DemoGroovyExtension implements QuPathExtension {
 	}
 
 	private void addMenuItem(QuPathGUI qupath) {
-		def menu = qupath.getMenu("Extensions>${name}", true)
-		def menuItem = new MenuItem("My Groovy menu item")
-		menuItem.setOnAction(e -> {
-			Dialogs.showMessageDialog(name,
-					"Hello! This is my Groovy extension.")
-		})
+		def menu = qupath.getMenu(MENU, true)
+		def menuItem = new MenuItem("Batch analysis for project")
+		menuItem.setOnAction(e -> runBatch(qupath))
 		menu.getItems() << menuItem
+
+		def menuItemNoise = new MenuItem("Noise robustness for open images")
+		menuItemNoise.setOnAction(e -> runNoiseRobustness(qupath))
+		menu.getItems() << menuItemNoise
 	}
-	
+
+	private void runBatch(QuPathGUI qupath) {
+		def project = qupath.getProject()
+		if (project == null || project.getImageList().isEmpty()) {
+			Dialogs.showErrorMessage(name, "Batch analysis requires a project with at least one image")
+			return
+		}
+		if (!Dialogs.showParameterDialog(name, params))
+			return
+		def choice = Dialogs.showChoiceDialog(name, "Output format", [CSV, BINARY], format)
+		if (choice == null)
+			return
+		format = choice
+		def dir = Dialogs.promptForDirectory(null)
+		if (dir == null)
+			return
+
+		def images = BatchAnalysis.ImageSource.fromProject(project)
+		def analysis = new BatchAnalysis(runner, params)
+		def outputDir = dir.toPath()
+		Thread.startDaemon("batch-analysis") {
+			try {
+				def output = format == BINARY ?
+						BatchOutput.binary(outputDir.resolve("results.bin")) :
+						BatchOutput.csv(outputDir.resolve("summary.csv"), outputDir.resolve("objects.csv"))
+				int nSuccessful
+				try {
+					nSuccessful = analysis.run(images, output)
+				} finally {
+					output.close()
+				}
+				if (nSuccessful == images.size())
+					Dialogs.showInfoNotification(name, "Analysed ${nSuccessful} images, results written to ${outputDir}")
+				else
+					Dialogs.showWarningNotification(name, "Analysed ${nSuccessful}/${images.size()} images, see the log for details")
+			} catch (Exception e) {
+				Dialogs.showErrorNotification(name, e)
+			}
+		}
+	}
+
+	private void runNoiseRobustness(QuPathGUI qupath) {
+		def images = qupath.getViewers().collect { it.getImageData() }.findAll { it != null }.unique()
+		if (images.isEmpty()) {
+			Dialogs.showErrorMessage(name, "Noise robustness analysis requires at least one open image")
+			return
+		}
+		if (!Dialogs.showParameterDialog(name, params))
+			return
+		def noiseInput = Dialogs.showInputDialog(name, "Noise sigma", noise)
+		if (noiseInput == null || !(noiseInput > 0))
+			return
+		noise = noiseInput
+		def realisationsInput = Dialogs.showInputDialog(name, "Number of noise realisations", (double)nRealisations)
+		if (realisationsInput == null || realisationsInput < 1)
+			return
+		nRealisations = (int)realisationsInput
+		def file = Dialogs.promptToSaveFile(name, null, "noise-robustness.csv", "CSV files", ".csv")
+		if (file == null)
+			return
+
+		def analysis = new NoiseRobustnessAnalysis(runner, params)
+				.noise(noise)
+				.realisations(nRealisations)
+		Thread.startDaemon("noise-robustness") {
+			try {
+				def results = analysis.run(images)
+				file.withWriter("UTF-8") { results.writeCsv(it) }
+				Dialogs.showInfoNotification(name, "Analysed ${nRealisations} noise realisations for ${images.size()} images, results written to ${file}")
+			} catch (Exception e) {
+				Dialogs.showErrorNotification(name, e)
+			}
+		}
+	}
+
 }
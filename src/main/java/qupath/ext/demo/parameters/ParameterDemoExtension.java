@@ -4,11 +4,16 @@ import javafx.scene.control.MenuItem;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.ext.demo.parameters.command.ParameterAdjustmentCommand;
+import qupath.ext.demo.parameters.command.runners.PersistentResultCache;
 import qupath.ext.demo.parameters.command.runners.ThresholdWatershedRunner;
+import qupath.ext.demo.parameters.command.runners.TiledAnalysis;
 import qupath.lib.common.Version;
 import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.dialogs.Dialogs;
 import qupath.lib.gui.extensions.QuPathExtension;
 
+import java.io.IOException;
+
 
 /**
  * This is a simple extension to demonstrate how changing parameters can impact the results of
@@ -27,8 +32,16 @@ public class ParameterDemoExtension implements QuPathExtension {
 
 	private final static Version EXTENSION_QUPATH_VERSION = Version.parse("v0.4.3");
 
+	private final static int TILE_SIZE = 1024;
+
+	private final static int TILE_OVERLAP = 64;
+
 	private boolean isInstalled = false;
 
+	private double tiledDownsample = 4.0;
+
+	private PersistentResultCache persistentCache;
+
 	@Override
 	public void installExtension(QuPathGUI qupath) {
 		if (isInstalled) {
@@ -42,12 +55,48 @@ public class ParameterDemoExtension implements QuPathExtension {
 	private void addMenuItem(QuPathGUI qupath) {
 		var menu = qupath.getMenu("Extensions>" + EXTENSION_NAME, true);
 		MenuItem menuItem = new MenuItem("Threshold parameter demo");
-		var command = new ParameterAdjustmentCommand(qupath, () -> new ThresholdWatershedRunner());
+		var command = new ParameterAdjustmentCommand(qupath, () -> {
+			var runner = new ThresholdWatershedRunner();
+			runner.setPersistentCache(getPersistentCache());
+			return runner;
+		});
 		menuItem.setOnAction(e -> command.run());
 		menu.getItems().add(menuItem);
+
+		MenuItem menuItemTiled = new MenuItem("Tiled threshold parameter demo");
+		long maxBytes = Runtime.getRuntime().maxMemory() / 4;
+		var commandTiled = new ParameterAdjustmentCommand(qupath, () -> new ThresholdWatershedRunner(maxBytes,
+				new TiledAnalysis(tiledDownsample, TILE_SIZE, TILE_OVERLAP, maxBytes / 2)));
+		menuItemTiled.setOnAction(e -> {
+			var downsample = Dialogs.showInputDialog(EXTENSION_NAME, "Downsample for tiled analysis", tiledDownsample);
+			if (downsample == null || !(downsample > 0))
+				return;
+			tiledDownsample = downsample;
+			commandTiled.run();
+		});
+		menu.getItems().add(menuItemTiled);
 	}
 	
 	
+	/**
+	 * Get the cache used to keep results between sessions, opening it if necessary.
+	 * The cache is closed when QuPath exits, so that results waiting to be written aren't lost.
+	 * @return the cache, or null if it could not be opened
+	 */
+	private PersistentResultCache getPersistentCache() {
+		if (persistentCache == null) {
+			var directory = PersistentResultCache.getDefaultDirectory();
+			try {
+				var cache = PersistentResultCache.open(directory, PersistentResultCache.DEFAULT_MAX_BYTES);
+				Runtime.getRuntime().addShutdownHook(new Thread(cache::close, "parameter-demo-cache-close"));
+				persistentCache = cache;
+			} catch (IOException e) {
+				logger.warn("Unable to open result cache at {}: {}", directory, e.getMessage());
+			}
+		}
+		return persistentCache;
+	}
+
 	@Override
 	public String getName() {
 		return EXTENSION_NAME;
@@ -20,18 +20,25 @@ import java.awt.image.BufferedImage;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Supplier;
 
 /**
  * Helper class for representing the result of a simple image analysis task.
  * Currently, this provides a list of PathObjects and some basic statistics.
+ * <p>
+ * The statistics are computed from a {@link MeasurementTable}, so that the objects themselves are only created
+ * when {@link #getObjects()} is first called. This makes results that are only shown in a table or chart much
+ * cheaper to compute and to cache.
  */
 public class AnalysisResult {
 
-    // TODO: Either use these or remove them
-    private final ImageData<BufferedImage> imageData;
-    private final String params;
+    private volatile List<PathObject> pathObjects;
+    private Supplier<List<PathObject>> objectSupplier;
+    private List<Runnable> objectsCreatedActions;
 
-    private final List<PathObject> pathObjects;
+    private final boolean isPreview;
+
+    private final MeasurementTable measurements;
 
     private final IntegerProperty numObjects;
 
@@ -42,26 +49,118 @@ public class AnalysisResult {
     private final DoubleProperty meanArea;
     private final DoubleProperty meanIntensity;
 
-    public AnalysisResult(ImageData<BufferedImage> imageData, String params, List<PathObject> pathObjects) {
-        this.imageData = imageData;
-        this.params = params;
+    public AnalysisResult(ImageData<BufferedImage> imageData, List<PathObject> pathObjects) {
+        this(imageData, pathObjects, false);
+    }
+
+    /**
+     * Create a result that may be a preview.
+     * @param imageData the image that was analysed
+     * @param pathObjects the detected objects
+     * @param isPreview true if this is a quick, lower-quality result that will be replaced by a final result
+     */
+    public AnalysisResult(ImageData<BufferedImage> imageData, List<PathObject> pathObjects, boolean isPreview) {
+        this(imageData, MeasurementTable.fromObjects(pathObjects), null, isPreview);
         this.pathObjects = Collections.unmodifiableList(new ArrayList<>(pathObjects));
+    }
+
+    /**
+     * Create a result from a table of measurements, which only creates its objects when they are requested.
+     * @param imageData the image that was analysed
+     * @param measurements the measurements of each object; this should include {@link MeasurementTable#AREA} and
+     *                     {@link MeasurementTable#MEAN} columns for the summary statistics
+     * @param objectSupplier supplier to create the objects; this is called at most once, and should return one object
+     *                       for each row of the table, in the same order
+     * @param isPreview true if this is a quick, lower-quality result that will be replaced by a final result
+     */
+    public AnalysisResult(ImageData<BufferedImage> imageData, MeasurementTable measurements,
+                          Supplier<List<PathObject>> objectSupplier, boolean isPreview) {
+        this.objectSupplier = objectSupplier;
+        this.isPreview = isPreview;
 
         this.title = new SimpleStringProperty(imageData.getServer().getMetadata().getName());
-        this.numObjects = new SimpleIntegerProperty(pathObjects.size());
+        this.measurements = measurements;
+        this.numObjects = new SimpleIntegerProperty(measurements.size());
 
         int nBins = 16;
-        Histogram histIntensity = Histogram.makeMeasurementHistogram(pathObjects, "Mean", nBins);
+        Histogram histIntensity = measurements.createHistogram(MeasurementTable.MEAN, nBins);
         this.histogramIntensity = new SimpleObjectProperty<>(histIntensity);
         this.meanIntensity = histIntensity == null ? new SimpleDoubleProperty(Double.NaN) : new SimpleDoubleProperty(histIntensity.getMeanValue());
 
-        Histogram histArea = Histogram.makeMeasurementHistogram(pathObjects, "Area", nBins);
+        Histogram histArea = measurements.createHistogram(MeasurementTable.AREA, nBins);
         this.histogramArea = new SimpleObjectProperty<>(histArea);
         this.meanArea = histArea == null ? new SimpleDoubleProperty(Double.NaN) : new SimpleDoubleProperty(histArea.getMeanValue());
     }
 
+    /**
+     * Get the measurements of the objects, without needing to create the objects.
+     * @return
+     */
+    public MeasurementTable getMeasurements() {
+        return measurements;
+    }
+
+    /**
+     * Get the detected objects, creating them if necessary.
+     * This may be expensive the first time it is called for a result, so should be avoided on the UI thread.
+     * @return
+     * @throws java.util.concurrent.CancellationException if the thread is interrupted while creating the objects;
+     *                                                    they are created again if requested later
+     */
     public List<PathObject> getObjects() {
-        return pathObjects;
+        var objects = pathObjects;
+        if (objects != null)
+            return objects;
+        List<Runnable> actions;
+        synchronized (this) {
+            if (pathObjects != null)
+                return pathObjects;
+            var list = objectSupplier.get();
+            if (list.size() != numObjects.get())
+                throw new IllegalStateException("Expected " + numObjects.get() + " objects, but " + list.size() + " were created");
+            objects = Collections.unmodifiableList(new ArrayList<>(list));
+            pathObjects = objects;
+            objectSupplier = null;
+            actions = objectsCreatedActions;
+            objectsCreatedActions = null;
+        }
+        if (actions != null)
+            actions.forEach(Runnable::run);
+        return objects;
+    }
+
+    /**
+     * Run an action once the objects have been created, e.g. to update the estimated size of a cached result.
+     * If the objects have already been created, the action is run immediately. Otherwise, it is run from the thread
+     * that calls {@link #getObjects()} - after the objects are created, so that {@link #areObjectsCreated()} returns true.
+     * @param action
+     */
+    public void whenObjectsCreated(Runnable action) {
+        synchronized (this) {
+            if (pathObjects == null) {
+                if (objectsCreatedActions == null)
+                    objectsCreatedActions = new ArrayList<>();
+                objectsCreatedActions.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Query whether the objects have been created already, so that {@link #getObjects()} will return immediately.
+     * @return
+     */
+    public boolean areObjectsCreated() {
+        return pathObjects != null;
+    }
+
+    /**
+     * Query whether this is a preview result, which will be replaced by a final result when it is ready.
+     * @return true if this is a preview, false if it is a final result
+     */
+    public boolean isPreview() {
+        return isPreview;
     }
 
     public ReadOnlyStringProperty titleProperty() {
@@ -0,0 +1,660 @@
+package qupath.ext.demo.parameters.command;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.demo.parameters.command.runners.AnalysisMetrics;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.plugins.parameters.ParameterList;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+/**
+ * Scheduler for interactive analysis requests.
+ * <p>
+ * This uses a fixed number of worker threads, and holds at most one pending request per image.
+ * A newer request for an image replaces any request that is still queued, and interrupts any request for the same
+ * image that is already running (i.e. the latest request always wins).
+ * <p>
+ * Requests for the image in the active viewer are started first. Requests made while parameters are being adjusted
+ * (e.g. when dragging a slider) are throttled, so that work for an image isn't started more often than a minimum
+ * interval.
+ * <p>
+ * Optionally, speculative requests for parameters that are likely to be needed next can be run on a single
+ * low-priority thread whenever no other requests are waiting and at least one worker is idle.
+ * Any new request immediately cancels speculative work.
+ */
+class AnalysisScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(AnalysisScheduler.class);
+
+    private static final AnalysisMetrics metrics = AnalysisMetrics.getInstance();
+
+    /**
+     * Target for the time between cancelling a running request and its worker becoming free; a request that takes
+     * longer than this to stop is logged.
+     */
+    private static final long CANCEL_LATENCY_TARGET_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final BiConsumer<ImageData<BufferedImage>, ParameterList> handler;
+    private final long minIntervalNanos;
+
+    // Set from the FX thread, since the viewers can't be queried safely from workers
+    private volatile ImageData<BufferedImage> activeImage;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    private final Map<ImageData<BufferedImage>, Request> pending = new LinkedHashMap<>();
+    private final Map<ImageData<BufferedImage>, Running> running = new HashMap<>();
+    private final Map<ImageData<BufferedImage>, Long> lastStarted = new HashMap<>();
+
+    private final ThreadLocal<Running> currentRequest = new ThreadLocal<>();
+
+    private final List<Thread> workers = new ArrayList<>();
+    private final int nWorkers;
+    private boolean isShutdown = false;
+
+    /**
+     * Maximum number of completed speculative requests remembered for each image, to calculate the hit rate.
+     */
+    private static final int MAX_SPECULATED_PER_IMAGE = 256;
+
+    // Written under the lock, but read by workers without it
+    private volatile Function<ParameterList, List<ParameterList>> speculator;
+    private volatile BiPredicate<ImageData<BufferedImage>, ParameterList> speculativeHandler;
+    private Thread speculationThread;
+    private boolean speculationEnabled = true;
+    private final Deque<Speculation> speculations = new ArrayDeque<>();
+    private final Map<ImageData<BufferedImage>, Set<String>> speculated = new HashMap<>();
+    private Speculation speculating;
+
+    private long foregroundStartedCount = 0;
+    private long speculativeCompletedCount = 0;
+    private long speculationHitCount = 0;
+
+    private long submittedCount = 0;
+    private long droppedCount = 0;
+    private long cancelledCount = 0;
+    private long completedCount = 0;
+
+    /**
+     * Create a scheduler with one worker per available processor, leaving one processor free for the user interface.
+     * @param handler function to run the analysis for an image; this is called from a worker thread
+     * @param minIntervalMillis minimum interval between starting requests for the same image while parameters are being adjusted
+     */
+    AnalysisScheduler(BiConsumer<ImageData<BufferedImage>, ParameterList> handler, long minIntervalMillis) {
+        this(handler, minIntervalMillis, Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /**
+     * Create a scheduler with a specified number of workers.
+     * @param handler function to run the analysis for an image; this is called from a worker thread
+     * @param minIntervalMillis minimum interval between starting requests for the same image while parameters are being adjusted
+     * @param nWorkers the number of worker threads
+     */
+    AnalysisScheduler(BiConsumer<ImageData<BufferedImage>, ParameterList> handler, long minIntervalMillis, int nWorkers) {
+        this.handler = handler;
+        this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+        this.nWorkers = nWorkers;
+        var factory = ThreadTools.createThreadFactory("parameter-demo", true);
+        for (int i = 0; i < nWorkers; i++) {
+            var thread = factory.newThread(this::runWorker);
+            workers.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Start speculatively running requests for parameters that are likely to be needed soon.
+     * Speculation starts after a request that isn't made while adjusting parameters has completed.
+     * @param speculator function to determine the parameters to use for speculative requests
+     * @param speculativeHandler function to run a speculative request; this is called from a low-priority thread, and
+     *                           should return true if the request completed (so that its result is available later)
+     */
+    void startSpeculation(Function<ParameterList, List<ParameterList>> speculator,
+                          BiPredicate<ImageData<BufferedImage>, ParameterList> speculativeHandler) {
+        lock.lock();
+        try {
+            if (isShutdown || speculationThread != null)
+                return;
+            this.speculator = speculator;
+            this.speculativeHandler = speculativeHandler;
+            speculationThread = ThreadTools.createThreadFactory("parameter-demo-speculation", true, Thread.MIN_PRIORITY)
+                    .newThread(this::runSpeculation);
+            speculationThread.start();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Enable or disable speculative requests.
+     * Disabling speculation discards any that are waiting, and cancels any that are running.
+     * @param enabled
+     */
+    void setSpeculationEnabled(boolean enabled) {
+        lock.lock();
+        try {
+            speculationEnabled = enabled;
+            if (!enabled)
+                cancelSpeculation();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Request analysis of an image.
+     * @param imageData the image to analyse
+     * @param params the parameters to use; these should not be modified after submission
+     * @param isAdjusting true if the parameters are still being adjusted, in which case the request may be throttled
+     */
+    void submit(ImageData<BufferedImage> imageData, ParameterList params, boolean isAdjusting) {
+        lock.lock();
+        try {
+            if (isShutdown)
+                return;
+            submittedCount++;
+            metrics.increment("Requests submitted");
+            // Foreground work always takes priority over speculation
+            cancelSpeculation();
+            if (pending.put(imageData, new Request(params, isAdjusting)) != null) {
+                droppedCount++;
+                metrics.increment("Requests dropped");
+            }
+            var current = running.get(imageData);
+            if (current != null && !current.isCancelled) {
+                current.cancel();
+                cancelledCount++;
+                metrics.increment("Requests cancelled");
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove any pending request for an image, and cancel any running request.
+     * @param imageData
+     */
+    void cancel(ImageData<BufferedImage> imageData) {
+        lock.lock();
+        try {
+            if (pending.remove(imageData) != null) {
+                droppedCount++;
+                metrics.increment("Requests dropped");
+            }
+            var current = running.get(imageData);
+            if (current != null && !current.isCancelled) {
+                current.cancel();
+                cancelledCount++;
+                metrics.increment("Requests cancelled");
+            }
+            lastStarted.remove(imageData);
+            speculations.removeIf(s -> s.imageData == imageData);
+            speculated.remove(imageData);
+            if (speculating != null && speculating.imageData == imageData)
+                cancelSpeculation();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop all workers, discarding pending requests and interrupting running ones.
+     */
+    void shutdown() {
+        lock.lock();
+        try {
+            isShutdown = true;
+            pending.clear();
+            running.clear();
+            lastStarted.clear();
+            cancelSpeculation();
+            speculated.clear();
+            for (var thread : workers)
+                thread.interrupt();
+            if (speculationThread != null)
+                speculationThread.interrupt();
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Query whether the request being handled by the current thread has been cancelled.
+     * <p>
+     * This is useful for handlers that do their work in several steps, since an analysis may clear the interrupted
+     * status of the thread when it stops early.
+     * @return true if called from a worker thread and its current request has been cancelled, false otherwise
+     */
+    boolean isCancelled() {
+        var current = currentRequest.get();
+        return current != null && current.isCancelled;
+    }
+
+    /**
+     * Get the number of requests waiting to be started.
+     * @return
+     */
+    int getQueueDepth() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of requests that are currently running.
+     * @return
+     */
+    int getRunningCount() {
+        lock.lock();
+        try {
+            return running.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the total number of requests submitted.
+     * @return
+     */
+    long getSubmittedCount() {
+        lock.lock();
+        try {
+            return submittedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of requests that were replaced by a newer request before they started.
+     * @return
+     */
+    long getDroppedCount() {
+        lock.lock();
+        try {
+            return droppedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of requests that were interrupted while running.
+     * @return
+     */
+    long getCancelledCount() {
+        lock.lock();
+        try {
+            return cancelledCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of requests that ran to completion.
+     * @return
+     */
+    long getCompletedCount() {
+        lock.lock();
+        try {
+            return completedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of speculative requests that ran to completion.
+     * @return
+     */
+    long getSpeculativeCompletedCount() {
+        lock.lock();
+        try {
+            return speculativeCompletedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the fraction of started requests that had already been completed speculatively, or NaN if no requests
+     * have been started.
+     * @return
+     */
+    double getSpeculationHitRate() {
+        lock.lock();
+        try {
+            return foregroundStartedCount == 0 ? Double.NaN : (double) speculationHitCount / foregroundStartedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void runWorker() {
+        while (true) {
+            ImageData<BufferedImage> imageData;
+            Request request;
+            Running current;
+            lock.lock();
+            try {
+                Map.Entry<ImageData<BufferedImage>, Request> next;
+                while ((next = nextRequest()) == null) {
+                    if (isShutdown)
+                        return;
+                    long waitNanos = nanosUntilReady();
+                    if (waitNanos < 0)
+                        changed.await();
+                    else
+                        changed.awaitNanos(waitNanos);
+                }
+                imageData = next.getKey();
+                request = next.getValue();
+                pending.remove(imageData);
+                current = new Running(Thread.currentThread());
+                running.put(imageData, current);
+                long now = System.nanoTime();
+                lastStarted.put(imageData, now);
+                foregroundStartedCount++;
+                metrics.recordLatency("Queue wait", now - request.submittedNanos);
+            } catch (InterruptedException e) {
+                if (isShutdownLocked())
+                    return;
+                continue;
+            } finally {
+                lock.unlock();
+            }
+
+            if (speculator != null)
+                recordSpeculationHit(imageData, ParameterList.convertToJson(request.params));
+
+            try (var timer = metrics.startTimer("Request")) {
+                currentRequest.set(current);
+                handler.accept(imageData, request.params);
+                if (!current.isCancelled && !request.isAdjusting)
+                    scheduleSpeculation(imageData, request.params);
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+            } finally {
+                currentRequest.remove();
+                lock.lock();
+                try {
+                    if (running.get(imageData) == current)
+                        running.remove(imageData);
+                    if (current.isCancelled) {
+                        recordCancelLatency(current);
+                    } else {
+                        completedCount++;
+                        metrics.increment("Requests completed");
+                    }
+                    // Clear any interrupt intended for the request that has just finished
+                    Thread.interrupted();
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Record the time from cancelling a request until its worker became free.
+     */
+    private static void recordCancelLatency(Running running) {
+        long nanos = System.nanoTime() - running.cancelledNanos;
+        metrics.recordLatency("Cancel latency", nanos);
+        if (nanos > CANCEL_LATENCY_TARGET_NANOS)
+            logger.debug("Cancelled request took {} ms to stop", String.format("%.1f", nanos / 1e6));
+    }
+
+    private void recordSpeculationHit(ImageData<BufferedImage> imageData, String key) {
+        lock.lock();
+        try {
+            var set = speculated.get(imageData);
+            if (set != null && set.remove(key)) {
+                speculationHitCount++;
+                metrics.increment("Speculation hits");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replace any waiting speculative requests with new ones based on the parameters of a completed request.
+     */
+    private void scheduleSpeculation(ImageData<BufferedImage> imageData, ParameterList params) {
+        var speculator = this.speculator;
+        if (speculator == null)
+            return;
+        List<Speculation> list = new ArrayList<>();
+        for (var p : speculator.apply(params))
+            list.add(new Speculation(imageData, p, ParameterList.convertToJson(p)));
+        lock.lock();
+        try {
+            // Don't bother if a newer request is already waiting
+            if (!speculationEnabled || isShutdown || pending.containsKey(imageData))
+                return;
+            speculations.removeIf(s -> s.imageData == imageData);
+            var done = speculated.get(imageData);
+            for (var s : list) {
+                if (done == null || !done.contains(s.key))
+                    speculations.add(s);
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discard all waiting speculative requests, and cancel any that is running.
+     * Must be called while holding the lock.
+     */
+    private void cancelSpeculation() {
+        speculations.clear();
+        if (speculating != null && !speculating.running.isCancelled)
+            speculating.running.cancel();
+    }
+
+    private void runSpeculation() {
+        while (true) {
+            Speculation next;
+            lock.lock();
+            try {
+                while ((next = nextSpeculation()) == null) {
+                    if (isShutdown)
+                        return;
+                    changed.await();
+                }
+                next.running = new Running(Thread.currentThread());
+                speculating = next;
+            } catch (InterruptedException e) {
+                if (isShutdownLocked())
+                    return;
+                continue;
+            } finally {
+                lock.unlock();
+            }
+
+            boolean completed = false;
+            try (var timer = metrics.startTimer("Speculative request")) {
+                var speculativeHandler = this.speculativeHandler;
+                completed = speculativeHandler != null && speculativeHandler.test(next.imageData, next.params);
+            } catch (Exception e) {
+                logger.debug("Speculative request failed: {}", e.getMessage(), e);
+            } finally {
+                lock.lock();
+                try {
+                    if (speculating == next)
+                        speculating = null;
+                    if (next.running.isCancelled)
+                        recordCancelLatency(next.running);
+                    if (completed && !next.running.isCancelled) {
+                        speculativeCompletedCount++;
+                        metrics.increment("Speculative requests completed");
+                        var set = speculated.computeIfAbsent(next.imageData, k -> new LinkedHashSet<>());
+                        set.add(next.key);
+                        if (set.size() > MAX_SPECULATED_PER_IMAGE)
+                            set.remove(set.iterator().next());
+                    }
+                    // Clear any interrupt intended for the request that has just finished
+                    Thread.interrupted();
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the next speculative request, if there is one and there are spare resources to run it.
+     * Must be called while holding the lock.
+     */
+    private Speculation nextSpeculation() {
+        if (isShutdown || !speculationEnabled || !pending.isEmpty() || running.size() >= nWorkers)
+            return null;
+        return speculations.pollFirst();
+    }
+
+    private boolean isShutdownLocked() {
+        lock.lock();
+        try {
+            return isShutdown;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Set the image that should be prioritised, i.e. the image in the active viewer.
+     * This should be called from the FX thread whenever the active image changes.
+     * @param imageData the active image, or null if there is none
+     */
+    void setActiveImage(ImageData<BufferedImage> imageData) {
+        this.activeImage = imageData;
+    }
+
+    /**
+     * Get the next request that is ready to start, prioritising the active image.
+     * Must be called while holding the lock.
+     */
+    private Map.Entry<ImageData<BufferedImage>, Request> nextRequest() {
+        if (isShutdown)
+            return null;
+        var active = activeImage;
+        Map.Entry<ImageData<BufferedImage>, Request> next = null;
+        long now = System.nanoTime();
+        for (var entry : pending.entrySet()) {
+            var imageData = entry.getKey();
+            if (running.containsKey(imageData) || nanosUntilReady(imageData, entry.getValue(), now) > 0)
+                continue;
+            if (imageData == active)
+                return entry;
+            if (next == null)
+                next = entry;
+        }
+        return next;
+    }
+
+    /**
+     * Get the time until the next throttled request is ready to start, or -1 if there is nothing to wait for.
+     * Must be called while holding the lock.
+     */
+    private long nanosUntilReady() {
+        long now = System.nanoTime();
+        long minWait = -1;
+        for (var entry : pending.entrySet()) {
+            if (running.containsKey(entry.getKey()))
+                continue;
+            long wait = nanosUntilReady(entry.getKey(), entry.getValue(), now);
+            if (wait > 0 && (minWait < 0 || wait < minWait))
+                minWait = wait;
+        }
+        return minWait;
+    }
+
+    private long nanosUntilReady(ImageData<BufferedImage> imageData, Request request, long now) {
+        if (!request.isAdjusting)
+            return 0;
+        var last = lastStarted.get(imageData);
+        if (last == null)
+            return 0;
+        return last + minIntervalNanos - now;
+    }
+
+
+    private static class Request {
+
+        private final ParameterList params;
+        private final boolean isAdjusting;
+        private final long submittedNanos = System.nanoTime();
+
+        private Request(ParameterList params, boolean isAdjusting) {
+            this.params = params;
+            this.isAdjusting = isAdjusting;
+        }
+
+    }
+
+    private static class Speculation {
+
+        private final ImageData<BufferedImage> imageData;
+        private final ParameterList params;
+        private final String key;
+        private Running running;
+
+        private Speculation(ImageData<BufferedImage> imageData, ParameterList params, String key) {
+            this.imageData = imageData;
+            this.params = params;
+            this.key = key;
+        }
+
+    }
+
+    private static class Running {
+
+        private final Thread thread;
+        private volatile boolean isCancelled = false;
+        private volatile long cancelledNanos;
+
+        private Running(Thread thread) {
+            this.thread = thread;
+        }
+
+        private void cancel() {
+            cancelledNanos = System.nanoTime();
+            isCancelled = true;
+            thread.interrupt();
+        }
+
+    }
+
+}
@@ -0,0 +1,160 @@
+package qupath.ext.demo.parameters.command;
+
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.control.Button;
+import javafx.scene.control.ComboBox;
+import javafx.scene.control.Label;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Pane;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.demo.parameters.command.runners.AnalysisRunner;
+import qupath.ext.demo.parameters.command.runners.ParameterSweep;
+import qupath.ext.demo.parameters.command.runners.SweepResults;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.plugins.parameters.ChoiceParameter;
+import qupath.lib.plugins.parameters.ParameterList;
+
+import java.awt.image.BufferedImage;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Pane to compare the results for every choice of a choice parameter (e.g. every auto threshold method) side by side,
+ * for the current image and with all other parameters unchanged.
+ * <p>
+ * The comparison uses a {@link ParameterSweep}, so that any intermediate results cached by the runner are shared
+ * between choices.
+ */
+class ChoiceComparisonPane {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChoiceComparisonPane.class);
+
+    private final Supplier<AnalysisRunner> runner;
+    private final Supplier<ImageData<BufferedImage>> imageData;
+    private final ParameterList params;
+
+    private final ExecutorService pool = Executors.newSingleThreadExecutor(
+            ThreadTools.createThreadFactory("parameter-demo-compare", true));
+    private Future<?> running;
+
+    private final BorderPane pane = new BorderPane();
+    private final TableView<Integer> table = new TableView<>();
+    private final ComboBox<String> comboKeys = new ComboBox<>();
+    private final Label labelStatus = new Label();
+
+    /**
+     * Create a comparison pane.
+     * @param runner supplier for the runner used for the analysis
+     * @param imageData supplier for the image to analyse
+     * @param params the parameters, which may be changed elsewhere; these are only read on the UI thread
+     */
+    ChoiceComparisonPane(Supplier<AnalysisRunner> runner, Supplier<ImageData<BufferedImage>> imageData, ParameterList params) {
+        this.runner = runner;
+        this.imageData = imageData;
+        this.params = params;
+
+        List<String> keys = params.getParameters().entrySet().stream()
+                .filter(e -> e.getValue() instanceof ChoiceParameter)
+                .map(e -> e.getKey())
+                .collect(Collectors.toList());
+        comboKeys.getItems().setAll(keys);
+        if (!keys.isEmpty())
+            comboKeys.getSelectionModel().selectFirst();
+
+        var btnCompare = new Button("Compare");
+        btnCompare.setOnAction(e -> compare());
+        btnCompare.disableProperty().bind(comboKeys.getSelectionModel().selectedItemProperty().isNull());
+
+        var paneTop = new HBox(5.0, new Label("Parameter"), comboKeys, btnCompare, labelStatus);
+        paneTop.setAlignment(Pos.CENTER_LEFT);
+        paneTop.setPadding(new Insets(0, 0, 5.0, 0));
+
+        table.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
+        table.setPlaceholder(new Label("Press 'Compare' to analyse the current image with every choice"));
+        pane.setTop(paneTop);
+        pane.setCenter(table);
+        pane.setPadding(new Insets(5.0));
+    }
+
+    Pane getPane() {
+        return pane;
+    }
+
+    /**
+     * Start comparing all choices for the selected parameter, cancelling any comparison already running.
+     */
+    void compare() {
+        var key = comboKeys.getSelectionModel().getSelectedItem();
+        var runner = this.runner.get();
+        var imageData = this.imageData.get();
+        if (key == null || runner == null || imageData == null)
+            return;
+        var choices = ((ChoiceParameter<?>) params.getParameters().get(key)).getChoices();
+        var sweep = new ParameterSweep(runner, params)
+                .addChoices(key, choices);
+
+        if (running != null)
+            running.cancel(true);
+        labelStatus.setText("Running...");
+        running = pool.submit(() -> {
+            try {
+                var results = sweep.run(Collections.singletonList(imageData));
+                Platform.runLater(() -> showResults(results));
+            } catch (InterruptedException e) {
+                logger.debug("Comparison interrupted");
+            } catch (Exception e) {
+                logger.error("Comparison failed: " + e.getMessage(), e);
+                Platform.runLater(() -> labelStatus.setText("Comparison failed"));
+            }
+        });
+    }
+
+    private void showResults(SweepResults results) {
+        var df = new DecimalFormat("0.0");
+
+        var colChoice = new TableColumn<Integer, String>(results.getKeys().get(0));
+        colChoice.setCellValueFactory(v -> new ReadOnlyStringWrapper(String.valueOf(results.getValue(v.getValue(), 0))));
+
+        var colCount = new TableColumn<Integer, Number>("Count");
+        colCount.setCellValueFactory(v -> new ReadOnlyObjectWrapper<>(results.getCount(0, v.getValue())));
+
+        var colMeanArea = new TableColumn<Integer, Number>("Mean area");
+        colMeanArea.setCellValueFactory(v -> new ReadOnlyObjectWrapper<>(results.getMeanArea(0, v.getValue())));
+        colMeanArea.setCellFactory(v -> new NumberTableCell<>(df));
+
+        var colMeanIntensity = new TableColumn<Integer, Number>("Mean intensity");
+        colMeanIntensity.setCellValueFactory(v -> new ReadOnlyObjectWrapper<>(results.getMeanIntensity(0, v.getValue())));
+        colMeanIntensity.setCellFactory(v -> new NumberTableCell<>(df));
+
+        List<TableColumn<Integer, ?>> columns = new ArrayList<>();
+        Collections.addAll(columns, colChoice, colCount, colMeanArea, colMeanIntensity);
+        table.getColumns().setAll(columns);
+        table.getItems().setAll(IntStream.range(0, results.nCombinations()).boxed().collect(Collectors.toList()));
+        labelStatus.setText(String.format("%s (%.2f s)", results.getImageName(0), results.getElapsedSeconds()));
+    }
+
+    /**
+     * Cancel any running comparison, and stop the background thread.
+     */
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+}
@@ -0,0 +1,158 @@
+package qupath.ext.demo.parameters.command;
+
+import javafx.application.Platform;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Helper to show analysis results in an image hierarchy, changing only the objects that differ from the last result.
+ * <p>
+ * Objects are matched by their geometry only. Any object that matches one already shown is kept (with its color
+ * updated in place, since colors may depend upon the other objects), so that small parameter changes only add and
+ * remove the objects that are actually affected.
+ * Changes are applied through the hierarchy's own methods to remove and add objects in batches, each of which fires
+ * a single hierarchy event.
+ * <p>
+ * This is intended to be called from a background thread, with at most one update running for each image.
+ * The changes are worked out on the calling thread, but applied on the FX thread - in the order they were requested.
+ */
+class HierarchyUpdater {
+
+    private final Map<ImageData<BufferedImage>, Map<ObjectKey, PathObject>> shown = new ConcurrentHashMap<>();
+
+    /**
+     * Update the hierarchy for an image to show the specified objects.
+     * The first time this is called for an image, all existing objects are removed.
+     * @param imageData the image to update
+     * @param pathObjects the objects that should be shown
+     * @return the number of objects that will be added or removed (excluding existing objects, when first called)
+     */
+    int apply(ImageData<BufferedImage> imageData, Collection<? extends PathObject> pathObjects) {
+        var previous = shown.get(imageData);
+
+        // Work out the changes against the objects that will be shown once earlier updates have been applied
+        Map<ObjectKey, PathObject> remaining = previous == null ? new HashMap<>() : new HashMap<>(previous);
+        Map<ObjectKey, PathObject> next = new HashMap<>();
+        List<PathObject> toAdd = new ArrayList<>();
+        Map<PathObject, Integer> kept = new HashMap<>();
+        for (var pathObject : pathObjects) {
+            var key = new ObjectKey(pathObject);
+            var existing = remaining.remove(key);
+            if (existing != null) {
+                next.put(key, existing);
+                kept.put(existing, pathObject.getColor());
+            } else {
+                next.put(key, pathObject);
+                toAdd.add(pathObject);
+            }
+        }
+        List<PathObject> toRemove = new ArrayList<>(remaining.values());
+        shown.put(imageData, next);
+
+        Platform.runLater(() -> update(imageData, previous == null, toRemove, toAdd, kept));
+        return toAdd.size() + toRemove.size();
+    }
+
+    /**
+     * Apply changes to the hierarchy. This must be called on the FX thread.
+     * @param removeAll true if all existing objects should be removed, rather than only those in toRemove
+     * @param kept objects that are already shown, mapped to their new colors
+     */
+    private void update(ImageData<BufferedImage> imageData, boolean removeAll, List<PathObject> toRemove,
+                        List<PathObject> toAdd, Map<PathObject, Integer> kept) {
+        var hierarchy = imageData.getHierarchy();
+        if (removeAll)
+            toRemove = new ArrayList<>(hierarchy.getRootObject().getChildObjects());
+        List<PathObject> recolored = new ArrayList<>();
+        for (var entry : kept.entrySet()) {
+            var existing = entry.getKey();
+            // Add the object again if it has been removed elsewhere
+            if (existing.getParent() == null)
+                toAdd.add(existing);
+            else if (!Objects.equals(existing.getColor(), entry.getValue()))
+                recolored.add(existing);
+            existing.setColor(entry.getValue());
+        }
+
+        if (!toRemove.isEmpty())
+            hierarchy.removeObjects(toRemove, false);
+        if (!toAdd.isEmpty())
+            hierarchy.addObjects(toAdd);
+        if (!recolored.isEmpty())
+            hierarchy.fireObjectsChangedEvent(this, recolored);
+    }
+
+    /**
+     * Stop tracking the objects shown for an image, e.g. because it has been closed.
+     * The hierarchy itself is not changed.
+     * @param imageData
+     */
+    void remove(ImageData<BufferedImage> imageData) {
+        shown.remove(imageData);
+    }
+
+    /**
+     * Stop tracking the objects shown for all images.
+     */
+    void clear() {
+        shown.clear();
+    }
+
+
+    /**
+     * Key used to match objects with the same polygon vertices.
+     */
+    private static class ObjectKey {
+
+        private final String roiType;
+        private final double[] coords;
+        private final int hash;
+
+        private ObjectKey(PathObject pathObject) {
+            ROI roi = pathObject.getROI();
+            this.roiType = roi == null ? null : roi.getRoiName();
+            if (roi == null) {
+                coords = new double[0];
+            } else {
+                var points = roi.getAllPoints();
+                coords = new double[points.size() * 2];
+                int i = 0;
+                for (var p : points) {
+                    coords[i++] = p.getX();
+                    coords[i++] = p.getY();
+                }
+            }
+            this.hash = Objects.hash(roiType, Arrays.hashCode(coords));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof ObjectKey))
+                return false;
+            var other = (ObjectKey) obj;
+            return hash == other.hash &&
+                    Objects.equals(roiType, other.roiType) &&
+                    Arrays.equals(coords, other.coords);
+        }
+
+    }
+
+}
@@ -0,0 +1,345 @@
+package qupath.ext.demo.parameters.command;
+
+import qupath.lib.analysis.stats.Histogram;
+import qupath.lib.objects.PathObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable table of object measurements, stored as one primitive array per column.
+ * <p>
+ * This makes it possible to compute summary statistics, histograms and colors for a result without creating its
+ * objects or looking up each measurement by name - and to combine or serialize results cheaply.
+ * Row {@code i} of every column refers to the same object.
+ * <p>
+ * Tables may also have {@link #CENTROID_X} and {@link #CENTROID_Y} columns, giving the centroid of each object in
+ * full-resolution image coordinates. These are used to write results without creating ROIs, but aren't measurements
+ * of the objects themselves - see {@link #getMeasurementNames()}.
+ */
+public final class MeasurementTable {
+
+    public static final String MEAN = "Mean";
+    public static final String STD_DEV = "Std dev";
+    public static final String AREA = "Area";
+    public static final String MIN = "Min";
+    public static final String MAX = "Max";
+    public static final String CENTROID_X = "Centroid X";
+    public static final String CENTROID_Y = "Centroid Y";
+
+    private static final MeasurementTable EMPTY = new MeasurementTable(0, Collections.emptyMap());
+
+    private final int nRows;
+    private final Map<String, double[]> columns;
+
+    private MeasurementTable(int nRows, Map<String, double[]> columns) {
+        this.nRows = nRows;
+        this.columns = Collections.unmodifiableMap(columns);
+    }
+
+    /**
+     * Get a table with no rows or columns.
+     * @return
+     */
+    public static MeasurementTable empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Create a builder for a table.
+     * @param nRows the number of rows, i.e. the number of objects
+     * @return
+     */
+    public static Builder builder(int nRows) {
+        return new Builder(nRows);
+    }
+
+    /**
+     * Create a table from the measurement lists of objects, along with the centroids of their ROIs.
+     * The columns are the measurements of the first object; any missing values are NaN.
+     * @param pathObjects
+     * @return
+     */
+    public static MeasurementTable fromObjects(List<? extends PathObject> pathObjects) {
+        if (pathObjects.isEmpty())
+            return EMPTY;
+        int n = pathObjects.size();
+        var builder = builder(n);
+        for (var name : pathObjects.get(0).getMeasurementList().getMeasurementNames()) {
+            double[] values = new double[n];
+            for (int i = 0; i < n; i++)
+                values[i] = pathObjects.get(i).getMeasurementList().getOrDefault(name, Double.NaN);
+            builder.put(name, values);
+        }
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int i = 0; i < n; i++) {
+            var roi = pathObjects.get(i).getROI();
+            xs[i] = roi == null ? Double.NaN : roi.getCentroidX();
+            ys[i] = roi == null ? Double.NaN : roi.getCentroidY();
+        }
+        return builder.put(CENTROID_X, xs)
+                .put(CENTROID_Y, ys)
+                .build();
+    }
+
+    /**
+     * Combine tables by appending their rows, e.g. to summarize results across images.
+     * Only columns that are found in every table are retained.
+     * @param tables
+     * @return
+     */
+    public static MeasurementTable concat(Collection<MeasurementTable> tables) {
+        if (tables.isEmpty())
+            return EMPTY;
+        List<String> names = null;
+        int nRows = 0;
+        for (var table : tables) {
+            if (names == null)
+                names = new ArrayList<>(table.getColumnNames());
+            else
+                names.retainAll(table.columns.keySet());
+            nRows += table.nRows;
+        }
+        var builder = builder(nRows);
+        for (var name : names) {
+            double[] values = new double[nRows];
+            int offset = 0;
+            for (var table : tables) {
+                System.arraycopy(table.columns.get(name), 0, values, offset, table.nRows);
+                offset += table.nRows;
+            }
+            builder.put(name, values);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Get the number of rows, i.e. the number of objects.
+     * @return
+     */
+    public int size() {
+        return nRows;
+    }
+
+    /**
+     * Get the names of the columns, in the order they were added.
+     * @return
+     */
+    public List<String> getColumnNames() {
+        return List.copyOf(columns.keySet());
+    }
+
+    /**
+     * Get the names of the columns that are measurements of the objects, in the order they were added.
+     * This excludes the centroid columns.
+     * @return
+     */
+    public List<String> getMeasurementNames() {
+        var names = new ArrayList<>(columns.keySet());
+        names.remove(CENTROID_X);
+        names.remove(CENTROID_Y);
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Query whether the table has a column.
+     * @param name
+     * @return
+     */
+    public boolean hasColumn(String name) {
+        return columns.containsKey(name);
+    }
+
+    /**
+     * Get the values of a column.
+     * @param name
+     * @return the values, which are shared and must not be modified
+     * @throws IllegalArgumentException if there is no column with the name
+     */
+    public double[] getColumn(String name) {
+        var values = columns.get(name);
+        if (values == null)
+            throw new IllegalArgumentException("No measurement column '" + name + "'");
+        return values;
+    }
+
+    /**
+     * Get a single value, or NaN if there is no column with the name.
+     * @param name
+     * @param row
+     * @return
+     */
+    public double get(String name, int row) {
+        var values = columns.get(name);
+        return values == null ? Double.NaN : values[row];
+    }
+
+    /**
+     * Get the mean of the finite values in a column, or NaN if there are none (or there is no column).
+     * @param name
+     * @return
+     */
+    public double getMean(String name) {
+        var values = columns.get(name);
+        if (values == null)
+            return Double.NaN;
+        double sum = 0;
+        int n = 0;
+        for (double v : values) {
+            if (Double.isFinite(v)) {
+                sum += v;
+                n++;
+            }
+        }
+        return n == 0 ? Double.NaN : sum / n;
+    }
+
+    /**
+     * Get the maximum of the finite values in a column, or NaN if there are none (or there is no column).
+     * @param name
+     * @return
+     */
+    public double getMax(String name) {
+        var values = columns.get(name);
+        if (values == null)
+            return Double.NaN;
+        double max = Double.NEGATIVE_INFINITY;
+        for (double v : values) {
+            if (Double.isFinite(v) && v > max)
+                max = v;
+        }
+        return max == Double.NEGATIVE_INFINITY ? Double.NaN : max;
+    }
+
+    /**
+     * Create a histogram from the finite values in a column.
+     * @param name
+     * @param nBins
+     * @return the histogram, or null if there are no finite values (or there is no column)
+     */
+    public Histogram createHistogram(String name, int nBins) {
+        var values = columns.get(name);
+        if (values == null)
+            return null;
+        int n = 0;
+        double[] finite = new double[values.length];
+        for (double v : values) {
+            if (Double.isFinite(v))
+                finite[n++] = v;
+        }
+        if (n == 0)
+            return null;
+        return new Histogram(n == finite.length ? finite : Arrays.copyOf(finite, n), nBins);
+    }
+
+    /**
+     * Estimate the memory used by the table, in bytes.
+     * @return
+     */
+    public long estimateBytes() {
+        return 64 + columns.size() * (64 + nRows * 8L);
+    }
+
+    /**
+     * Get the number of bytes needed by {@link #writeTo(ByteBuffer)}.
+     * @return
+     */
+    public int getSerializedSize() {
+        long bytes = 8;
+        for (var name : columns.keySet())
+            bytes += 4 + name.getBytes(StandardCharsets.UTF_8).length + nRows * 8L;
+        return Math.toIntExact(bytes);
+    }
+
+    /**
+     * Write the table to a buffer, starting at its current position.
+     * The format is the number of rows and columns, followed by each column name (as length-prefixed UTF-8) and
+     * its values.
+     * @param buffer the buffer, which must have at least {@link #getSerializedSize()} bytes remaining
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.putInt(nRows);
+        buffer.putInt(columns.size());
+        for (var entry : columns.entrySet()) {
+            byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(name.length);
+            buffer.put(name);
+            buffer.asDoubleBuffer().put(entry.getValue());
+            buffer.position(buffer.position() + nRows * 8);
+        }
+    }
+
+    /**
+     * Read a table written by {@link #writeTo(ByteBuffer)}, starting at the current position of the buffer.
+     * @param buffer
+     * @return
+     * @throws java.nio.BufferUnderflowException if the buffer does not contain a complete table
+     */
+    public static MeasurementTable readFrom(ByteBuffer buffer) {
+        int nRows = buffer.getInt();
+        int nColumns = buffer.getInt();
+        var builder = builder(nRows);
+        for (int c = 0; c < nColumns; c++) {
+            byte[] name = new byte[buffer.getInt()];
+            buffer.get(name);
+            double[] values = new double[nRows];
+            buffer.asDoubleBuffer().get(values);
+            buffer.position(buffer.position() + nRows * 8);
+            builder.put(new String(name, StandardCharsets.UTF_8), values);
+        }
+        return builder.build();
+    }
+
+    @Override
+    public String toString() {
+        return "MeasurementTable[rows=" + nRows + ", columns=" + columns.keySet() + "]";
+    }
+
+
+    /**
+     * Builder for a {@link MeasurementTable}.
+     */
+    public static final class Builder {
+
+        private final int nRows;
+        private final Map<String, double[]> columns = new LinkedHashMap<>();
+
+        private Builder(int nRows) {
+            if (nRows < 0)
+                throw new IllegalArgumentException("Number of rows must be >= 0");
+            this.nRows = nRows;
+        }
+
+        /**
+         * Add or replace a column.
+         * @param name
+         * @param values the values, which are used directly and should not be modified afterwards
+         * @return this builder
+         * @throws IllegalArgumentException if the number of values doesn't match the number of rows
+         */
+        public Builder put(String name, double[] values) {
+            if (values.length != nRows)
+                throw new IllegalArgumentException("Expected " + nRows + " values for '" + name + "', but got " + values.length);
+            columns.put(name, values);
+            return this;
+        }
+
+        /**
+         * Build the table.
+         * @return
+         */
+        public MeasurementTable build() {
+            return new MeasurementTable(nRows, new LinkedHashMap<>(columns));
+        }
+
+    }
+
+}
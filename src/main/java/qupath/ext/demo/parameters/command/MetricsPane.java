@@ -0,0 +1,146 @@
+package qupath.ext.demo.parameters.command;
+
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+import qupath.ext.demo.parameters.command.runners.AnalysisMetrics;
+import qupath.ext.demo.parameters.command.runners.LatencyHistogram;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Pane to show the latencies and counts recorded by {@link AnalysisMetrics}, e.g. the time taken by each stage of the
+ * analysis and the number of cancelled requests.
+ * <p>
+ * The values are a snapshot, which is updated by calling {@link #update()}.
+ */
+class MetricsPane {
+
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final AnalysisMetrics metrics = AnalysisMetrics.getInstance();
+
+    private final BorderPane pane = new BorderPane();
+    private final TableView<LatencyRow> tableLatencies = new TableView<>();
+    private final TableView<CountRow> tableCounts = new TableView<>();
+
+    MetricsPane() {
+        var df = new DecimalFormat("0.00");
+
+        var colName = new TableColumn<LatencyRow, String>("Latency");
+        colName.setCellValueFactory(v -> new ReadOnlyStringWrapper(v.getValue().name));
+        var colCount = new TableColumn<LatencyRow, Number>("Count");
+        colCount.setCellValueFactory(v -> new ReadOnlyObjectWrapper<>(v.getValue().count));
+        tableLatencies.getColumns().add(colName);
+        tableLatencies.getColumns().add(colCount);
+        addMillisColumn("Mean (ms)", r -> r.mean, df);
+        addMillisColumn("p50 (ms)", r -> r.p50, df);
+        addMillisColumn("p95 (ms)", r -> r.p95, df);
+        addMillisColumn("p99 (ms)", r -> r.p99, df);
+        addMillisColumn("Max (ms)", r -> r.max, df);
+        tableLatencies.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
+        tableLatencies.setPlaceholder(new Label("No latencies recorded"));
+
+        var colCountName = new TableColumn<CountRow, String>("Event");
+        colCountName.setCellValueFactory(v -> new ReadOnlyStringWrapper(v.getValue().name));
+        var colCountValue = new TableColumn<CountRow, Number>("Count");
+        colCountValue.setCellValueFactory(v -> new ReadOnlyObjectWrapper<>(v.getValue().count));
+        tableCounts.getColumns().add(colCountName);
+        tableCounts.getColumns().add(colCountValue);
+        tableCounts.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
+        tableCounts.setPlaceholder(new Label("No events recorded"));
+
+        var box = new VBox(5.0, tableLatencies, tableCounts);
+        VBox.setVgrow(tableLatencies, Priority.ALWAYS);
+        VBox.setVgrow(tableCounts, Priority.SOMETIMES);
+
+        var btnReset = new Button("Reset");
+        btnReset.setOnAction(e -> {
+            metrics.reset();
+            update();
+        });
+        var paneButtons = new HBox(5.0, btnReset);
+        paneButtons.setAlignment(Pos.CENTER);
+        paneButtons.setPadding(new Insets(5.0, 0, 0, 0));
+
+        pane.setCenter(box);
+        pane.setBottom(paneButtons);
+        pane.setPadding(new Insets(5.0));
+    }
+
+    private void addMillisColumn(String name, Function<LatencyRow, Double> fun, DecimalFormat format) {
+        var col = new TableColumn<LatencyRow, Number>(name);
+        col.setCellValueFactory(v -> new ReadOnlyObjectWrapper<>(fun.apply(v.getValue()) / NANOS_PER_MILLI));
+        col.setCellFactory(v -> new NumberTableCell<>(format));
+        tableLatencies.getColumns().add(col);
+    }
+
+    Pane getPane() {
+        return pane;
+    }
+
+    /**
+     * Update the tables with the latest values.
+     * This must be called on the UI thread.
+     */
+    void update() {
+        List<LatencyRow> latencies = new ArrayList<>();
+        for (var name : metrics.getLatencyNames())
+            latencies.add(new LatencyRow(name, metrics.getLatency(name)));
+        tableLatencies.getItems().setAll(latencies);
+
+        List<CountRow> counts = new ArrayList<>();
+        for (var name : metrics.getCountNames())
+            counts.add(new CountRow(name, metrics.getCount(name)));
+        tableCounts.getItems().setAll(counts);
+    }
+
+
+    private static class LatencyRow {
+
+        private final String name;
+        private final long count;
+        private final double mean;
+        private final double p50;
+        private final double p95;
+        private final double p99;
+        private final double max;
+
+        private LatencyRow(String name, LatencyHistogram histogram) {
+            this.name = name;
+            this.count = histogram.getCount();
+            this.mean = histogram.getMean();
+            this.p50 = histogram.getQuantile(0.5);
+            this.p95 = histogram.getQuantile(0.95);
+            this.p99 = histogram.getQuantile(0.99);
+            this.max = count == 0 ? Double.NaN : histogram.getMax();
+        }
+
+    }
+
+    private static class CountRow {
+
+        private final String name;
+        private final long count;
+
+        private CountRow(String name, long count) {
+            this.name = name;
+            this.count = count;
+        }
+
+    }
+
+}
@@ -1,71 +1,87 @@
 package qupath.ext.demo.parameters.command;
 
-import javafx.application.Platform;
-import javafx.collections.FXCollections;
-import javafx.collections.MapChangeListener;
-import javafx.collections.ObservableMap;
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.geometry.Side;
 import javafx.scene.Scene;
 import javafx.scene.chart.XYChart;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.Label;
 import javafx.scene.control.Separator;
 import javafx.scene.control.Tab;
 import javafx.scene.control.TabPane;
 import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableView;
+import javafx.scene.control.Tooltip;
 import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.HBox;
 import javafx.scene.layout.Pane;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import qupath.ext.demo.parameters.command.runners.AnalysisMetrics;
 import qupath.ext.demo.parameters.command.runners.AnalysisRunner;
-import qupath.lib.common.ThreadTools;
 import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.dialogs.Dialogs;
 import qupath.lib.gui.dialogs.ParameterPanelFX;
 import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
 import qupath.lib.plugins.parameters.ParameterChangeListener;
 import qupath.lib.plugins.parameters.ParameterList;
 
 import java.awt.image.BufferedImage;
 import java.text.DecimalFormat;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
-import java.util.TreeMap;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.CancellationException;
 import java.util.function.Supplier;
 
 public class ParameterAdjustmentCommand implements Runnable {
 
     private static final Logger logger = LoggerFactory.getLogger(ParameterAdjustmentCommand.class);
 
+    private static final AnalysisMetrics metrics = AnalysisMetrics.getInstance();
+
     private static final String title = "Parameter demo";
 
+    /**
+     * Minimum interval between starting analyses of the same image while a parameter is being adjusted.
+     */
+    private static final long MIN_ADJUSTING_INTERVAL_MILLIS = 50;
+
     private QuPathGUI qupath;
 
     private Stage stage;
 
     private ParameterChangeListener parameterChangeListener = this::parameterChanged;
 
-    private Map<ImageData<BufferedImage>, Future<?>> runningTasks = new ConcurrentHashMap<>();
+    private ChangeListener<ImageData<BufferedImage>> imageDataListener = this::imageDataChanged;
+    private ChangeListener<ImageData<BufferedImage>> activeImageListener = (v, o, n) -> scheduler.setActiveImage(n);
 
     private Comparator<ImageData<?>> comparator = Comparator.comparing(ParameterAdjustmentCommand::getName)
             .thenComparing(ImageData::getServerPath);
 
-    private ObservableMap<ImageData<?>, AnalysisResult> resultsMap = FXCollections.observableMap(
-            new TreeMap<>(comparator));
+    private ResultsRenderer renderer;
+
+    private AnalysisScheduler scheduler;
+
+    private final HierarchyUpdater hierarchyUpdater = new HierarchyUpdater();
 
-    private ExecutorService pool;
+    /**
+     * Show a quick, low-resolution result for each image before the final result is available.
+     */
+    private volatile boolean showPreviews = true;
 
     private XYChart.Series<Number, String> seriesCounts = new XYChart.Series<>();
     private XYChart.Series<Number, String> seriesMeanArea = new XYChart.Series<>();
@@ -105,13 +121,17 @@ public class ParameterAdjustmentCommand implements Runnable {
 
         this.runner = analysisRunnerSupplier.get();
         Objects.requireNonNull(runner, "Analysis runner cannot be null");
-        pool = Executors.newCachedThreadPool(ThreadTools.createThreadFactory("parameter-test", true));
+        scheduler = new AnalysisScheduler(this::runAnalysis, MIN_ADJUSTING_INTERVAL_MILLIS);
+        scheduler.setActiveImage(qupath.getImageData());
+        qupath.imageDataProperty().addListener(activeImageListener);
+        scheduler.startSpeculation(this::getSpeculativeParameters, this::runSpeculativeAnalysis);
 
         var params = runner.createParameterList();
 
         var parameterPanel = new ParameterPanelFX(params);
-        parameterPanel.addParameterChangeListener(parameterChangeListener);
+        // Let the runner adjust values (e.g. snapping to a step) before the change is analysed
         runner.updateParameterPane(parameterPanel);
+        parameterPanel.addParameterChangeListener(parameterChangeListener);
 
         BorderPane parameterPane = new BorderPane(parameterPanel.getPane());
         parameterPane.setPadding(new Insets(5.0));
@@ -124,36 +144,76 @@ public class ParameterAdjustmentCommand implements Runnable {
 
         var table = createTable();
         var chartPane = createBarChartPane();
+        renderer = new ResultsRenderer(comparator, ParameterAdjustmentCommand::getName, table.getItems());
+        renderer.addSeries(seriesCounts, r -> r.numObjectsProperty().get());
+        renderer.addSeries(seriesMeanArea, r -> r.meanAreaProperty().get());
+        renderer.addSeries(seriesMeanIntensity, r -> r.meanIntensityProperty().get());
+        var comparisonPane = new ChoiceComparisonPane(() -> this.runner, qupath::getImageData, params);
+        var metricsPane = new MetricsPane();
+        var tabMetrics = new Tab("Metrics", metricsPane.getPane());
+        tabMetrics.setOnSelectionChanged(e -> {
+            if (tabMetrics.isSelected())
+                metricsPane.update();
+        });
 
         TabPane tabPane = new TabPane();
         tabPane.getTabs().setAll(
                 new Tab("Table", table),
-                new Tab("Charts", chartPane)
+                new Tab("Charts", chartPane),
+                tabMetrics,
+                new Tab("Compare", comparisonPane.getPane())
         );
         tabPane.setTabClosingPolicy(TabPane.TabClosingPolicy.UNAVAILABLE);
         tabPane.setSide(Side.BOTTOM);
         pane.setCenter(tabPane);
         pane.setPadding(new Insets(5.0));
 
-        resultsMap.addListener((MapChangeListener<ImageData<?>, AnalysisResult>) change -> {
-            table.getItems().setAll(resultsMap.values());
-            updateBarCharts();
-        });
+        var labelStatus = new Label();
+        var cbPreviews = new CheckBox("Show previews");
+        cbPreviews.setSelected(showPreviews);
+        cbPreviews.selectedProperty().addListener((v, o, n) -> showPreviews = n);
+        var cbSpeculate = new CheckBox("Precompute");
+        cbSpeculate.setTooltip(new Tooltip("Compute results for nearby parameter values in the background"));
+        cbSpeculate.setSelected(true);
+        cbSpeculate.selectedProperty().addListener((v, o, n) -> scheduler.setSpeculationEnabled(n));
+        var statusPane = new BorderPane(labelStatus);
+        BorderPane.setAlignment(labelStatus, Pos.CENTER_LEFT);
+        var paneOptions = new HBox(5.0, cbPreviews, cbSpeculate);
+        paneOptions.setAlignment(Pos.CENTER_RIGHT);
+        statusPane.setRight(paneOptions);
+        statusPane.setPadding(new Insets(5.0));
+        pane.setBottom(statusPane);
+        var statusTimeline = new Timeline(new KeyFrame(Duration.millis(250), e -> {
+            updateStatus(labelStatus);
+            if (tabMetrics.isSelected())
+                metricsPane.update();
+        }));
+        statusTimeline.setCycleCount(Timeline.INDEFINITE);
+        statusTimeline.play();
 
         Stage stage = new Stage();
         stage.initOwner(qupath.getStage());
         stage.setTitle(title);
         stage.setScene(new Scene(pane));
 
-        submitAnalysisTasks(params);
+        submitAnalysisTasks(params, false);
+
+        for (var viewer : qupath.getViewers())
+            viewer.imageDataProperty().addListener(imageDataListener);
 
         stage.setOnCloseRequest(e -> {
             parameterPanel.removeParameterChangeListener(parameterChangeListener);
+            for (var viewer : qupath.getViewers())
+                viewer.imageDataProperty().removeListener(imageDataListener);
+            qupath.imageDataProperty().removeListener(activeImageListener);
             stage.close();
             this.stage = null;
-            resultsMap.clear();
+            statusTimeline.stop();
+            renderer.clear();
             this.runner = null;
-            pool.shutdownNow();
+            scheduler.shutdown();
+            comparisonPane.shutdown();
+            hierarchyUpdater.clear();
         });
         return stage;
     }
@@ -195,6 +255,9 @@ public class ParameterAdjustmentCommand implements Runnable {
         var colTitle = new TableColumn<AnalysisResult, String>("Image");
         colTitle.setCellValueFactory(v -> v.getValue().titleProperty());
 
+        var colQuality = new TableColumn<AnalysisResult, String>("Quality");
+        colQuality.setCellValueFactory(v -> new ReadOnlyStringWrapper(v.getValue().isPreview() ? "Preview" : "Final"));
+
         var colNumObjects = new TableColumn<AnalysisResult, Number>("Count");
         colNumObjects.setCellValueFactory(v -> v.getValue().numObjectsProperty());
 
@@ -207,81 +270,100 @@ public class ParameterAdjustmentCommand implements Runnable {
         colMeanIntensity.setCellFactory(v -> new NumberTableCell<>(df));
 
         table.getColumns().setAll(
-                colTitle, colNumObjects, colMeanArea, colMeanIntensity
+                colTitle, colQuality, colNumObjects, colMeanArea, colMeanIntensity
         );
         table.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
         table.setPadding(new Insets(5.0));
         return table;
     }
 
-    private void updateBarCharts() {
-        List<XYChart.Data<Number, String>> counts = new ArrayList<>();
-        List<XYChart.Data<Number, String>> areas = new ArrayList<>();
-        List<XYChart.Data<Number, String>> intensities = new ArrayList<>();
-        int maxCounts = 0;
-        double maxAreas = 0;
-        double maxIntensities = 0;
-        for (var entry : resultsMap.entrySet()) {
-            var imageData = entry.getKey();
-            var result = entry.getValue();
-            var title = getName(imageData);
-            var numObjects = result.numObjectsProperty().get();
-            maxCounts = Math.max(maxCounts, numObjects);
-            counts.add(new XYChart.Data<>(numObjects, title));
-
-            var meanArea = result.meanAreaProperty().get();
-            maxAreas = Math.max(maxAreas, meanArea);
-            areas.add(new XYChart.Data<>(meanArea, title));
-
-            var meanIntensity = result.meanIntensityProperty().get();
-            maxIntensities = Math.max(maxIntensities, meanIntensity);
-            intensities.add(new XYChart.Data<>(meanIntensity, title));
+    private void imageDataChanged(ObservableValue<? extends ImageData<BufferedImage>> observable,
+                                  ImageData<BufferedImage> oldValue, ImageData<BufferedImage> newValue) {
+        if (oldValue == null || runner == null)
+            return;
+        // Only release the image if it isn't still open in another viewer
+        for (var viewer : qupath.getViewers()) {
+            if (viewer.getImageData() == oldValue)
+                return;
         }
-        seriesCounts.getData().setAll(counts);
-        Utils.setBarColors(seriesCounts);
-        Utils.setDataTooltipToXValue(seriesCounts);
-
-        seriesMeanArea.getData().setAll(areas);
-        Utils.setBarColors(seriesMeanArea);
-        Utils.setDataTooltipToXValue(seriesMeanArea);
+        scheduler.cancel(oldValue);
+        hierarchyUpdater.remove(oldValue);
+        renderer.remove(oldValue);
+        runner.imageClosed(oldValue);
+    }
 
-        seriesMeanIntensity.getData().setAll(intensities);
-        Utils.setBarColors(seriesMeanIntensity);
-        Utils.setDataTooltipToXValue(seriesMeanIntensity);
+    private void updateStatus(Label label) {
+        label.setText(String.format("Queued: %d   Running: %d   Dropped: %d   Cancelled: %d   Completed: %d   Precomputed: %d (%.0f%% hits)",
+                scheduler.getQueueDepth(), scheduler.getRunningCount(), scheduler.getDroppedCount(),
+                scheduler.getCancelledCount(), scheduler.getCompletedCount(),
+                scheduler.getSpeculativeCompletedCount(), scheduler.getSpeculationHitRate() * 100));
     }
 
 
     private void parameterChanged(ParameterList parameterList, String key, boolean isAdjusting) {
-        submitAnalysisTasks(parameterList.duplicate());
+        submitAnalysisTasks(parameterList.duplicate(), isAdjusting);
     }
 
-    private void submitAnalysisTasks(ParameterList parameterList) {
+    private void submitAnalysisTasks(ParameterList parameterList, boolean isAdjusting) {
         for (var viewer : qupath.getViewers()) {
-            submitAnalysisTask(viewer.getImageData(), parameterList);
+            var imageData = viewer.getImageData();
+            if (imageData != null)
+                scheduler.submit(imageData, parameterList, isAdjusting);
         }
     }
 
-    private void submitAnalysisTask(ImageData<BufferedImage> imageData, ParameterList parameterList) {
-        if (imageData == null)
+    /**
+     * Run the analysis for a single image, and show the result.
+     * If previews are enabled, a quick preview is shown first (if the runner supports it).
+     * This is called by the scheduler from a worker thread.
+     */
+    private void runAnalysis(ImageData<BufferedImage> imageData, ParameterList parameterList) {
+        var runner = this.runner;
+        if (runner == null)
             return;
-        var future = pool.submit(() -> {
-            try {
-                var result = runner.runAnalysis(imageData, parameterList);
-                if (result == null)
-                    return;
-                Platform.runLater(() -> {
-                    imageData.getHierarchy().clearAll();
-                    imageData.getHierarchy().addObjects(result.getObjects());
-                    resultsMap.put(imageData, result);
-                });
-            } catch (Exception e) {
-                logger.error(e.getMessage(), e);
-            }
-        });
-        var previous = runningTasks.put(imageData, future);
-        if (previous != null && !previous.isDone()) {
-            previous.cancel(true);
+        if (showPreviews) {
+            var preview = runner.runPreview(imageData, parameterList);
+            if (scheduler.isCancelled())
+                return;
+            if (preview != null)
+                showResult(imageData, preview);
+        }
+        var result = runner.runAnalysis(imageData, parameterList);
+        if (result == null)
+            return;
+        showResult(imageData, result);
+    }
+
+    private List<ParameterList> getSpeculativeParameters(ParameterList parameterList) {
+        var runner = this.runner;
+        return runner == null ? Collections.emptyList() : runner.getSpeculativeParameters(parameterList);
+    }
+
+    /**
+     * Run the analysis for a single image so that the result is cached, without showing it.
+     * This is called by the scheduler from a low-priority thread.
+     */
+    private boolean runSpeculativeAnalysis(ImageData<BufferedImage> imageData, ParameterList parameterList) {
+        var runner = this.runner;
+        return runner != null && runner.runAnalysis(imageData, parameterList) != null;
+    }
+
+    private void showResult(ImageData<BufferedImage> imageData, AnalysisResult result) {
+        // Results may create their objects lazily, so make sure this happens here rather than on the UI thread -
+        // and work out the hierarchy changes here too, so that the UI thread only needs to apply them
+        List<PathObject> pathObjects;
+        try {
+            pathObjects = result.getObjects();
+        } catch (CancellationException e) {
+            return;
+        }
+        if (scheduler.isCancelled())
+            return;
+        try (var timer = metrics.startTimer("Update hierarchy")) {
+            hierarchyUpdater.apply(imageData, pathObjects);
         }
+        // The table and charts are updated at the next animation frame, along with any other results that arrive
+        renderer.post(imageData, result);
     }
 
 }
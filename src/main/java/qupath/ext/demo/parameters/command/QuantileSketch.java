@@ -0,0 +1,271 @@
+package qupath.ext.demo.parameters.command;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * A streaming sketch to estimate quantiles of a sequence of values using a fixed amount of memory, regardless of
+ * how many values are added.
+ * <p>
+ * This follows the KLL sketch of Karnin, Lang and Liberty: values are added to a buffer at level 0, and whenever a
+ * level is full it is sorted and every other value (starting at a random offset) is promoted to the next level,
+ * where it represents twice as many values. Lower levels have geometrically smaller capacities, so the sketch holds
+ * about {@code 3k} values plus a few per level. The rank error of a quantile is below about {@code 2.6 / k} with
+ * high probability (99%), i.e. about 1.3% for the default {@code k = 200}.
+ * <p>
+ * The exact minimum and maximum are also retained.
+ * This class is not thread-safe.
+ */
+public final class QuantileSketch {
+
+    private static final int DEFAULT_K = 200;
+
+    /**
+     * Minimum capacity of any level.
+     */
+    private static final int MIN_CAPACITY = 8;
+
+    /**
+     * Ratio between the capacities of neighbouring levels.
+     */
+    private static final double CAPACITY_RATIO = 2.0 / 3.0;
+
+    private final int k;
+    private final SplittableRandom random;
+
+    private double[][] levels;
+    private int[] sizes;
+    private int[] capacities;
+
+    private long count;
+    private double min;
+    private double max;
+
+    /**
+     * Create a sketch with the default accuracy.
+     */
+    public QuantileSketch() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * Create a sketch with a specified accuracy.
+     * @param k the capacity of the top level; larger values give smaller errors, but use more memory
+     */
+    public QuantileSketch(int k) {
+        this(k, new SplittableRandom());
+    }
+
+    /**
+     * Create a sketch with a specified accuracy and random seed, so that estimates are reproducible.
+     * @param k the capacity of the top level; larger values give smaller errors, but use more memory
+     * @param seed the seed used to choose which values are retained when a level is compacted
+     */
+    public QuantileSketch(int k, long seed) {
+        this(k, new SplittableRandom(seed));
+    }
+
+    private QuantileSketch(int k, SplittableRandom random) {
+        if (k < MIN_CAPACITY)
+            throw new IllegalArgumentException("k must be at least " + MIN_CAPACITY);
+        this.k = k;
+        this.random = random;
+        reset();
+    }
+
+    /**
+     * Remove all values.
+     */
+    public void reset() {
+        levels = new double[][] {new double[MIN_CAPACITY]};
+        sizes = new int[1];
+        updateCapacities();
+        count = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Add a value. Values that are NaN are ignored.
+     * @param value
+     */
+    public void add(double value) {
+        if (Double.isNaN(value))
+            return;
+        count++;
+        if (value < min)
+            min = value;
+        if (value > max)
+            max = value;
+        append(0, value);
+        if (sizes[0] >= capacities[0])
+            compress();
+    }
+
+    /**
+     * Add all the values from another sketch, e.g. to summarize values computed separately.
+     * The other sketch is unchanged.
+     * @param other
+     */
+    public void merge(QuantileSketch other) {
+        if (other == this)
+            throw new IllegalArgumentException("Cannot merge a sketch with itself");
+        if (other.count == 0)
+            return;
+        for (int h = 0; h < other.levels.length; h++) {
+            for (int i = 0; i < other.sizes[h]; i++)
+                append(h, other.levels[h][i]);
+        }
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        compress();
+    }
+
+    /**
+     * Get the number of values added.
+     * @return
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Query whether any values have been added.
+     * @return
+     */
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Get the smallest value added, or NaN if the sketch is empty.
+     * @return
+     */
+    public double getMin() {
+        return count == 0 ? Double.NaN : min;
+    }
+
+    /**
+     * Get the largest value added, or NaN if the sketch is empty.
+     * @return
+     */
+    public double getMax() {
+        return count == 0 ? Double.NaN : max;
+    }
+
+    /**
+     * Estimate a quantile.
+     * The time required depends upon the size of the sketch, but not on the number of values that have been added.
+     * @param quantile the quantile, between 0 and 1 (e.g. 0.5 for the median)
+     * @return an estimate of the quantile, or NaN if the sketch is empty
+     */
+    public double getQuantile(double quantile) {
+        if (!(quantile >= 0 && quantile <= 1))
+            throw new IllegalArgumentException("Quantile must be between 0 and 1, but was " + quantile);
+        if (count == 0)
+            return Double.NaN;
+        if (quantile == 0)
+            return min;
+        if (quantile == 1)
+            return max;
+
+        // Merge the sorted levels, accumulating weights until the target rank is reached
+        long totalWeight = 0;
+        for (int h = 0; h < levels.length; h++) {
+            Arrays.sort(levels[h], 0, sizes[h]);
+            totalWeight += (long) sizes[h] << h;
+        }
+        double target = quantile * totalWeight;
+        int[] cursors = new int[levels.length];
+        long weight = 0;
+        while (true) {
+            int next = -1;
+            for (int h = 0; h < levels.length; h++) {
+                if (cursors[h] < sizes[h] && (next < 0 || levels[h][cursors[h]] < levels[next][cursors[next]]))
+                    next = h;
+            }
+            if (next < 0)
+                return max;
+            double value = levels[next][cursors[next]++];
+            weight += 1L << next;
+            if (weight >= target)
+                return value;
+        }
+    }
+
+    /**
+     * Get the number of values currently stored by the sketch.
+     * @return
+     */
+    public int getRetainedCount() {
+        int n = 0;
+        for (int size : sizes)
+            n += size;
+        return n;
+    }
+
+    /**
+     * Update the capacity of each level, which depends upon the number of levels above it.
+     */
+    private void updateCapacities() {
+        capacities = new int[levels.length];
+        for (int h = 0; h < levels.length; h++) {
+            int depth = levels.length - 1 - h;
+            capacities[h] = Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(CAPACITY_RATIO, depth)));
+        }
+    }
+
+    private void append(int level, double value) {
+        while (level >= levels.length) {
+            levels = Arrays.copyOf(levels, levels.length + 1);
+            levels[levels.length - 1] = new double[MIN_CAPACITY];
+            sizes = Arrays.copyOf(sizes, sizes.length + 1);
+            updateCapacities();
+        }
+        double[] items = levels[level];
+        if (sizes[level] == items.length)
+            items = levels[level] = Arrays.copyOf(items, items.length * 2);
+        items[sizes[level]++] = value;
+    }
+
+    /**
+     * Compact every level that is at or over capacity, from the bottom up.
+     */
+    private void compress() {
+        for (int h = 0; h < levels.length; h++) {
+            if (sizes[h] >= capacities[h])
+                compact(h);
+        }
+    }
+
+    /**
+     * Sort a level and promote every other value to the next level, keeping one value if the size is odd.
+     */
+    private void compact(int level) {
+        double[] items = levels[level];
+        int size = sizes[level];
+        Arrays.sort(items, 0, size);
+        int nPairs = size / 2;
+        int offset = random.nextBoolean() ? 1 : 0;
+        for (int i = 0; i < nPairs; i++)
+            append(level + 1, items[2 * i + offset]);
+        double last = items[size - 1];
+        // Release storage that is no longer needed, since capacities shrink as levels are added above
+        int capacity = capacities[level];
+        if (items.length > 2 * capacity)
+            levels[level] = new double[capacity];
+        if (size % 2 != 0) {
+            levels[level][0] = last;
+            sizes[level] = 1;
+        } else {
+            sizes[level] = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "QuantileSketch[count=" + count + ", retained=" + getRetainedCount() + ", levels=" + levels.length + "]";
+    }
+
+}
@@ -0,0 +1,268 @@
+package qupath.ext.demo.parameters.command;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.scene.Node;
+import javafx.scene.chart.XYChart;
+import javafx.scene.control.Tooltip;
+import qupath.ext.demo.parameters.command.runners.AnalysisMetrics;
+import qupath.lib.images.ImageData;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/**
+ * Helper to show analysis results in a table and bar charts, with one row and one bar per image.
+ * <p>
+ * Results can be posted from any thread. They are gathered until the next animation frame, when only the latest
+ * result for each image is applied - so any number of results arriving between frames cost a single update.
+ * Existing table rows and bars are updated in place; the nodes, styles and tooltips for a bar are only created when
+ * the bar first appears, and each image keeps the same bar color for as long as it is shown.
+ * <p>
+ * Images that are equal according to the comparator used to order them (e.g. the same image opened twice) share a row.
+ */
+class ResultsRenderer {
+
+    private static final AnalysisMetrics metrics = AnalysisMetrics.getInstance();
+
+    private final Function<ImageData<?>, String> namer;
+
+    private final List<AnalysisResult> items;
+    private final List<XYChart.Series<Number, String>> series;
+    private final List<Function<AnalysisResult, Number>> values;
+
+    /**
+     * Latest results that haven't been shown yet; a null value means the image should be removed.
+     * Access is synchronized on the map.
+     */
+    private final Map<ImageData<?>, AnalysisResult> pending = new LinkedHashMap<>();
+    private boolean isScheduled = false;
+
+    /**
+     * Images that are shown, in the same order as the table rows and bars (only accessed on the FX thread).
+     * Row indices are found from the map itself, so that they always agree with the order of the keys.
+     */
+    private final TreeMap<ImageData<?>, Row> rows;
+    private int nextColor = 1;
+
+    // Created when first needed, so that the renderer can be created before the FX toolkit is running
+    private AnimationTimer frameTimer;
+
+    /**
+     * Create a renderer.
+     * @param comparator comparator used to order the images
+     * @param namer function to get the name shown for each image
+     * @param items the table items to update
+     */
+    ResultsRenderer(Comparator<ImageData<?>> comparator, Function<ImageData<?>, String> namer, List<AnalysisResult> items) {
+        this.namer = namer;
+        this.items = items;
+        this.rows = new TreeMap<>(comparator);
+        this.series = new ArrayList<>();
+        this.values = new ArrayList<>();
+    }
+
+    /**
+     * Add a bar chart series, which will have one bar per image.
+     * This should be called before any results are posted.
+     * @param series the series to update
+     * @param value function to get the bar value from a result
+     */
+    void addSeries(XYChart.Series<Number, String> series, Function<AnalysisResult, Number> value) {
+        this.series.add(series);
+        this.values.add(value);
+    }
+
+    /**
+     * Show a result for an image, replacing any earlier result at the next animation frame.
+     * This may be called from any thread.
+     * @param imageData
+     * @param result
+     */
+    void post(ImageData<?> imageData, AnalysisResult result) {
+        Objects.requireNonNull(result);
+        enqueue(imageData, result);
+    }
+
+    /**
+     * Remove the result for an image at the next animation frame.
+     * This may be called from any thread.
+     * @param imageData
+     */
+    void remove(ImageData<?> imageData) {
+        enqueue(imageData, null);
+    }
+
+    private void enqueue(ImageData<?> imageData, AnalysisResult result) {
+        synchronized (pending) {
+            pending.put(imageData, result);
+            if (isScheduled)
+                return;
+            isScheduled = true;
+        }
+        if (Platform.isFxApplicationThread())
+            startFrames();
+        else
+            Platform.runLater(this::startFrames);
+    }
+
+    private void startFrames() {
+        if (frameTimer == null) {
+            frameTimer = new AnimationTimer() {
+                @Override
+                public void handle(long now) {
+                    render();
+                }
+            };
+        }
+        frameTimer.start();
+    }
+
+    private void stopFrames() {
+        if (frameTimer != null)
+            frameTimer.stop();
+    }
+
+    /**
+     * Remove all results immediately, discarding any that haven't been shown.
+     * This must be called on the FX thread.
+     */
+    void clear() {
+        synchronized (pending) {
+            pending.clear();
+            isScheduled = false;
+            stopFrames();
+        }
+        rows.clear();
+        items.clear();
+        for (var s : series)
+            s.getData().clear();
+    }
+
+    private void render() {
+        Map<ImageData<?>, AnalysisResult> changes;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                // Stop after a frame with nothing to do, so that an idle window doesn't request pulses
+                isScheduled = false;
+                stopFrames();
+                return;
+            }
+            changes = new LinkedHashMap<>(pending);
+            pending.clear();
+        }
+        applyChanges(changes);
+    }
+
+    /**
+     * Update the rows for the images in a map, removing the rows for images with a null result.
+     * This must be called on the FX thread.
+     * @param changes
+     */
+    void applyChanges(Map<? extends ImageData<?>, AnalysisResult> changes) {
+        try (var timer = metrics.startTimer("Render frame")) {
+            for (var entry : changes.entrySet()) {
+                if (entry.getValue() == null)
+                    removeRow(entry.getKey());
+                else
+                    updateRow(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void updateRow(ImageData<?> imageData, AnalysisResult result) {
+        var row = rows.get(imageData);
+        if (row != null) {
+            int ind = indexOf(imageData);
+            items.set(ind, result);
+            for (int i = 0; i < series.size(); i++)
+                row.setValue(i, values.get(i).apply(result));
+            return;
+        }
+        row = new Row(namer.apply(imageData), nextColor++);
+        rows.put(imageData, row);
+        int ind = indexOf(imageData);
+        items.add(ind, result);
+        for (int i = 0; i < series.size(); i++)
+            series.get(i).getData().add(ind, row.createData(values.get(i).apply(result)));
+    }
+
+    private void removeRow(ImageData<?> imageData) {
+        if (!rows.containsKey(imageData))
+            return;
+        int ind = indexOf(imageData);
+        rows.remove(imageData);
+        items.remove(ind);
+        for (var s : series)
+            s.getData().remove(ind);
+    }
+
+    /**
+     * Get the index of the row for an image that is shown.
+     */
+    private int indexOf(ImageData<?> imageData) {
+        return rows.headMap(imageData).size();
+    }
+
+
+    /**
+     * The bars for one image, one for each series.
+     */
+    private static class Row {
+
+        private final String name;
+        private final int color;
+        private final List<XYChart.Data<Number, String>> data = new ArrayList<>();
+        // Tooltips are only created when the chart creates the node for a bar
+        private final List<Tooltip> tooltips = new ArrayList<>();
+
+        private Row(String name, int color) {
+            this.name = name;
+            this.color = color;
+        }
+
+        private XYChart.Data<Number, String> createData(Number value) {
+            var item = new XYChart.Data<Number, String>(value, name);
+            int ind = data.size();
+            data.add(item);
+            tooltips.add(null);
+            // The chart creates the node when the data is added, but may not have done so yet
+            if (item.getNode() != null)
+                styleNode(ind, item.getNode());
+            else
+                item.nodeProperty().addListener((v, o, n) -> {
+                    if (n != null)
+                        styleNode(ind, n);
+                });
+            return item;
+        }
+
+        private void styleNode(int ind, Node node) {
+            node.setStyle("-fx-background-color: CHART_COLOR_" + (color % 8) + ";");
+            var tooltip = tooltips.get(ind);
+            if (tooltip == null) {
+                tooltip = new Tooltip(Objects.toString(data.get(ind).getXValue()));
+                tooltips.set(ind, tooltip);
+            }
+            Tooltip.install(node, tooltip);
+        }
+
+        private void setValue(int ind, Number value) {
+            var item = data.get(ind);
+            if (Objects.equals(item.getXValue(), value))
+                return;
+            item.setXValue(value);
+            var tooltip = tooltips.get(ind);
+            if (tooltip != null)
+                tooltip.setText(Objects.toString(value));
+        }
+
+    }
+
+}
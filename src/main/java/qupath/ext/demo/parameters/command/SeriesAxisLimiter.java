@@ -1,32 +1,39 @@
 package qupath.ext.demo.parameters.command;
 
+import javafx.application.Platform;
+import javafx.beans.value.ChangeListener;
 import javafx.collections.ListChangeListener;
 import javafx.scene.chart.NumberAxis;
 import javafx.scene.chart.XYChart;
 import javafx.util.converter.NumberStringConverter;
 
-import java.util.Collection;
-import java.util.Comparator;
 import java.util.List;
-import java.util.Objects;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
 /**
  * Helper class to compute the x-axis upper limit for a series.
  * This is intended for use with a horizontal bar chart, where it attempts to set the upper limit based upon the maximum
  * while also recovering in the event that an extreme value occurs (i.e. to avoid getting stuck with unusable limits).
+ * <p>
+ * The limit is updated when data are added or removed, and when the value of existing data changes.
+ * Any changes made together on the FX thread result in a single update.
  */
 class SeriesAxisLimiter {
 
-    private static int MAX_VALUES = 1000;
-
     private final XYChart.Series<Number, String> series;
 
-    private final SortedSet<Double> values = new TreeSet<>(Comparator.reverseOrder());
+    /**
+     * All values that have been shown, so the limit reflects the history of the series and not only its current data.
+     */
+    private final QuantileSketch values = new QuantileSketch();
 
     private double percentile;
 
+    private final ChangeListener<Number> valueListener = (v, o, n) -> {
+        addValue(n);
+        requestUpdate();
+    };
+    private boolean updateRequested = false;
+
     SeriesAxisLimiter(XYChart.Series<Number, String> series) {
         this(series, 5.0);
     }
@@ -38,6 +45,33 @@ class SeriesAxisLimiter {
     }
 
     private void dataChanged(ListChangeListener.Change<? extends XYChart.Data<Number, String>> c) {
+        while (c.next()) {
+            for (var data : c.getRemoved())
+                data.XValueProperty().removeListener(valueListener);
+            for (var data : c.getAddedSubList()) {
+                data.XValueProperty().addListener(valueListener);
+                addValue(data.getXValue());
+            }
+        }
+        requestUpdate();
+    }
+
+    private void addValue(Number value) {
+        if (value != null)
+            values.add(value.doubleValue());
+    }
+
+    private void requestUpdate() {
+        if (updateRequested)
+            return;
+        updateRequested = true;
+        Platform.runLater(this::updateAxis);
+    }
+
+    private void updateAxis() {
+        updateRequested = false;
+        if (series.getChart() == null)
+            return;
         double max = getMax(series.getData()) * 1.1;
         NumberAxis axis = (NumberAxis) series.getChart().getXAxis();
         if (!Double.isFinite(max))
@@ -47,7 +81,6 @@ class SeriesAxisLimiter {
             Number value = data.getXValue();
             if (value != null) {
                 double doubleVal = value.doubleValue();
-                values.add(doubleVal);
                 if (doubleVal > currentMax)
                     currentMax = doubleVal;
             }
@@ -58,44 +91,25 @@ class SeriesAxisLimiter {
         axis.setUpperBound(upperBound);
         axis.setTickLabelFormatter(new NumberStringConverter("0.#"));
         axis.setTickUnit(upperBound / 10.0);
-
-        // Drop samples to avoid performance issues
-        while (values.size() > MAX_VALUES)
-            dropSamples(values, upperBound);
     }
 
+    /**
+     * Get the value exceeded by the specified percentage of values, rounded up to one significant figure.
+     */
     private double getPreferredUpperBound(double percentile) {
         if (values.isEmpty())
             return 0;
 
-        int ind = (int) (percentile / 100.0 * values.size());
-        int count = 0;
-        for (Double d : values) {
-            if (count == ind) {
-                double corrected = Math.pow(10.0, Math.floor(Math.log10(d)));
-                double result = Math.ceil(d / corrected) * corrected;
-//                System.err.println("Corrected: " + corrected + ", result: " + result + ", d: " + d);
-                return result;
-            }
-            count++;
-        }
-        return values.last();
+        double d = values.getQuantile(1.0 - percentile / 100.0);
+        if (!(d > 0))
+            return 0;
+        double corrected = Math.pow(10.0, Math.floor(Math.log10(d)));
+        return Math.ceil(d / corrected) * corrected;
     }
 
     private Double getMax(List<? extends XYChart.Data<Number, String>> data) {
         return data.stream().mapToDouble(d -> d.getXValue().doubleValue()).max().orElse(Double.NaN);
     }
 
-    private static void dropSamples(Collection<Double> values, Double keepValue) {
-        var iterator = values.iterator();
-        int count = 0;
-        while (iterator.hasNext()) {
-            Double val = iterator.next();
-            if (count % 2 != 0 && !Objects.equals(val, keepValue))
-                iterator.remove();
-            count++;
-        }
-    }
-
 
 }
@@ -0,0 +1,261 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * A thread-safe cache with a memory budget, for storing intermediate and final analysis results.
+ * <p>
+ * Each entry is weighted by its estimated size in bytes. When the total weight exceeds the budget,
+ * the least recently used entries are evicted.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class AnalysisCache<K, V> {
+
+    private final long maxWeight;
+
+    private final ToLongFunction<? super V> weigher;
+
+    private final Map<K, WeightedValue<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long weight = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Create a new cache.
+     * @param maxWeight the maximum total weight of all entries, typically in bytes
+     * @param weigher function to estimate the weight of a value
+     */
+    public AnalysisCache(long maxWeight, ToLongFunction<? super V> weigher) {
+        if (maxWeight <= 0)
+            throw new IllegalArgumentException("Maximum cache weight must be > 0");
+        this.maxWeight = maxWeight;
+        this.weigher = Objects.requireNonNull(weigher);
+    }
+
+    /**
+     * Get a value from the cache.
+     * @param key
+     * @return the cached value, or null if no value is cached for the key
+     */
+    public V get(K key) {
+        synchronized (map) {
+            var entry = map.get(key);
+            if (entry == null) {
+                misses.increment();
+                return null;
+            }
+            hits.increment();
+            return entry.value;
+        }
+    }
+
+    /**
+     * Query whether a value is cached for a key.
+     * This does not affect hit or miss counts, or the order in which entries are evicted.
+     * @param key
+     * @return
+     */
+    public boolean containsKey(K key) {
+        synchronized (map) {
+            return map.containsKey(key);
+        }
+    }
+
+    /**
+     * Get a value from the cache, or compute and store it if it isn't available.
+     * <p>
+     * The value is computed without holding any lock, so that a slow computation does not block access to the
+     * cache by other threads. This means that the same value might occasionally be computed twice.
+     *
+     * @param key
+     * @param fun function to compute the value; this may return null (e.g. if interrupted), in which case nothing is stored
+     * @return the cached or computed value, or null if the computation returned null
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> fun) {
+        var value = get(key);
+        if (value != null)
+            return value;
+        value = fun.apply(key);
+        if (value != null)
+            put(key, value);
+        return value;
+    }
+
+    /**
+     * Add a value to the cache, evicting older entries if needed to remain within the memory budget.
+     * Values that are heavier than the entire budget are not stored.
+     * @param key
+     * @param value
+     */
+    public void put(K key, V value) {
+        Objects.requireNonNull(value, "Cannot cache a null value");
+        long w = Math.max(0, weigher.applyAsLong(value));
+        synchronized (map) {
+            var previous = map.remove(key);
+            if (previous != null)
+                weight -= previous.weight;
+            if (w > maxWeight) {
+                evictions.increment();
+                return;
+            }
+            map.put(key, new WeightedValue<>(value, w));
+            weight += w;
+            evictEldest();
+        }
+    }
+
+    /**
+     * Weigh a cached value again, because its size has changed since it was added (e.g. it has created data lazily),
+     * evicting older entries if needed to remain within the memory budget.
+     * This counts as a use of the value. Nothing is done if the key no longer maps to the value.
+     * @param key
+     * @param value
+     */
+    public void reweigh(K key, V value) {
+        long w = Math.max(0, weigher.applyAsLong(value));
+        synchronized (map) {
+            var previous = map.get(key);
+            if (previous == null || previous.value != value)
+                return;
+            weight -= previous.weight;
+            if (w > maxWeight) {
+                map.remove(key);
+                evictions.increment();
+                return;
+            }
+            map.put(key, new WeightedValue<>(value, w));
+            weight += w;
+            evictEldest();
+        }
+    }
+
+    /**
+     * Evict the least recently used entries until the total weight is within the budget.
+     * Must be called while synchronized on the map.
+     */
+    private void evictEldest() {
+        var iterator = map.values().iterator();
+        while (weight > maxWeight && iterator.hasNext()) {
+            var eldest = iterator.next();
+            iterator.remove();
+            weight -= eldest.weight;
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Remove all entries with keys that match a predicate.
+     * This can be used to release all data associated with an image that has been closed.
+     * @param predicate
+     * @return the number of entries that were removed
+     */
+    public int invalidateAll(Predicate<? super K> predicate) {
+        int count = 0;
+        synchronized (map) {
+            var iterator = map.entrySet().iterator();
+            while (iterator.hasNext()) {
+                var entry = iterator.next();
+                if (predicate.test(entry.getKey())) {
+                    weight -= entry.getValue().weight;
+                    iterator.remove();
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Remove all entries from the cache.
+     * Hit, miss and eviction counts are unchanged.
+     */
+    public void clear() {
+        synchronized (map) {
+            map.clear();
+            weight = 0;
+        }
+    }
+
+    /**
+     * Get the number of entries currently in the cache.
+     * @return
+     */
+    public int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    /**
+     * Get the current total weight of all entries.
+     * @return
+     */
+    public long getWeight() {
+        synchronized (map) {
+            return weight;
+        }
+    }
+
+    /**
+     * Get the maximum total weight of all entries.
+     * @return
+     */
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Get the number of requests that found a cached value.
+     * @return
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Get the number of requests that did not find a cached value.
+     * @return
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Get the number of entries that were evicted to remain within the memory budget.
+     * @return
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("AnalysisCache[entries=%d, weight=%d/%d, hits=%d, misses=%d, evictions=%d]",
+                size(), getWeight(), getMaxWeight(), getHitCount(), getMissCount(), getEvictionCount());
+    }
+
+
+    private static class WeightedValue<V> {
+
+        private final V value;
+        private final long weight;
+
+        private WeightedValue(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+
+    }
+
+}
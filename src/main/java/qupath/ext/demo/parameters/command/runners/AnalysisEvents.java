@@ -0,0 +1,92 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events for {@link AnalysisMetrics}.
+ * <p>
+ * These are kept separate so that nothing from {@code jdk.jfr} is loaded if the module isn't available
+ * (e.g. in a runtime image that doesn't include it).
+ */
+final class AnalysisEvents {
+
+    private AnalysisEvents() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    static Object beginStage(String name) {
+        var event = new StageEvent();
+        if (!event.isEnabled())
+            return null;
+        event.stage = name;
+        event.begin();
+        return event;
+    }
+
+    static void commitStage(Object event) {
+        ((StageEvent) event).commit();
+    }
+
+    static void commitLatency(String name, long nanos) {
+        var event = new LatencyEvent();
+        if (!event.isEnabled())
+            return;
+        event.name = name;
+        event.latency = nanos;
+        event.commit();
+    }
+
+    static void commitCount(String name) {
+        var event = new CountEvent();
+        if (!event.isEnabled())
+            return;
+        event.name = name;
+        event.commit();
+    }
+
+    @Name("qupath.demo.parameters.Stage")
+    @Label("Analysis Stage")
+    @Description("A stage of the analysis, timed on the thread that ran it")
+    @Category({"QuPath", "Parameter demo"})
+    static class StageEvent extends Event {
+
+        @Label("Stage")
+        String stage;
+
+    }
+
+    @Name("qupath.demo.parameters.Latency")
+    @Label("Analysis Latency")
+    @Description("A latency that isn't measured on a single thread, e.g. the time a request waited to start")
+    @Category({"QuPath", "Parameter demo"})
+    @StackTrace(false)
+    static class LatencyEvent extends Event {
+
+        @Label("Name")
+        String name;
+
+        @Label("Latency")
+        @Timespan(Timespan.NANOSECONDS)
+        long latency;
+
+    }
+
+    @Name("qupath.demo.parameters.Count")
+    @Label("Analysis Count")
+    @Description("An occurrence of something that is counted, e.g. a cache hit or a cancelled request")
+    @Category({"QuPath", "Parameter demo"})
+    @StackTrace(false)
+    static class CountEvent extends Event {
+
+        @Label("Name")
+        String name;
+
+    }
+
+}
@@ -0,0 +1,171 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies and counts recorded while running analyses, e.g. the time taken by each stage, cache hits and misses, and
+ * the number of requests that were cancelled.
+ * <p>
+ * Latencies are kept as {@link LatencyHistogram}s. Everything recorded is also emitted as a Java Flight Recorder event
+ * (in the 'QuPath' category) when a recording is running, so that sessions can be profiled offline.
+ * <p>
+ * Metrics are shared by all analyses in the JVM, and named in the order they were first recorded.
+ */
+public final class AnalysisMetrics {
+
+    private static final Logger logger = LoggerFactory.getLogger(AnalysisMetrics.class);
+
+    private static final AnalysisMetrics INSTANCE = new AnalysisMetrics();
+
+    private static final boolean JFR_AVAILABLE = ModuleLayer.boot().findModule("jdk.jfr").isPresent();
+
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final List<String> latencyNames = new CopyOnWriteArrayList<>();
+
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+    private final List<String> countNames = new CopyOnWriteArrayList<>();
+
+    private AnalysisMetrics() {
+        if (!JFR_AVAILABLE)
+            logger.debug("jdk.jfr is not available - analysis events won't be recorded");
+    }
+
+    /**
+     * Get the shared metrics.
+     * @return
+     */
+    public static AnalysisMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Start timing a stage on the current thread.
+     * The latency is recorded when the timer is closed, e.g. using try-with-resources.
+     * @param name the stage name
+     * @return
+     */
+    public Timer startTimer(String name) {
+        return new Timer(name);
+    }
+
+    /**
+     * Record a latency that has been measured elsewhere.
+     * @param name the latency name
+     * @param nanos the latency, in nanoseconds
+     */
+    public void recordLatency(String name, long nanos) {
+        getLatency(name).record(nanos);
+        if (JFR_AVAILABLE)
+            AnalysisEvents.commitLatency(name, nanos);
+    }
+
+    /**
+     * Increment a count by 1.
+     * @param name the count name
+     */
+    public void increment(String name) {
+        var adder = counts.get(name);
+        if (adder == null) {
+            adder = counts.computeIfAbsent(name, n -> {
+                countNames.add(n);
+                return new LongAdder();
+            });
+        }
+        adder.increment();
+        if (JFR_AVAILABLE)
+            AnalysisEvents.commitCount(name);
+    }
+
+    /**
+     * Get the histogram for a latency, creating it if necessary.
+     * @param name
+     * @return
+     */
+    public LatencyHistogram getLatency(String name) {
+        var histogram = latencies.get(name);
+        if (histogram != null)
+            return histogram;
+        return latencies.computeIfAbsent(name, n -> {
+            latencyNames.add(n);
+            return new LatencyHistogram();
+        });
+    }
+
+    /**
+     * Get the names of all latencies that have been recorded, in the order they were first recorded.
+     * @return
+     */
+    public List<String> getLatencyNames() {
+        return new ArrayList<>(latencyNames);
+    }
+
+    /**
+     * Get a count.
+     * @param name
+     * @return the count, or 0 if nothing has been counted with this name
+     */
+    public long getCount(String name) {
+        var adder = counts.get(name);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    /**
+     * Get the names of all counts, in the order they were first incremented.
+     * @return
+     */
+    public List<String> getCountNames() {
+        return new ArrayList<>(countNames);
+    }
+
+    /**
+     * Reset all latencies and counts to zero.
+     */
+    public void reset() {
+        for (var histogram : latencies.values())
+            histogram.reset();
+        for (var adder : counts.values())
+            adder.reset();
+    }
+
+
+    /**
+     * Timer for a single stage.
+     */
+    public final class Timer implements AutoCloseable {
+
+        private final String name;
+        private final long startTime;
+        private final Object event;
+        private boolean isClosed;
+
+        private Timer(String name) {
+            this.name = name;
+            this.event = JFR_AVAILABLE ? AnalysisEvents.beginStage(name) : null;
+            this.startTime = System.nanoTime();
+        }
+
+        /**
+         * Stop the timer and record the latency.
+         * This has no effect if the timer has already been stopped.
+         */
+        @Override
+        public void close() {
+            if (isClosed)
+                return;
+            isClosed = true;
+            getLatency(name).record(System.nanoTime() - startTime);
+            if (event != null)
+                AnalysisEvents.commitStage(event);
+        }
+
+    }
+
+}
@@ -6,6 +6,8 @@ import qupath.lib.images.ImageData;
 import qupath.lib.plugins.parameters.ParameterList;
 
 import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.List;
 
 public interface AnalysisRunner {
 
@@ -35,4 +37,52 @@ public interface AnalysisRunner {
      */
     AnalysisResult runAnalysis(ImageData<BufferedImage> imageData, ParameterList params);
 
+    /**
+     * Run the analysis without storing the result or any intermediate stages in the runner's caches.
+     * This is intended for parameters that are unlikely to be requested again (e.g. one of many noise realisations),
+     * so that they don't evict data that is needed for interactive analysis.
+     * By default, this calls {@link #runAnalysis(ImageData, ParameterList)}.
+     * @param imageData the image to analyse
+     * @param params the parameters to use
+     * @return the analysis result if run to completion, or null if it was interrupted (or failed)
+     * @implSpec this must be thread-safe.
+     */
+    default AnalysisResult runAnalysisUncached(ImageData<BufferedImage> imageData, ParameterList params) {
+        return runAnalysis(imageData, params);
+    }
+
+    /**
+     * Optionally run a quick, lower-quality version of the analysis.
+     * This can be shown while the full analysis is running, to keep the UI responsive for large images.
+     * By default, this returns null.
+     * @param imageData the image to analyse
+     * @param params the parameters to use
+     * @return a result for which {@link AnalysisResult#isPreview()} returns true, or null if no preview is available
+     *         (e.g. if it isn't supported, if it was interrupted or if the full result is already available)
+     * @implSpec this must be thread-safe, and should be considerably faster than {@link #runAnalysis(ImageData, ParameterList)}.
+     */
+    default AnalysisResult runPreview(ImageData<BufferedImage> imageData, ParameterList params) {
+        return null;
+    }
+
+    /**
+     * Get parameters that are likely to be requested soon after the specified parameters, e.g. because they differ
+     * by a single step of one value.
+     * Results for these may be computed speculatively when there are spare resources, so that they are already cached
+     * if they are requested.
+     * By default, this returns an empty list.
+     * @param params the current parameters; these should not be modified
+     * @return a list of new parameter lists, ordered with the most likely first
+     */
+    default List<ParameterList> getSpeculativeParameters(ParameterList params) {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Notify the runner that an image has been closed, so that any data cached for it can be released.
+     * By default, this does nothing.
+     * @param imageData the image that has been closed
+     */
+    default void imageClosed(ImageData<BufferedImage> imageData) {}
+
 }
@@ -0,0 +1,69 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import ij.process.AutoThresholder;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thresholds for all of ImageJ's automated methods, computed from a single histogram.
+ * <p>
+ * This follows {@code ImageProcessor.setAutoThreshold(method, true, ...)} for an image with a dark background:
+ * non-8-bit images are converted to 8-bit using their current display range, the threshold is determined from the
+ * 256-bin histogram, and the lower threshold is scaled back to the original range.
+ * The difference is that the histogram is only computed once, and the image isn't modified.
+ */
+public final class AutoThresholds {
+
+    private final Map<String, Double> thresholds;
+
+    private AutoThresholds(Map<String, Double> thresholds) {
+        this.thresholds = Collections.unmodifiableMap(thresholds);
+    }
+
+    /**
+     * Compute the lower thresholds for all methods in {@link AutoThresholder#getMethods()}.
+     * @param ip the image to threshold; this is not modified
+     * @return
+     */
+    public static AutoThresholds compute(ImageProcessor ip) {
+        boolean isByte = ip instanceof ByteProcessor;
+        double min = isByte ? 0 : ip.getMin();
+        double max = isByte ? 255 : ip.getMax();
+        int[] histogram = (isByte ? ip : ip.convertToByte(true)).getHistogram();
+
+        var thresholder = new AutoThresholder();
+        Map<String, Double> thresholds = new LinkedHashMap<>();
+        for (var name : AutoThresholder.getMethods()) {
+            // Pass a copy, in case the method modifies the histogram
+            int threshold = thresholder.getThreshold(AutoThresholder.Method.valueOf(name), histogram.clone());
+            double lower = Math.min(threshold + 1, 255);
+            if (!isByte)
+                lower = max > min ? min + (lower / 255.0) * (max - min) : min;
+            thresholds.put(name, lower);
+        }
+        return new AutoThresholds(thresholds);
+    }
+
+    /**
+     * Get the lower threshold for a method, i.e. the value {@code ip.getMinThreshold()} would return after calling
+     * {@code ip.setAutoThreshold(method, true, ImageProcessor.NO_LUT_UPDATE)}.
+     * @param method the method name
+     * @return the threshold, or NaN if the method is unknown
+     */
+    public double getThreshold(String method) {
+        return thresholds.getOrDefault(method, Double.NaN);
+    }
+
+    /**
+     * Get the thresholds for all methods, in the order of {@link AutoThresholder#getMethods()}.
+     * @return
+     */
+    public Map<String, Double> getThresholds() {
+        return thresholds;
+    }
+
+}
@@ -0,0 +1,361 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.demo.parameters.command.AnalysisResult;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServers;
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectIO;
+import qupath.lib.projects.ProjectImageEntry;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+
+/**
+ * Run an {@link AnalysisRunner} with fixed parameters over many images, without a user interface.
+ * <p>
+ * Images are read and analysed in parallel, and the results for each image are written to a {@link BatchOutput}
+ * as soon as it is complete. The number of images that have been read but not yet written is limited, and each image
+ * is released after it has been analysed - so the memory required doesn't depend on the number of images.
+ * Images are analysed with {@link AnalysisRunner#runAnalysisUncached(ImageData, ParameterList)}, so they don't fill
+ * the runner's caches, and results are written from their measurements without creating any objects.
+ * <p>
+ * This can be used from a script, e.g.
+ * <pre>{@code
+ * var runner = new ThresholdWatershedRunner()
+ * var params = runner.createParameterList()
+ * ParameterTools.setValuesFromJson(params, '{"gaussianSigma": 2.0, "autoThreshold": "Otsu"}')
+ * try (var output = BatchOutput.csv(summaryPath, objectsPath)) {
+ *     new BatchAnalysis(runner, params).threads(4).run(BatchAnalysis.ImageSource.fromProject(getProject()), output)
+ * }
+ * }</pre>
+ * or from the command line; see {@link #main(String[])}.
+ */
+public class BatchAnalysis {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchAnalysis.class);
+
+    private final AnalysisRunner runner;
+    private final ParameterList params;
+
+    private int nThreads = Runtime.getRuntime().availableProcessors();
+    private int maxPending = -1;
+
+    /**
+     * Create a batch analysis.
+     * @param runner the runner used for the analysis
+     * @param params the parameters to use for every image
+     */
+    public BatchAnalysis(AnalysisRunner runner, ParameterList params) {
+        this.runner = runner;
+        this.params = params.duplicate();
+    }
+
+    /**
+     * Set the number of threads used to read and analyse images.
+     * By default, this is the number of available processors.
+     * @param nThreads
+     * @return this analysis
+     */
+    public BatchAnalysis threads(int nThreads) {
+        if (nThreads < 1)
+            throw new IllegalArgumentException("Number of threads must be >= 1");
+        this.nThreads = nThreads;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of images that can be in progress at any time, i.e. read or analysed but not yet written.
+     * By default, this is twice the number of threads.
+     * @param maxPending
+     * @return this analysis
+     */
+    public BatchAnalysis maxPending(int maxPending) {
+        if (maxPending < 1)
+            throw new IllegalArgumentException("Maximum number of pending images must be >= 1");
+        this.maxPending = maxPending;
+        return this;
+    }
+
+    /**
+     * Run the analysis and wait for it to complete.
+     * Images that can't be read or analysed are logged and written as failures, rather than stopping the analysis.
+     * @param images the images to analyse
+     * @param output the output for results; this isn't closed when the analysis completes
+     * @return the number of images analysed successfully
+     * @throws InterruptedException if the analysis is interrupted
+     * @throws IOException if the results can't be written
+     */
+    public int run(Collection<ImageSource> images, BatchOutput output) throws InterruptedException, IOException {
+        int limit = maxPending > 0 ? maxPending : nThreads * 2;
+        logger.info("Starting batch analysis of {} images with {} threads", images.size(), nThreads);
+        long startTime = System.nanoTime();
+
+        var pool = Executors.newFixedThreadPool(nThreads, ThreadTools.createThreadFactory("batch-analysis", true));
+        CompletionService<ImageResult> completion = new ExecutorCompletionService<>(pool);
+        int nPending = 0;
+        int nWritten = 0;
+        int nSuccessful = 0;
+        try {
+            var iterator = images.iterator();
+            while (iterator.hasNext() || nPending > 0) {
+                if (iterator.hasNext() && nPending < limit) {
+                    var image = iterator.next();
+                    completion.submit(() -> analyse(image));
+                    nPending++;
+                    continue;
+                }
+                ImageResult imageResult;
+                try {
+                    imageResult = completion.take().get();
+                } catch (ExecutionException e) {
+                    // Not expected, since failures are caught when analysing each image
+                    throw new IOException("Batch analysis failed", e.getCause());
+                }
+                nPending--;
+                output.write(imageResult.name, imageResult.result, imageResult.seconds);
+                nWritten++;
+                if (imageResult.result != null)
+                    nSuccessful++;
+                logger.info("Completed {} ({}/{})", imageResult.name, nWritten, images.size());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        logger.info("Batch analysis completed for {}/{} images in {} s", nSuccessful, images.size(),
+                String.format("%.1f", (System.nanoTime() - startTime) / 1e9));
+        return nSuccessful;
+    }
+
+    private ImageResult analyse(ImageSource image) {
+        long startTime = System.nanoTime();
+        AnalysisResult result = null;
+        ImageData<BufferedImage> imageData = null;
+        try {
+            imageData = image.readImageData();
+            result = runner.runAnalysisUncached(imageData, params);
+            if (result == null)
+                logger.warn("No result for {}", image.getName());
+        } catch (Exception e) {
+            logger.warn("Unable to analyse {}: {}", image.getName(), e.getMessage(), e);
+            result = null;
+        } finally {
+            if (imageData != null) {
+                runner.imageClosed(imageData);
+                try {
+                    imageData.getServer().close();
+                } catch (Exception e) {
+                    logger.debug("Unable to close server for {}", image.getName(), e);
+                }
+            }
+        }
+        return new ImageResult(image.getName(), result, (System.nanoTime() - startTime) / 1e9);
+    }
+
+
+    /**
+     * Run a batch analysis from the command line, using a {@link ThresholdWatershedRunner}.
+     * <p>
+     * Usage: {@code BatchAnalysis [options] <image or project.qpproj>...}, where the options are
+     * <ul>
+     *     <li>{@code --params <file>} a JSON file containing parameter values, as written by
+     *     {@link ParameterList#convertToJson(ParameterList)}; any missing parameters take default values</li>
+     *     <li>{@code --csv <directory>} write {@code summary.csv} and {@code objects.csv} to a directory</li>
+     *     <li>{@code --binary <file>} write a binary file instead (see {@link BatchOutput#binary(Path)})</li>
+     *     <li>{@code --threads <n>} the number of threads to use</li>
+     * </ul>
+     * The exit code is 0 if all images were analysed, 1 if any failed and 2 for invalid arguments.
+     * @param args
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        try {
+            System.exit(runCommandLine(args));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: BatchAnalysis [--params file.json] [--csv directory | --binary file] [--threads n] <image or project.qpproj>...");
+            System.exit(2);
+        } catch (Exception e) {
+            logger.error("Batch analysis failed", e);
+            System.exit(1);
+        }
+    }
+
+    private static int runCommandLine(String[] args) throws IOException, InterruptedException {
+        Path paramsFile = null;
+        Path csvDir = null;
+        Path binaryFile = null;
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                paths.add(arg);
+                continue;
+            }
+            if (i == args.length - 1)
+                throw new IllegalArgumentException("No value for " + arg);
+            String value = args[++i];
+            switch (arg) {
+                case "--params":
+                    paramsFile = Paths.get(value);
+                    break;
+                case "--csv":
+                    csvDir = Paths.get(value);
+                    break;
+                case "--binary":
+                    binaryFile = Paths.get(value);
+                    break;
+                case "--threads":
+                    try {
+                        nThreads = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid number of threads: " + value);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (paths.isEmpty())
+            throw new IllegalArgumentException("No images specified");
+        if ((csvDir == null) == (binaryFile == null))
+            throw new IllegalArgumentException("Specify exactly one of --csv or --binary");
+
+        var runner = new ThresholdWatershedRunner(Runtime.getRuntime().maxMemory() / 4);
+        var params = runner.createParameterList();
+        if (paramsFile != null)
+            ParameterTools.setValuesFromJson(params, Files.readString(paramsFile, StandardCharsets.UTF_8));
+
+        List<ImageSource> images = new ArrayList<>();
+        for (var path : paths) {
+            if (path.toLowerCase().endsWith(".qpproj"))
+                images.addAll(ImageSource.fromProject(new File(path)));
+            else
+                images.add(ImageSource.fromPath(path));
+        }
+
+        BatchOutput output;
+        if (csvDir != null) {
+            Files.createDirectories(csvDir);
+            output = BatchOutput.csv(csvDir.resolve("summary.csv"), csvDir.resolve("objects.csv"));
+        } else {
+            output = BatchOutput.binary(binaryFile);
+        }
+        int nSuccessful;
+        try (output) {
+            nSuccessful = new BatchAnalysis(runner, params).threads(nThreads).run(images, output);
+        }
+        return nSuccessful == images.size() ? 0 : 1;
+    }
+
+
+    /**
+     * An image to include in a batch analysis, which is only read when it is about to be analysed.
+     */
+    public abstract static class ImageSource {
+
+        private final String name;
+
+        private ImageSource(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Get the name used to identify the image in the output.
+         * @return
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Read the image data.
+         * The caller is responsible for closing the server when it is no longer needed.
+         * @return
+         * @throws IOException
+         */
+        protected abstract ImageData<BufferedImage> readImageData() throws IOException;
+
+        /**
+         * Create a source for an image file or URI, which is opened with the first suitable image server.
+         * @param path
+         * @return
+         */
+        public static ImageSource fromPath(String path) {
+            return new ImageSource(path) {
+                @Override
+                protected ImageData<BufferedImage> readImageData() throws IOException {
+                    return new ImageData<>(ImageServers.buildServer(path));
+                }
+            };
+        }
+
+        /**
+         * Create a source for a project entry.
+         * @param entry
+         * @return
+         */
+        public static ImageSource fromProjectEntry(ProjectImageEntry<BufferedImage> entry) {
+            return new ImageSource(entry.getImageName()) {
+                @Override
+                protected ImageData<BufferedImage> readImageData() throws IOException {
+                    return entry.readImageData();
+                }
+            };
+        }
+
+        /**
+         * Create sources for all the images in a project.
+         * @param project
+         * @return
+         */
+        public static List<ImageSource> fromProject(Project<BufferedImage> project) {
+            List<ImageSource> list = new ArrayList<>();
+            for (var entry : project.getImageList())
+                list.add(fromProjectEntry(entry));
+            return list;
+        }
+
+        /**
+         * Create sources for all the images in a project file.
+         * @param projectFile the project file, or its directory
+         * @return
+         * @throws IOException if the project can't be read
+         */
+        public static List<ImageSource> fromProject(File projectFile) throws IOException {
+            return fromProject(ProjectIO.loadProject(projectFile, BufferedImage.class));
+        }
+
+    }
+
+    private static class ImageResult {
+
+        private final String name;
+        private final AnalysisResult result;
+        private final double seconds;
+
+        private ImageResult(String name, AnalysisResult result, double seconds) {
+            this.name = name;
+            this.result = result;
+            this.seconds = seconds;
+        }
+
+    }
+
+}
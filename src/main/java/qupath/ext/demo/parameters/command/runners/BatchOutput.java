@@ -0,0 +1,48 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import qupath.ext.demo.parameters.command.AnalysisResult;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Destination for the results of a {@link BatchAnalysis}, which are written as each image is completed.
+ * <p>
+ * Implementations are only called from a single thread.
+ */
+public interface BatchOutput extends Closeable {
+
+    /**
+     * Write the results for an image.
+     * @param imageName the name of the image
+     * @param result the result, or null if the image could not be analysed
+     * @param seconds the time taken to read and analyse the image
+     * @throws IOException
+     */
+    void write(String imageName, AnalysisResult result, double seconds) throws IOException;
+
+    /**
+     * Create an output that writes comma-separated values, with one file for the image summaries and another for the
+     * individual objects.
+     * @param summaryFile the file for the image summaries
+     * @param objectsFile the file for object measurements, or null if these aren't needed
+     * @return
+     * @throws IOException if the files can't be created
+     */
+    static BatchOutput csv(Path summaryFile, Path objectsFile) throws IOException {
+        return new CsvBatchOutput(summaryFile, objectsFile);
+    }
+
+    /**
+     * Create an output that writes image summaries and object measurements to a single compact binary file.
+     * See {@link BinaryBatchOutput} for the format.
+     * @param file the output file
+     * @return
+     * @throws IOException if the file can't be created
+     */
+    static BatchOutput binary(Path file) throws IOException {
+        return new BinaryBatchOutput(file);
+    }
+
+}
@@ -0,0 +1,83 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import qupath.ext.demo.parameters.command.AnalysisResult;
+import qupath.ext.demo.parameters.command.MeasurementTable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Write batch results to a compact binary file.
+ * <p>
+ * The file is written with {@link DataOutputStream}, and so uses big-endian values and modified UTF-8 strings.
+ * It starts with the bytes {@code QPBA} and an int version (currently 1), followed by one record per image:
+ * <ul>
+ *     <li>byte {@code 1}, to mark the start of an image record</li>
+ *     <li>UTF image name</li>
+ *     <li>boolean, true if the image was analysed successfully</li>
+ *     <li>double seconds taken</li>
+ * </ul>
+ * and for images analysed successfully:
+ * <ul>
+ *     <li>int object count, double mean area, double mean intensity</li>
+ *     <li>int number of measurements, followed by each measurement name as UTF</li>
+ *     <li>for each object, float centroid x, float centroid y and then a float for each measurement</li>
+ * </ul>
+ * The file ends with byte {@code 0}.
+ * <p>
+ * Object values are written directly from the {@link MeasurementTable} of each result, so no objects are created.
+ */
+class BinaryBatchOutput implements BatchOutput {
+
+    static final int VERSION = 1;
+
+    private final DataOutputStream stream;
+
+    BinaryBatchOutput(Path file) throws IOException {
+        this.stream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+        stream.writeBytes("QPBA");
+        stream.writeInt(VERSION);
+    }
+
+    @Override
+    public void write(String imageName, AnalysisResult result, double seconds) throws IOException {
+        stream.writeByte(1);
+        stream.writeUTF(imageName);
+        stream.writeBoolean(result != null);
+        stream.writeDouble(seconds);
+        if (result == null) {
+            stream.flush();
+            return;
+        }
+        var measurements = result.getMeasurements();
+        int n = measurements.size();
+        stream.writeInt(n);
+        stream.writeDouble(result.meanAreaProperty().get());
+        stream.writeDouble(result.meanIntensityProperty().get());
+
+        // Measurements are written for each image, since they aren't necessarily the same for every image
+        List<String> names = n == 0 ? List.of() : measurements.getMeasurementNames();
+        stream.writeInt(names.size());
+        for (var name : names)
+            stream.writeUTF(name);
+        for (int i = 0; i < n; i++) {
+            stream.writeFloat((float) measurements.get(MeasurementTable.CENTROID_X, i));
+            stream.writeFloat((float) measurements.get(MeasurementTable.CENTROID_Y, i));
+            for (var name : names)
+                stream.writeFloat((float) measurements.get(name, i));
+        }
+        stream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (stream) {
+            stream.writeByte(0);
+        }
+    }
+
+}
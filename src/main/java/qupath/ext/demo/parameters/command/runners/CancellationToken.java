@@ -0,0 +1,87 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import java.util.function.Supplier;
+
+/**
+ * Token to check whether a long-running stage should stop early.
+ * <p>
+ * As elsewhere in the analysis, work is cancelled by interrupting the thread that requested it. The token makes it
+ * possible to check this from other threads too, e.g. fork-join tasks or parallel streams that run on behalf of the
+ * requesting thread (and which aren't interrupted themselves).
+ * <p>
+ * Checking the token doesn't clear the interrupted status, so the stage can return early and leave the caller to
+ * decide what to do.
+ */
+public final class CancellationToken {
+
+    /**
+     * Token that work running on the current thread should use instead of the thread's own interrupted status.
+     */
+    private static final ThreadLocal<CancellationToken> BOUND = new ThreadLocal<>();
+
+    private final Thread thread;
+    private final CancellationToken parent;
+    private volatile boolean cancelled;
+
+    private CancellationToken(Thread thread, CancellationToken parent) {
+        this.thread = thread;
+        this.parent = parent;
+    }
+
+    /**
+     * Create a token that is cancelled when the current thread is interrupted.
+     * If the current thread is running work on behalf of another token (see {@link #callWith(Supplier)}), that token
+     * is returned instead.
+     * @return
+     */
+    static CancellationToken forCurrentThread() {
+        var token = BOUND.get();
+        return token == null ? new CancellationToken(Thread.currentThread(), null) : token;
+    }
+
+    /**
+     * Create a token that is cancelled when this token is, or when its own {@link #cancel()} method is called.
+     * @return
+     */
+    CancellationToken createChild() {
+        return new CancellationToken(null, this);
+    }
+
+    /**
+     * Cancel the work, without interrupting any thread.
+     */
+    void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Query whether the work has been cancelled.
+     * This is cheap enough to call for every row of an image, or every object.
+     * @return
+     */
+    public boolean isCancelled() {
+        return cancelled || (thread != null && thread.isInterrupted()) || (parent != null && parent.isCancelled());
+    }
+
+    /**
+     * Run work on the current thread on behalf of this token, so that any stage that calls {@link #forCurrentThread()}
+     * checks this token rather than whether the current thread has been interrupted.
+     * This is needed when the work runs on a pool thread that won't itself be interrupted.
+     * @param supplier the work to run
+     * @return the result of the work
+     * @param <T>
+     */
+    <T> T callWith(Supplier<T> supplier) {
+        var previous = BOUND.get();
+        BOUND.set(this);
+        try {
+            return supplier.get();
+        } finally {
+            if (previous == null)
+                BOUND.remove();
+            else
+                BOUND.set(previous);
+        }
+    }
+
+}
@@ -0,0 +1,501 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+
+/**
+ * A max-tree (component tree) for an image, which can be used to find the objects for any integer threshold
+ * without needing to threshold and label the image again.
+ * <p>
+ * Each node of the tree is a 4-connected component of the pixels above a threshold. The area, intensity and centroid
+ * statistics are stored for every node, so that the number of objects and their measurements can be found for any threshold
+ * from 0 to 255 without touching the pixels. A labelled image is only created when the objects themselves are needed.
+ * <p>
+ * Measurements for a threshold are returned in label order, i.e. element {@code i} refers to the object with label
+ * {@code i + 1} in the image from {@link #createLabels(int)}.
+ * <p>
+ * Pixels are considered to be above a threshold {@code t} if their value is strictly greater than {@code t}, to match
+ * {@code SimpleThresholding.thresholdAbove}.
+ */
+public final class ComponentTree {
+
+    /**
+     * The number of thresholds that can be queried.
+     */
+    public static final int N_THRESHOLDS = 256;
+
+    /**
+     * Level used for pixels that are not above any threshold.
+     */
+    private static final int MIN_LEVEL = -1;
+
+    private final int width;
+    private final int height;
+
+    /**
+     * Pixel indices, sorted by decreasing level.
+     */
+    private final int[] sorted;
+    /**
+     * Parent of each pixel, after canonicalization. This is either the canonical pixel of its own node, or of the
+     * parent node.
+     */
+    private final int[] parent;
+    /**
+     * Level of each pixel, i.e. the largest threshold for which the pixel is above the threshold.
+     */
+    private final short[] levels;
+
+    // Nodes with levels >= 0, sorted by decreasing level
+    private final int[] nodeAreas;
+    private final double[] nodeSums;
+    private final double[] nodeSumsSquared;
+    private final double[] nodeSumsX;
+    private final double[] nodeSumsY;
+    private final float[] nodeMins;
+    private final float[] nodeMaxs;
+    private final short[] nodeLevels;
+    private final short[] nodeParentLevels;
+
+    // Summary values for each threshold
+    private final int[] counts = new int[N_THRESHOLDS];
+    private final double[] meanAreas = new double[N_THRESHOLDS];
+    private final double[] meanIntensities = new double[N_THRESHOLDS];
+
+    private ComponentTree(int width, int height, int[] sorted, int[] parent, short[] levels,
+                          int[] nodeAreas, double[] nodeSums, double[] nodeSumsSquared, double[] nodeSumsX, double[] nodeSumsY,
+                          float[] nodeMins, float[] nodeMaxs, short[] nodeLevels, short[] nodeParentLevels) {
+        this.width = width;
+        this.height = height;
+        this.sorted = sorted;
+        this.parent = parent;
+        this.levels = levels;
+        this.nodeAreas = nodeAreas;
+        this.nodeSums = nodeSums;
+        this.nodeSumsSquared = nodeSumsSquared;
+        this.nodeSumsX = nodeSumsX;
+        this.nodeSumsY = nodeSumsY;
+        this.nodeMins = nodeMins;
+        this.nodeMaxs = nodeMaxs;
+        this.nodeLevels = nodeLevels;
+        this.nodeParentLevels = nodeParentLevels;
+        computeSummaries();
+    }
+
+    /**
+     * Build a component tree.
+     * @param ipThreshold the image that would be thresholded, e.g. after smoothing
+     * @param ipValues the image used to measure intensities; this must have the same dimensions
+     * @return the component tree, or null if the thread was interrupted
+     */
+    public static ComponentTree build(ImageProcessor ipThreshold, ImageProcessor ipValues) {
+        var token = CancellationToken.forCurrentThread();
+        int width = ipThreshold.getWidth();
+        int height = ipThreshold.getHeight();
+        if (ipValues.getWidth() != width || ipValues.getHeight() != height)
+            throw new IllegalArgumentException("Threshold and intensity images must have the same dimensions");
+        int n = width * height;
+
+        // Convert to integer levels, and sort pixels by decreasing level
+        short[] levels = new short[n];
+        int[] histogram = new int[N_THRESHOLDS + 1];
+        for (int i = 0; i < n; i++) {
+            int level = toLevel(ipThreshold.getf(i));
+            levels[i] = (short) level;
+            histogram[level - MIN_LEVEL]++;
+        }
+        int[] offsets = new int[histogram.length];
+        int offset = 0;
+        for (int b = histogram.length - 1; b >= 0; b--) {
+            offsets[b] = offset;
+            offset += histogram[b];
+        }
+        int[] sorted = new int[n];
+        for (int i = 0; i < n; i++)
+            sorted[offsets[levels[i] - MIN_LEVEL]++] = i;
+
+        if (token.isCancelled())
+            return null;
+
+        // Build the tree using union-find (Berger et al., 2007)
+        int[] parent = new int[n];
+        int[] zpar = new int[n];
+        Arrays.fill(zpar, -1);
+        int untilCheck = width;
+        for (int p : sorted) {
+            // Check for cancellation after about as many pixels as there are in a row
+            if (--untilCheck == 0) {
+                if (token.isCancelled())
+                    return null;
+                untilCheck = width;
+            }
+            parent[p] = p;
+            zpar[p] = p;
+            int x = p % width;
+            int y = p / width;
+            if (x > 0)
+                merge(parent, zpar, p, p - 1);
+            if (x < width - 1)
+                merge(parent, zpar, p, p + 1);
+            if (y > 0)
+                merge(parent, zpar, p, p - width);
+            if (y < height - 1)
+                merge(parent, zpar, p, p + width);
+        }
+        zpar = null;
+
+        if (token.isCancelled())
+            return null;
+
+        // Canonicalize, so that each pixel points to the canonical pixel of its node (or the parent node)
+        for (int i = n - 1; i >= 0; i--) {
+            int p = sorted[i];
+            int q = parent[p];
+            if (levels[parent[q]] == levels[q])
+                parent[p] = parent[q];
+        }
+
+        // Accumulate areas, intensities and coordinates, with children before parents
+        int[] areas = new int[n];
+        double[] sums = new double[n];
+        double[] sumsSquared = new double[n];
+        double[] sumsX = new double[n];
+        double[] sumsY = new double[n];
+        float[] mins = new float[n];
+        float[] maxs = new float[n];
+        byte[] bytes = ipValues instanceof ByteProcessor ? (byte[]) ipValues.getPixels() : null;
+        for (int i = 0; i < n; i++) {
+            float value = bytes == null ? ipValues.getf(i) : bytes[i] & 0xff;
+            areas[i] = 1;
+            sums[i] = value;
+            sumsSquared[i] = (double) value * value;
+            sumsX[i] = i % width;
+            sumsY[i] = i / width;
+            mins[i] = value;
+            maxs[i] = value;
+        }
+        int nNodes = 0;
+        for (int p : sorted) {
+            int q = parent[p];
+            if (q != p) {
+                areas[q] += areas[p];
+                sums[q] += sums[p];
+                sumsSquared[q] += sumsSquared[p];
+                sumsX[q] += sumsX[p];
+                sumsY[q] += sumsY[p];
+                if (mins[p] < mins[q])
+                    mins[q] = mins[p];
+                if (maxs[p] > maxs[q])
+                    maxs[q] = maxs[p];
+            }
+            if (isCanonical(parent, levels, p) && levels[p] >= 0)
+                nNodes++;
+        }
+
+        if (token.isCancelled())
+            return null;
+
+        // Keep only the attributes of the nodes
+        int[] nodeAreas = new int[nNodes];
+        double[] nodeSums = new double[nNodes];
+        double[] nodeSumsSquared = new double[nNodes];
+        double[] nodeSumsX = new double[nNodes];
+        double[] nodeSumsY = new double[nNodes];
+        float[] nodeMins = new float[nNodes];
+        float[] nodeMaxs = new float[nNodes];
+        short[] nodeLevels = new short[nNodes];
+        short[] nodeParentLevels = new short[nNodes];
+        int k = 0;
+        for (int p : sorted) {
+            if (levels[p] < 0 || !isCanonical(parent, levels, p))
+                continue;
+            nodeAreas[k] = areas[p];
+            nodeSums[k] = sums[p];
+            nodeSumsSquared[k] = sumsSquared[p];
+            nodeSumsX[k] = sumsX[p];
+            nodeSumsY[k] = sumsY[p];
+            nodeMins[k] = mins[p];
+            nodeMaxs[k] = maxs[p];
+            nodeLevels[k] = levels[p];
+            nodeParentLevels[k] = parent[p] == p ? MIN_LEVEL - 1 : levels[parent[p]];
+            k++;
+        }
+        return new ComponentTree(width, height, sorted, parent, levels, nodeAreas, nodeSums, nodeSumsSquared,
+                nodeSumsX, nodeSumsY, nodeMins, nodeMaxs, nodeLevels, nodeParentLevels);
+    }
+
+    /**
+     * Get the largest threshold for which a value is above the threshold, clipped to the range of levels.
+     */
+    private static int toLevel(float value) {
+        if (Float.isNaN(value))
+            return MIN_LEVEL;
+        double level = Math.ceil(value) - 1;
+        if (level < MIN_LEVEL)
+            return MIN_LEVEL;
+        if (level >= N_THRESHOLDS)
+            return N_THRESHOLDS - 1;
+        return (int) level;
+    }
+
+    private static void merge(int[] parent, int[] zpar, int p, int neighbor) {
+        if (zpar[neighbor] < 0)
+            return;
+        int r = findRoot(zpar, neighbor);
+        if (r != p) {
+            parent[r] = p;
+            zpar[r] = p;
+        }
+    }
+
+    private static int findRoot(int[] zpar, int p) {
+        // Path halving
+        while (zpar[p] != p) {
+            zpar[p] = zpar[zpar[p]];
+            p = zpar[p];
+        }
+        return p;
+    }
+
+    private static boolean isCanonical(int[] parent, short[] levels, int p) {
+        int q = parent[p];
+        return q == p || levels[q] != levels[p];
+    }
+
+    /**
+     * Compute the count, mean area and mean intensity for every threshold, using difference arrays so that each
+     * node is visited only once.
+     */
+    private void computeSummaries() {
+        int[] countDiff = new int[N_THRESHOLDS + 1];
+        double[] areaDiff = new double[N_THRESHOLDS + 1];
+        double[] meanDiff = new double[N_THRESHOLDS + 1];
+        for (int k = 0; k < nodeLevels.length; k++) {
+            // A node is an object for all thresholds above its parent's level, up to its own level
+            int from = Math.max(0, nodeParentLevels[k] + 1);
+            int to = nodeLevels[k];
+            if (from > to)
+                continue;
+            countDiff[from]++;
+            countDiff[to + 1]--;
+            areaDiff[from] += nodeAreas[k];
+            areaDiff[to + 1] -= nodeAreas[k];
+            double mean = nodeSums[k] / nodeAreas[k];
+            meanDiff[from] += mean;
+            meanDiff[to + 1] -= mean;
+        }
+        int count = 0;
+        double area = 0;
+        double mean = 0;
+        for (int t = 0; t < N_THRESHOLDS; t++) {
+            count += countDiff[t];
+            area += areaDiff[t];
+            mean += meanDiff[t];
+            counts[t] = count;
+            meanAreas[t] = count == 0 ? Double.NaN : area / count;
+            meanIntensities[t] = count == 0 ? Double.NaN : mean / count;
+        }
+    }
+
+    private static void checkThreshold(int threshold) {
+        if (threshold < 0 || threshold >= N_THRESHOLDS)
+            throw new IllegalArgumentException("Threshold must be between 0 and " + (N_THRESHOLDS - 1));
+    }
+
+    /**
+     * Get the number of objects above a threshold.
+     * @param threshold
+     * @return
+     */
+    public int getCount(int threshold) {
+        checkThreshold(threshold);
+        return counts[threshold];
+    }
+
+    /**
+     * Get the mean area of objects above a threshold, in pixels, or NaN if there are no objects.
+     * @param threshold
+     * @return
+     */
+    public double getMeanArea(int threshold) {
+        checkThreshold(threshold);
+        return meanAreas[threshold];
+    }
+
+    /**
+     * Get the mean of the mean intensities of objects above a threshold, or NaN if there are no objects.
+     * @param threshold
+     * @return
+     */
+    public double getMeanIntensity(int threshold) {
+        checkThreshold(threshold);
+        return meanIntensities[threshold];
+    }
+
+    /**
+     * Get the nodes that are objects for a threshold, in label order.
+     * Nodes are stored in the order their canonical pixels were sorted, whereas {@link #createLabels(int)} visits
+     * pixels in reverse - so labels are assigned in reverse node order.
+     */
+    private int[] getObjectNodes(int threshold) {
+        checkThreshold(threshold);
+        int[] nodes = new int[counts[threshold]];
+        int i = nodes.length;
+        for (int k = 0; k < nodeLevels.length && nodeLevels[k] >= threshold; k++) {
+            if (nodeParentLevels[k] < threshold)
+                nodes[--i] = k;
+        }
+        return nodes;
+    }
+
+    /**
+     * Get the area of each object above a threshold, in pixels.
+     * @param threshold
+     * @return the areas, in label order
+     */
+    public double[] getAreas(int threshold) {
+        int[] nodes = getObjectNodes(threshold);
+        double[] values = new double[nodes.length];
+        for (int i = 0; i < nodes.length; i++)
+            values[i] = nodeAreas[nodes[i]];
+        return values;
+    }
+
+    /**
+     * Get the mean intensity of each object above a threshold.
+     * @param threshold
+     * @return the means, in label order
+     */
+    public double[] getMeanIntensities(int threshold) {
+        int[] nodes = getObjectNodes(threshold);
+        double[] values = new double[nodes.length];
+        for (int i = 0; i < nodes.length; i++)
+            values[i] = nodeSums[nodes[i]] / nodeAreas[nodes[i]];
+        return values;
+    }
+
+    /**
+     * Get the (population) standard deviation of intensities of each object above a threshold.
+     * @param threshold
+     * @return the standard deviations, in label order
+     */
+    public double[] getStdDevIntensities(int threshold) {
+        int[] nodes = getObjectNodes(threshold);
+        double[] values = new double[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            int k = nodes[i];
+            double mean = nodeSums[k] / nodeAreas[k];
+            double variance = nodeSumsSquared[k] / nodeAreas[k] - mean * mean;
+            values[i] = Math.sqrt(Math.max(0, variance));
+        }
+        return values;
+    }
+
+    /**
+     * Get the minimum intensity of each object above a threshold.
+     * @param threshold
+     * @return the minimum values, in label order
+     */
+    public double[] getMinIntensities(int threshold) {
+        int[] nodes = getObjectNodes(threshold);
+        double[] values = new double[nodes.length];
+        for (int i = 0; i < nodes.length; i++)
+            values[i] = nodeMins[nodes[i]];
+        return values;
+    }
+
+    /**
+     * Get the maximum intensity of each object above a threshold.
+     * @param threshold
+     * @return the maximum values, in label order
+     */
+    public double[] getMaxIntensities(int threshold) {
+        int[] nodes = getObjectNodes(threshold);
+        double[] values = new double[nodes.length];
+        for (int i = 0; i < nodes.length; i++)
+            values[i] = nodeMaxs[nodes[i]];
+        return values;
+    }
+
+    /**
+     * Get the x-coordinate of the centroid of each object above a threshold, using pixel centers.
+     * @param threshold
+     * @return the x-coordinates, in label order
+     */
+    public double[] getCentroidsX(int threshold) {
+        int[] nodes = getObjectNodes(threshold);
+        double[] values = new double[nodes.length];
+        for (int i = 0; i < nodes.length; i++)
+            values[i] = nodeSumsX[nodes[i]] / nodeAreas[nodes[i]] + 0.5;
+        return values;
+    }
+
+    /**
+     * Get the y-coordinate of the centroid of each object above a threshold, using pixel centers.
+     * @param threshold
+     * @return the y-coordinates, in label order
+     */
+    public double[] getCentroidsY(int threshold) {
+        int[] nodes = getObjectNodes(threshold);
+        double[] values = new double[nodes.length];
+        for (int i = 0; i < nodes.length; i++)
+            values[i] = nodeSumsY[nodes[i]] / nodeAreas[nodes[i]] + 0.5;
+        return values;
+    }
+
+    /**
+     * Create a labelled image for the objects above a threshold.
+     * The result is equivalent to thresholding and labelling the image with 4-connectivity, although the order of
+     * labels may differ. Labels are consistent with the order of measurements returned for the same threshold.
+     * @param threshold
+     * @return a labelled image, with 0 for background, or null if the thread was interrupted
+     */
+    public ImageProcessor createLabels(int threshold) {
+        checkThreshold(threshold);
+        var token = CancellationToken.forCurrentThread();
+        int n = sorted.length;
+        int[] labels = new int[n];
+        int label = 0;
+        // Visit parents before children
+        int untilCheck = width;
+        for (int i = n - 1; i >= 0; i--) {
+            if (--untilCheck == 0) {
+                if (token.isCancelled())
+                    return null;
+                untilCheck = width;
+            }
+            int p = sorted[i];
+            if (levels[p] < threshold)
+                continue;
+            int q = parent[p];
+            if (q != p && levels[q] >= threshold)
+                labels[p] = labels[q];
+            else
+                labels[p] = ++label;
+        }
+        if (label <= 65535) {
+            short[] pixels = new short[n];
+            for (int i = 0; i < n; i++)
+                pixels[i] = (short) labels[i];
+            return new ShortProcessor(width, height, pixels, null);
+        } else {
+            float[] pixels = new float[n];
+            for (int i = 0; i < n; i++)
+                pixels[i] = labels[i];
+            return new FloatProcessor(width, height, pixels);
+        }
+    }
+
+    /**
+     * Estimate the memory used by the tree, in bytes.
+     * @return
+     */
+    public long estimateBytes() {
+        return sorted.length * 10L + nodeLevels.length * 48L + N_THRESHOLDS * 20L;
+    }
+
+}
@@ -0,0 +1,93 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.demo.parameters.command.AnalysisResult;
+import qupath.ext.demo.parameters.command.MeasurementTable;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Write batch results as comma-separated values.
+ * <p>
+ * Object rows are written directly from the {@link MeasurementTable} of each result, so no objects are created.
+ * Measurement columns are determined by the first image with any objects; measurements that are missing for later
+ * images are written as NaN.
+ */
+class CsvBatchOutput implements BatchOutput {
+
+    private static final Logger logger = LoggerFactory.getLogger(CsvBatchOutput.class);
+
+    private final Writer summaryWriter;
+    private final Writer objectsWriter;
+
+    private List<String> measurementNames;
+
+    CsvBatchOutput(Path summaryFile, Path objectsFile) throws IOException {
+        this.summaryWriter = Files.newBufferedWriter(summaryFile, StandardCharsets.UTF_8);
+        try {
+            this.objectsWriter = objectsFile == null ? null : Files.newBufferedWriter(objectsFile, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            summaryWriter.close();
+            throw e;
+        }
+        summaryWriter.append("Image,Status,Count,Mean area,Mean intensity,Seconds\n");
+    }
+
+    @Override
+    public void write(String imageName, AnalysisResult result, double seconds) throws IOException {
+        String quotedName = quote(imageName);
+        summaryWriter.append(quotedName);
+        if (result == null) {
+            summaryWriter.append(",Failed,NaN,NaN,NaN,");
+        } else {
+            summaryWriter.append(",Completed,")
+                    .append(String.valueOf(result.numObjectsProperty().get())).append(',')
+                    .append(String.valueOf(result.meanAreaProperty().get())).append(',')
+                    .append(String.valueOf(result.meanIntensityProperty().get())).append(',');
+        }
+        summaryWriter.append(String.valueOf(seconds)).append('\n');
+        summaryWriter.flush();
+
+        if (objectsWriter == null || result == null)
+            return;
+        var measurements = result.getMeasurements();
+        if (measurements.size() == 0)
+            return;
+        if (measurementNames == null) {
+            measurementNames = measurements.getMeasurementNames();
+            objectsWriter.append("Image,Centroid X,Centroid Y");
+            for (var name : measurementNames)
+                objectsWriter.append(',').append(quote(name));
+            objectsWriter.append('\n');
+            logger.debug("Writing object measurements {}", measurementNames);
+        }
+        for (int i = 0; i < measurements.size(); i++) {
+            objectsWriter.append(quotedName).append(',')
+                    .append(String.valueOf(measurements.get(MeasurementTable.CENTROID_X, i))).append(',')
+                    .append(String.valueOf(measurements.get(MeasurementTable.CENTROID_Y, i)));
+            for (var name : measurementNames)
+                objectsWriter.append(',').append(String.valueOf(measurements.get(name, i)));
+            objectsWriter.append('\n');
+        }
+        objectsWriter.flush();
+    }
+
+    private static String quote(String s) {
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (summaryWriter) {
+            if (objectsWriter != null)
+                objectsWriter.close();
+        }
+    }
+
+}
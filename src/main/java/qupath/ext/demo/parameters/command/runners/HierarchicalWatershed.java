@@ -0,0 +1,319 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+
+/**
+ * A watershed transform of the pixels above a threshold, which can create labelled images for any tolerance
+ * without needing to flood the image again.
+ * <p>
+ * The image is flooded once from its regional maxima, giving the finest possible watershed regions, and recording
+ * when each region first meets a region with a higher maximum. The difference between a region's maximum and the
+ * value at which this happens is its <i>dynamics</i> (i.e. the prominence of its peak), and defines a merge tree.
+ * For a given tolerance, every region with dynamics that don't exceed the tolerance is merged into the neighbouring
+ * region it met - which only requires a pass over the regions, plus a pass over the pixels to write the labels.
+ * <p>
+ * This is similar to the 'segmented' output of ImageJ's <i>Find Maxima</i> command, where maxima are only retained
+ * if they stand out from their surroundings by more than the tolerance. The main differences are that no watershed
+ * lines are drawn (neighbouring objects share a boundary instead), and regions are built by merging the finest
+ * regions rather than by flooding again from the retained maxima, so boundaries may differ by a few pixels.
+ * <p>
+ * Regions are 4-connected. Pixels are considered to be above the threshold if their value is strictly greater than the
+ * threshold, to match {@code SimpleThresholding.thresholdAbove}.
+ */
+public final class HierarchicalWatershed {
+
+    private final int width;
+    private final int height;
+
+    /**
+     * The finest region for each pixel, or -1 for pixels that are not above the threshold.
+     */
+    private final int[] regions;
+
+    // Regions, in the order they were created
+    private final int nRegions;
+    /**
+     * The finest region that each region was merged into, i.e. a region on the other side of the pixel where it met
+     * a region with a higher maximum, or -1 for regions that were never merged.
+     */
+    private final int[] regionParents;
+    private final float[] regionDynamics;
+
+    private HierarchicalWatershed(int width, int height, int[] regions, int nRegions, int[] regionParents, float[] regionDynamics) {
+        this.width = width;
+        this.height = height;
+        this.regions = regions;
+        this.nRegions = nRegions;
+        this.regionParents = regionParents;
+        this.regionDynamics = regionDynamics;
+    }
+
+    /**
+     * Build the merge tree for an image.
+     * @param ip the image to segment, e.g. after smoothing
+     * @param threshold only pixels with values above the threshold are included in regions
+     * @return the merge tree, or null if the thread was interrupted
+     */
+    public static HierarchicalWatershed build(ImageProcessor ip, double threshold) {
+        var token = CancellationToken.forCurrentThread();
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        int n = width * height;
+
+        // Sort the pixels above the threshold by value, encoding the value and pixel index in a single long
+        float[] values = new float[n];
+        int nMask = 0;
+        for (int y = 0; y < height; y++) {
+            if (token.isCancelled())
+                return null;
+            for (int i = y * width; i < (y + 1) * width; i++) {
+                values[i] = ip.getf(i);
+                if (values[i] > threshold)
+                    nMask++;
+            }
+        }
+        long[] sorted = new long[nMask];
+        int k = 0;
+        for (int y = 0; y < height; y++) {
+            if (token.isCancelled())
+                return null;
+            for (int i = y * width; i < (y + 1) * width; i++) {
+                if (values[i] > threshold)
+                    sorted[k++] = ((long) toSortable(values[i]) << 32) | i;
+            }
+        }
+        if (!sortByValue(sorted, width, token))
+            return null;
+
+        // Flood from the highest pixels down, using union-find to track which regions have met
+        int[] regions = new int[n];
+        Arrays.fill(regions, -1);
+        int[] parents = new int[Math.max(16, nMask / 16)];
+        float[] peaks = new float[parents.length];
+        float[] dynamics = new float[parents.length];
+        int[] zpar = new int[parents.length];
+        int nRegions = 0;
+        int[] neighbors = new int[4];
+        int untilCheck = width;
+        for (int s = nMask - 1; s >= 0; s--) {
+            // Check for cancellation after about as many pixels as there are in a row
+            if (--untilCheck == 0) {
+                if (token.isCancelled())
+                    return null;
+                untilCheck = width;
+            }
+            int p = (int) sorted[s];
+            float v = values[p];
+            int x = p % width;
+            int y = p / width;
+            int nNeighbors = 0;
+            if (x > 0)
+                nNeighbors = addNeighbor(neighbors, nNeighbors, regions, p - 1);
+            if (x < width - 1)
+                nNeighbors = addNeighbor(neighbors, nNeighbors, regions, p + 1);
+            if (y > 0)
+                nNeighbors = addNeighbor(neighbors, nNeighbors, regions, p - width);
+            if (y < height - 1)
+                nNeighbors = addNeighbor(neighbors, nNeighbors, regions, p + width);
+
+            if (nNeighbors == 0) {
+                // A new regional maximum
+                if (nRegions == parents.length) {
+                    int newLength = parents.length * 2;
+                    parents = Arrays.copyOf(parents, newLength);
+                    peaks = Arrays.copyOf(peaks, newLength);
+                    dynamics = Arrays.copyOf(dynamics, newLength);
+                    zpar = Arrays.copyOf(zpar, newLength);
+                }
+                parents[nRegions] = -1;
+                peaks[nRegions] = v;
+                dynamics[nRegions] = Float.POSITIVE_INFINITY;
+                zpar[nRegions] = nRegions;
+                regions[p] = nRegions++;
+                continue;
+            }
+
+            // Join the region of the highest neighbor, i.e. the direction of steepest ascent
+            int best = neighbors[0];
+            for (int j = 1; j < nNeighbors; j++) {
+                if (values[neighbors[j]] > values[best])
+                    best = neighbors[j];
+            }
+            regions[p] = regions[best];
+
+            // Merge any different flooded areas that meet at this pixel
+            for (int j = 0; j < nNeighbors; j++) {
+                int r1 = findRoot(zpar, regions[neighbors[j]]);
+                int r2 = findRoot(zpar, regions[p]);
+                if (r1 == r2)
+                    continue;
+                // The area with the lower peak (or that was created later) is merged into the other.
+                // Its parent is the finest region it touches, so that merged regions are always connected.
+                if (peaks[r1] > peaks[r2] || (peaks[r1] == peaks[r2] && r1 < r2)) {
+                    parents[r2] = regions[neighbors[j]];
+                    dynamics[r2] = peaks[r2] - v;
+                    zpar[r2] = r1;
+                } else {
+                    parents[r1] = regions[p];
+                    dynamics[r1] = peaks[r1] - v;
+                    zpar[r1] = r2;
+                }
+            }
+        }
+
+        if (token.isCancelled())
+            return null;
+
+        return new HierarchicalWatershed(width, height, regions, nRegions,
+                Arrays.copyOf(parents, nRegions), Arrays.copyOf(dynamics, nRegions));
+    }
+
+    /**
+     * Sort encoded pixels by value, using a least-significant-digit radix sort of the upper 32 bits.
+     * <p>
+     * The sort is stable, and pixel indices are added in increasing order, so the result is the same as sorting the
+     * full longs - but it takes linear time, and the token can be checked every {@code checkInterval} pixels
+     * (which isn't possible with {@link Arrays#parallelSort(long[])}).
+     * @return true if the array was sorted, false if the sort was cancelled
+     */
+    private static boolean sortByValue(long[] keys, int checkInterval, CancellationToken token) {
+        int n = keys.length;
+        long[] source = keys;
+        long[] target = new long[n];
+        int[] offsets = new int[257];
+        // Four passes of 8 bits, so the sorted values end up back in the original array
+        for (int shift = 32; shift < 64; shift += 8) {
+            // Flip the sign bit of the most significant byte, so that negative values come first
+            int flip = shift == 56 ? 0x80 : 0;
+            Arrays.fill(offsets, 0);
+            for (int i = 0; i < n; i++)
+                offsets[(((int) (source[i] >>> shift) & 0xff) ^ flip) + 1]++;
+            for (int b = 1; b < offsets.length; b++)
+                offsets[b] += offsets[b - 1];
+            for (int start = 0; start < n; start += checkInterval) {
+                if (token.isCancelled())
+                    return false;
+                int end = Math.min(n, start + checkInterval);
+                for (int i = start; i < end; i++) {
+                    long key = source[i];
+                    target[offsets[((int) (key >>> shift) & 0xff) ^ flip]++] = key;
+                }
+            }
+            long[] temp = source;
+            source = target;
+            target = temp;
+        }
+        return true;
+    }
+
+    /**
+     * Convert a float to an int with the same ordering.
+     */
+    private static int toSortable(float value) {
+        int bits = Float.floatToIntBits(value);
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+
+    private static int addNeighbor(int[] neighbors, int nNeighbors, int[] regions, int neighbor) {
+        if (regions[neighbor] < 0)
+            return nNeighbors;
+        neighbors[nNeighbors] = neighbor;
+        return nNeighbors + 1;
+    }
+
+    private static int findRoot(int[] zpar, int r) {
+        // Path halving
+        while (zpar[r] != r) {
+            zpar[r] = zpar[zpar[r]];
+            r = zpar[r];
+        }
+        return r;
+    }
+
+    /**
+     * Get the number of objects for a tolerance.
+     * @param tolerance maxima are only retained if they are more than this above the value where they meet a higher
+     *                  maximum
+     * @return
+     */
+    public int getCount(double tolerance) {
+        int count = 0;
+        for (int r = 0; r < nRegions; r++) {
+            if (regionDynamics[r] > tolerance)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Create a labelled image for a tolerance.
+     * @param tolerance maxima are only retained if they are more than this above the value where they meet a higher
+     *                  maximum
+     * @return a labelled image, with 0 for background, or null if the thread was interrupted
+     */
+    public ImageProcessor createLabels(double tolerance) {
+        var token = CancellationToken.forCurrentThread();
+        // Regions that are retained get a new label.
+        // The dynamics of a region are never smaller than those of regions merged into it before, so any region that
+        // isn't retained can take the label of the region it was merged into (and all its earlier regions with it).
+        int[] labels = new int[nRegions];
+        int label = 0;
+        for (int r = 0; r < nRegions; r++) {
+            if (regionDynamics[r] > tolerance)
+                labels[r] = ++label;
+        }
+        int[] path = new int[16];
+        for (int r = 0; r < nRegions; r++) {
+            int nPath = 0;
+            int q = r;
+            while (labels[q] == 0) {
+                if (nPath == path.length)
+                    path = Arrays.copyOf(path, nPath * 2);
+                path[nPath++] = q;
+                q = regionParents[q];
+            }
+            for (int i = 0; i < nPath; i++)
+                labels[path[i]] = labels[q];
+        }
+        if (token.isCancelled())
+            return null;
+
+        int n = regions.length;
+        if (label <= 65535) {
+            short[] pixels = new short[n];
+            for (int y = 0; y < height; y++) {
+                if (token.isCancelled())
+                    return null;
+                for (int i = y * width; i < (y + 1) * width; i++) {
+                    if (regions[i] >= 0)
+                        pixels[i] = (short) labels[regions[i]];
+                }
+            }
+            return new ShortProcessor(width, height, pixels, null);
+        } else {
+            float[] pixels = new float[n];
+            for (int y = 0; y < height; y++) {
+                if (token.isCancelled())
+                    return null;
+                for (int i = y * width; i < (y + 1) * width; i++) {
+                    if (regions[i] >= 0)
+                        pixels[i] = labels[regions[i]];
+                }
+            }
+            return new FloatProcessor(width, height, pixels);
+        }
+    }
+
+    /**
+     * Estimate the memory used by the tree, in bytes.
+     * @return
+     */
+    public long estimateBytes() {
+        return regions.length * 4L + nRegions * 8L;
+    }
+
+}
@@ -0,0 +1,193 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.util.Arrays;
+
+/**
+ * Trace the outer boundaries of all objects in a labelled image, and convert them directly to QuPath ROIs.
+ * <p>
+ * Boundaries follow the pixel edges (i.e. 'crack following'), so vertices lie on pixel corners and the polygon
+ * encloses exactly the pixels of the label - apart from any holes, which are filled.
+ * All labels are traced in one raster scan of the image: each label is traced once, starting from its first pixel,
+ * so the total time is proportional to the number of pixels plus the total length of all boundaries.
+ * <p>
+ * Labels are assumed to be 4-connected, as created by a labelling that doesn't use 8-connectivity.
+ */
+public final class LabelContourTracer {
+
+    private static final int[] DX = {1, 0, -1, 0};
+    private static final int[] DY = {0, 1, 0, -1};
+
+    private final int maxLabel;
+
+    /**
+     * Polygon vertices for each label, as interleaved x and y pixel corner coordinates.
+     */
+    private final int[][] contours;
+
+    private LabelContourTracer(int maxLabel, int[][] contours) {
+        this.maxLabel = maxLabel;
+        this.contours = contours;
+    }
+
+    /**
+     * Trace the outer boundaries of all labels.
+     * @param ipLabels the labelled image, with 0 for background and positive integer labels for objects
+     * @param maxLabel the largest label in the image
+     * @return the traced contours, or null if the thread was interrupted
+     */
+    public static LabelContourTracer trace(ImageProcessor ipLabels, int maxLabel) {
+        var token = CancellationToken.forCurrentThread();
+        var labels = new Labels(ipLabels);
+        int[][] contours = new int[maxLabel + 1][];
+        int[] buffer = new int[256];
+        for (int y = 0; y < labels.height; y++) {
+            if (token.isCancelled())
+                return null;
+            for (int x = 0; x < labels.width; x++) {
+                int label = labels.get(x, y);
+                if (label <= 0 || label > maxLabel || contours[label] != null)
+                    continue;
+                // This is the top-left pixel of the label, so its top edge must be on the outer boundary
+                buffer = traceContour(labels, x, y, label, buffer);
+                int n = buffer[0];
+                contours[label] = Arrays.copyOfRange(buffer, 1, n + 1);
+            }
+        }
+        return new LabelContourTracer(maxLabel, contours);
+    }
+
+    /**
+     * Follow the boundary clockwise, keeping the object on the right.
+     * The first element of the returned buffer gives the number of coordinates that follow it.
+     */
+    private static int[] traceContour(Labels labels, int x0, int y0, int label, int[] buffer) {
+        int n = 0;
+        buffer[++n] = x0;
+        buffer[++n] = y0;
+        int x = x0;
+        int y = y0;
+        int dir = 0;
+        while (true) {
+            x += DX[dir];
+            y += DY[dir];
+            if (x == x0 && y == y0)
+                break;
+            int newDir = nextDirection(labels, x, y, dir, label);
+            if (newDir != dir) {
+                if (n + 3 > buffer.length)
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                buffer[++n] = x;
+                buffer[++n] = y;
+                dir = newDir;
+            }
+        }
+        buffer[0] = n;
+        return buffer;
+    }
+
+    /**
+     * Choose the direction to move from a pixel corner, given the current direction.
+     * Diagonal pixels aren't connected, so we turn right whenever the pixel ahead on the right isn't part of the object.
+     */
+    private static int nextDirection(Labels labels, int x, int y, int dir, int label) {
+        boolean aheadLeft;
+        boolean aheadRight;
+        switch (dir) {
+            case 0: // Right
+                aheadLeft = labels.get(x, y - 1) == label;
+                aheadRight = labels.get(x, y) == label;
+                break;
+            case 1: // Down
+                aheadLeft = labels.get(x, y) == label;
+                aheadRight = labels.get(x - 1, y) == label;
+                break;
+            case 2: // Left
+                aheadLeft = labels.get(x - 1, y) == label;
+                aheadRight = labels.get(x - 1, y - 1) == label;
+                break;
+            default: // Up
+                aheadLeft = labels.get(x - 1, y - 1) == label;
+                aheadRight = labels.get(x, y - 1) == label;
+                break;
+        }
+        if (!aheadRight)
+            return (dir + 1) % 4;
+        if (aheadLeft)
+            return (dir + 3) % 4;
+        return dir;
+    }
+
+    /**
+     * Get the largest label that could have been traced.
+     * @return
+     */
+    public int getMaxLabel() {
+        return maxLabel;
+    }
+
+    /**
+     * Query whether a contour was found for a label.
+     * @param label
+     * @return
+     */
+    public boolean hasContour(int label) {
+        return label > 0 && label <= maxLabel && contours[label] != null;
+    }
+
+    /**
+     * Create a polygon ROI for a label.
+     * @param label the label
+     * @param xOrigin x-coordinate of the labelled image origin, in the full-resolution image
+     * @param yOrigin y-coordinate of the labelled image origin, in the full-resolution image
+     * @param downsample downsample factor of the labelled image
+     * @param plane the image plane for the ROI
+     * @return the ROI, or null if there is no contour for the label
+     */
+    public ROI createROI(int label, double xOrigin, double yOrigin, double downsample, ImagePlane plane) {
+        if (!hasContour(label))
+            return null;
+        int[] contour = contours[label];
+        int n = contour.length / 2;
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = xOrigin + contour[i * 2] * downsample;
+            y[i] = yOrigin + contour[i * 2 + 1] * downsample;
+        }
+        return ROIs.createPolygonROI(x, y, plane);
+    }
+
+
+    /**
+     * Read-only access to labels, returning 0 outside the image.
+     */
+    private static class Labels {
+
+        private final ImageProcessor ip;
+        private final short[] pixels;
+        private final int width;
+        private final int height;
+
+        private Labels(ImageProcessor ip) {
+            this.ip = ip;
+            this.pixels = ip instanceof ShortProcessor ? (short[]) ip.getPixels() : null;
+            this.width = ip.getWidth();
+            this.height = ip.getHeight();
+        }
+
+        private int get(int x, int y) {
+            if (x < 0 || y < 0 || x >= width || y >= height)
+                return 0;
+            int i = y * width + x;
+            return pixels == null ? (int) ip.getf(i) : pixels[i] & 0xffff;
+        }
+
+    }
+
+}
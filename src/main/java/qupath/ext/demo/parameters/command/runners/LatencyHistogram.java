@@ -0,0 +1,123 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe histogram of latencies, using logarithmic buckets so that quantiles can be estimated with a fixed
+ * relative error over a wide range of values.
+ * <p>
+ * Each power of two is split into 8 buckets, and quantiles are estimated from the upper limit of the bucket that
+ * contains them - so they overestimate the true value by at most 12.5%.
+ * Values from 1 microsecond to around 18 minutes are resolved; values outside this range are clamped to the first or
+ * last bucket (but the mean and maximum are exact).
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 8;
+    private static final int MIN_EXPONENT = 10; // 2^10 ns, about 1 microsecond
+    private static final int MAX_EXPONENT = 40; // 2^40 ns, about 18 minutes
+    private static final int N_BUCKETS = (MAX_EXPONENT - MIN_EXPONENT) * SUB_BUCKETS + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(N_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Record a latency.
+     * @param nanos the latency, in nanoseconds
+     */
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        counts.incrementAndGet(getBucket(nanos));
+        count.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    private static int getBucket(long nanos) {
+        if (nanos < (1L << MIN_EXPONENT))
+            return 0;
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent >= MAX_EXPONENT)
+            return N_BUCKETS - 1;
+        // Use the bits after the leading bit to find the sub-bucket
+        int sub = (int) ((nanos >>> (exponent - 3)) & (SUB_BUCKETS - 1));
+        return (exponent - MIN_EXPONENT) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Get the upper limit of a bucket, in nanoseconds.
+     */
+    private static double getBucketLimit(int bucket) {
+        int exponent = MIN_EXPONENT + bucket / SUB_BUCKETS;
+        int sub = bucket % SUB_BUCKETS;
+        return Math.scalb(1.0 + (sub + 1) / (double) SUB_BUCKETS, exponent);
+    }
+
+    /**
+     * Get the number of latencies recorded.
+     * @return
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Get the mean latency, in nanoseconds.
+     * @return the mean, or NaN if no latencies have been recorded
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? Double.NaN : sum.sum() / (double) n;
+    }
+
+    /**
+     * Get the maximum latency, in nanoseconds.
+     * @return
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Estimate a quantile of the recorded latencies.
+     * @param quantile the quantile, between 0 and 1 (e.g. 0.95 for the 95th percentile)
+     * @return the quantile in nanoseconds, or NaN if no latencies have been recorded
+     */
+    public double getQuantile(double quantile) {
+        if (quantile < 0 || quantile > 1)
+            throw new IllegalArgumentException("Quantile must be between 0 and 1");
+        long[] snapshot = new long[N_BUCKETS];
+        long total = 0;
+        for (int i = 0; i < N_BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return Double.NaN;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long cumulative = 0;
+        for (int i = 0; i < N_BUCKETS; i++) {
+            cumulative += snapshot[i];
+            if (cumulative >= rank)
+                return Math.min(getBucketLimit(i), getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * Remove all recorded latencies.
+     * Latencies recorded concurrently may or may not be retained.
+     */
+    public void reset() {
+        for (int i = 0; i < N_BUCKETS; i++)
+            counts.set(i, 0);
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+}
@@ -0,0 +1,119 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Pool of Gaussian noise fields (with mean 0 and standard deviation 1), which are shared between images, seeds and
+ * analysis runs.
+ * <p>
+ * Only a small number of base fields are generated for each image size. The noise for a seed is then one of these,
+ * circularly shifted by an offset and possibly negated - all derived from the seed. This means that many noise
+ * realisations can be added without allocating or generating a new field for each one, and the same seed always
+ * gives the same noise.
+ * <p>
+ * Each pixel of a realisation is drawn from a standard normal distribution, and realisations with different base
+ * fields are independent. Realisations that share a base field are only rearrangements of the same values, so are
+ * not strictly independent - although their values at any pixel are, unless the offsets happen to coincide.
+ * Where many realisations are compared (e.g. to estimate a variance), use
+ * {@link #addIndependentNoise(float[], int, int, int, float)} instead.
+ * <p>
+ * Base fields are generated in blocks of rows, in parallel, with each block using its own random number generator
+ * seeded from the field seed and the block index - so the same seed always gives the same field, regardless of the
+ * number of threads.
+ */
+final class NoiseFieldPool {
+
+    private static final int BLOCK_ROWS = 64;
+
+    /**
+     * Number of base fields for each image size.
+     */
+    private static final int N_BASE_FIELDS = 4;
+
+    private final AnalysisCache<String, float[]> cache;
+
+    /**
+     * Create a pool.
+     * @param maxBytes the approximate maximum number of bytes used to store noise fields
+     */
+    NoiseFieldPool(long maxBytes) {
+        this.cache = new AnalysisCache<>(Math.max(1, maxBytes), field -> field.length * 4L + 16);
+    }
+
+    /**
+     * Add scaled noise for a seed to an image.
+     * @param pixels the row-major pixels of the image, which are updated in place
+     * @param width the image width
+     * @param height the image height
+     * @param seed the seed that determines the noise
+     * @param scale the standard deviation of the noise
+     */
+    void addNoise(float[] pixels, int width, int height, int seed, float scale) {
+        if (pixels.length != width * height)
+            throw new IllegalArgumentException("Expected " + width * height + " pixels, but got " + pixels.length);
+        int base = Math.floorMod(seed, N_BASE_FIELDS);
+        float[] field = cache.computeIfAbsent(width + "x" + height + ":" + base, k -> create(width, height, base));
+        long hash = mix(seed);
+        int dx = (int) Math.floorMod(hash, (long) width);
+        int dy = (int) Math.floorMod(hash >>> 24, (long) height);
+        float s = (hash >>> 63) == 0 ? scale : -scale;
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            int rowField = ((y + dy) % height) * width;
+            // Split each row at the point where the shifted field wraps around, to avoid a modulo for every pixel
+            int split = width - dx;
+            for (int x = 0; x < split; x++)
+                pixels[row + x] += field[rowField + dx + x] * s;
+            for (int x = split; x < width; x++)
+                pixels[row + x] += field[rowField + x - split] * s;
+        }
+    }
+
+    /**
+     * Add scaled noise for a seed to an image, using a new field rather than one from a pool.
+     * This is slower than {@link #addNoise(float[], int, int, int, float)}, but noise for different seeds is independent.
+     * @param pixels the row-major pixels of the image, which are updated in place
+     * @param width the image width
+     * @param height the image height
+     * @param seed the seed that determines the noise
+     * @param scale the standard deviation of the noise
+     */
+    static void addIndependentNoise(float[] pixels, int width, int height, int seed, float scale) {
+        if (pixels.length != width * height)
+            throw new IllegalArgumentException("Expected " + width * height + " pixels, but got " + pixels.length);
+        float[] field = create(width, height, seed);
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] += field[i] * scale;
+    }
+
+    /**
+     * Scramble the bits of a seed (using the SplitMix64 finalizer), so that neighbouring seeds give unrelated offsets.
+     */
+    private static long mix(int seed) {
+        long z = seed * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Create a new noise field, without adding it to the pool.
+     * @param width
+     * @param height
+     * @param seed
+     * @return
+     */
+    static float[] create(int width, int height, int seed) {
+        float[] field = new float[width * height];
+        int nBlocks = (height + BLOCK_ROWS - 1) / BLOCK_ROWS;
+        IntStream.range(0, nBlocks).parallel().forEach(b -> {
+            var random = new Random(((long) seed << 32) ^ b);
+            int end = Math.min(height, (b + 1) * BLOCK_ROWS) * width;
+            for (int i = b * BLOCK_ROWS * width; i < end; i++)
+                field[i] = (float) random.nextGaussian();
+        });
+        return field;
+    }
+
+}
@@ -0,0 +1,176 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.ImageData;
+import qupath.lib.plugins.parameters.ParameterList;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Assess how stable the results of an {@link AnalysisRunner} are when noise is added to the image, by analysing
+ * many independent noise realisations with otherwise identical parameters.
+ * <p>
+ * The runner must support the {@code noise} and {@code noiseSeed} parameters. Each realisation uses a different
+ * seed, starting from a base seed, so the results are reproducible for a given base seed.
+ * This is a {@link ParameterSweep} over the seed that doesn't use the runner's cache, so realisations are analysed in
+ * parallel without evicting data needed for interactive analysis.
+ * Uncached runs of a {@link ThresholdWatershedRunner} generate a new noise field for every seed, so that the
+ * realisations are independent.
+ * See {@link NoiseRobustnessResults} for the summary values.
+ */
+public class NoiseRobustnessAnalysis {
+
+    private static final Logger logger = LoggerFactory.getLogger(NoiseRobustnessAnalysis.class);
+
+    private final AnalysisRunner runner;
+    private final ParameterList baseParams;
+
+    private double noise;
+    private int seed;
+    private int nRealisations = 100;
+    private int nThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Create a noise robustness analysis.
+     * The noise sigma and base seed are initially taken from the parameters.
+     * @param runner the runner used for the analysis
+     * @param baseParams the parameters to use for every realisation
+     */
+    public NoiseRobustnessAnalysis(AnalysisRunner runner, ParameterList baseParams) {
+        if (!baseParams.containsKey("noise") || !baseParams.containsKey("noiseSeed"))
+            throw new IllegalArgumentException("Parameters must include 'noise' and 'noiseSeed'");
+        this.runner = runner;
+        this.baseParams = baseParams.duplicate();
+        this.noise = baseParams.getDoubleParameterValue("noise");
+        this.seed = baseParams.getIntParameterValue("noiseSeed");
+    }
+
+    /**
+     * Set the standard deviation of the Gaussian noise added to the image.
+     * @param noise
+     * @return this analysis
+     */
+    public NoiseRobustnessAnalysis noise(double noise) {
+        if (!(noise > 0))
+            throw new IllegalArgumentException("Noise must be > 0");
+        this.noise = noise;
+        return this;
+    }
+
+    /**
+     * Set the seed for the first realisation; subsequent realisations use the following integers.
+     * @param seed
+     * @return this analysis
+     */
+    public NoiseRobustnessAnalysis seed(int seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Set the number of noise realisations for each image.
+     * By default, this is 100.
+     * @param nRealisations
+     * @return this analysis
+     */
+    public NoiseRobustnessAnalysis realisations(int nRealisations) {
+        if (nRealisations < 1)
+            throw new IllegalArgumentException("Number of realisations must be >= 1");
+        this.nRealisations = nRealisations;
+        return this;
+    }
+
+    /**
+     * Set the number of threads used to run the analysis.
+     * By default, this is the number of available processors.
+     * @param nThreads
+     * @return this analysis
+     */
+    public NoiseRobustnessAnalysis threads(int nThreads) {
+        if (nThreads < 1)
+            throw new IllegalArgumentException("Number of threads must be >= 1");
+        this.nThreads = nThreads;
+        return this;
+    }
+
+    /**
+     * Get the seed used for a realisation.
+     * @param realisation the realisation index, between 0 and the number of realisations - 1
+     * @return
+     */
+    public int getSeed(int realisation) {
+        return getSeed(seed, realisation);
+    }
+
+    /**
+     * Get the seed used for a realisation, given the seed for the first realisation.
+     * @throws ArithmeticException if the seed would overflow
+     */
+    static int getSeed(int seed, int realisation) {
+        return Math.addExact(seed, realisation);
+    }
+
+    /**
+     * Create the parameter list for a realisation.
+     * @param realisation the realisation index, between 0 and the number of realisations - 1
+     * @return
+     */
+    public ParameterList createParameters(int realisation) {
+        return createSweep().createParameters(realisation);
+    }
+
+    /**
+     * Run the analysis and wait for it to complete.
+     * @param images the images to analyse
+     * @return the results
+     * @throws InterruptedException if the analysis is interrupted
+     * @throws ExecutionException if the analysis fails
+     */
+    public NoiseRobustnessResults run(Collection<ImageData<BufferedImage>> images) throws InterruptedException, ExecutionException {
+        return run(images, null);
+    }
+
+    /**
+     * Run the analysis and wait for it to complete, optionally notifying a listener as results become available.
+     * @param images the images to analyse
+     * @param progress optional consumer that is passed the (incomplete) results each time a realisation has been
+     *                 analysed; this is called from a background thread
+     * @return the results
+     * @throws InterruptedException if the analysis is interrupted
+     * @throws ExecutionException if the analysis fails
+     */
+    public NoiseRobustnessResults run(Collection<ImageData<BufferedImage>> images, Consumer<NoiseRobustnessResults> progress) throws InterruptedException, ExecutionException {
+        if (!(noise > 0))
+            throw new IllegalStateException("Noise must be > 0 to assess noise robustness");
+        logger.info("Starting noise robustness analysis with {} realisations for {} images", nRealisations, images.size());
+        var sweepResults = createSweep().run(images,
+                progress == null ? null : r -> progress.accept(new NoiseRobustnessResults(r, noise, seed)));
+        var results = new NoiseRobustnessResults(sweepResults, noise, seed);
+        logger.info("Noise robustness analysis completed: {}", results);
+        return results;
+    }
+
+    /**
+     * Create a sweep over the noise seed, with one combination for each realisation.
+     * Realisations are not cached by the runner, since every one is different.
+     */
+    private ParameterSweep createSweep() {
+        var params = baseParams.duplicate();
+        if (!ParameterTools.setValue(params, "noise", noise))
+            throw new IllegalArgumentException("Invalid noise value " + noise);
+        List<Integer> seeds = new ArrayList<>();
+        for (int r = 0; r < nRealisations; r++)
+            seeds.add(getSeed(r));
+        return new ParameterSweep(runner, params)
+                .addChoices("noiseSeed", seeds)
+                .threads(nThreads)
+                .useCache(false);
+    }
+
+}
@@ -0,0 +1,226 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import java.io.IOException;
+
+/**
+ * Results from a {@link NoiseRobustnessAnalysis}.
+ * <p>
+ * This is a view of the {@link SweepResults} from a sweep over the noise seed, which store the object count, mean
+ * area and mean intensity for every image and noise realisation.
+ * Summary statistics are computed in realisation order when requested, so that they don't depend upon the order in
+ * which realisations happened to complete.
+ */
+public class NoiseRobustnessResults {
+
+    /**
+     * Values recorded for each realisation.
+     */
+    public enum Measurement {
+        /**
+         * The number of objects.
+         */
+        COUNT("Count"),
+        /**
+         * The mean area of objects.
+         */
+        MEAN_AREA("Mean area"),
+        /**
+         * The mean intensity of objects.
+         */
+        MEAN_INTENSITY("Mean intensity");
+
+        private final String name;
+
+        Measurement(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final SweepResults sweepResults;
+    private final double noise;
+    private final int seed;
+
+    /**
+     * Create results from a sweep over the noise seed, with one combination for each realisation.
+     */
+    NoiseRobustnessResults(SweepResults sweepResults, double noise, int seed) {
+        this.sweepResults = sweepResults;
+        this.noise = noise;
+        this.seed = seed;
+    }
+
+    /**
+     * Get the number of images.
+     * @return
+     */
+    public int nImages() {
+        return sweepResults.nImages();
+    }
+
+    /**
+     * Get the number of noise realisations per image.
+     * @return
+     */
+    public int nRealisations() {
+        return sweepResults.nCombinations();
+    }
+
+    /**
+     * Get the number of image and realisation combinations that have been analysed so far.
+     * @return
+     */
+    public int nCompleted() {
+        return sweepResults.nCompleted();
+    }
+
+    /**
+     * Get the name of an image.
+     * @param imageIndex
+     * @return
+     */
+    public String getImageName(int imageIndex) {
+        return sweepResults.getImageName(imageIndex);
+    }
+
+    /**
+     * Get the standard deviation of the noise that was added.
+     * @return
+     */
+    public double getNoise() {
+        return noise;
+    }
+
+    /**
+     * Get the seed used for a realisation.
+     * @param realisation
+     * @return
+     */
+    public int getSeed(int realisation) {
+        return NoiseRobustnessAnalysis.getSeed(seed, realisation);
+    }
+
+    /**
+     * Get the value of a measurement for one realisation, or NaN if the realisation has not been analysed
+     * (or no objects were found, in the case of the mean area and intensity).
+     * @param imageIndex
+     * @param realisation
+     * @param measurement
+     * @return
+     */
+    public double getValue(int imageIndex, int realisation, Measurement measurement) {
+        switch (measurement) {
+            case COUNT:
+                int count = sweepResults.getCount(imageIndex, realisation);
+                return count < 0 ? Double.NaN : count;
+            case MEAN_AREA:
+                return sweepResults.getMeanArea(imageIndex, realisation);
+            case MEAN_INTENSITY:
+                return sweepResults.getMeanIntensity(imageIndex, realisation);
+            default:
+                throw new IllegalArgumentException("Unknown measurement " + measurement);
+        }
+    }
+
+    /**
+     * Get the number of realisations with a value for a measurement.
+     * @param imageIndex
+     * @param measurement
+     * @return
+     */
+    public int getN(int imageIndex, Measurement measurement) {
+        return (int) computeStatistics(imageIndex, measurement)[0];
+    }
+
+    /**
+     * Get the mean of a measurement across all realisations with a value.
+     * @param imageIndex
+     * @param measurement
+     * @return the mean, or NaN if there are no values
+     */
+    public double getMean(int imageIndex, Measurement measurement) {
+        return computeStatistics(imageIndex, measurement)[1];
+    }
+
+    /**
+     * Get the (sample) variance of a measurement across all realisations with a value.
+     * @param imageIndex
+     * @param measurement
+     * @return the variance, or NaN if there are fewer than two values
+     */
+    public double getVariance(int imageIndex, Measurement measurement) {
+        return computeStatistics(imageIndex, measurement)[2];
+    }
+
+    /**
+     * Compute the number of values, mean and sample variance using Welford's algorithm, in realisation order.
+     */
+    private double[] computeStatistics(int imageIndex, Measurement measurement) {
+        int n = 0;
+        double mean = 0;
+        double m2 = 0;
+        for (int r = 0; r < nRealisations(); r++) {
+            double v = getValue(imageIndex, r, measurement);
+            if (Double.isNaN(v))
+                continue;
+            n++;
+            double delta = v - mean;
+            mean += delta / n;
+            m2 += delta * (v - mean);
+        }
+        return new double[] {
+                n,
+                n == 0 ? Double.NaN : mean,
+                n < 2 ? Double.NaN : m2 / (n - 1)
+        };
+    }
+
+    /**
+     * Get the time taken for the analysis so far (or in total, if it has finished), in seconds.
+     * @return
+     */
+    public double getElapsedSeconds() {
+        return sweepResults.getElapsedSeconds();
+    }
+
+    /**
+     * Get the throughput, as the number of image and realisation combinations analysed per second.
+     * @return
+     */
+    public double getRealisationsPerSecond() {
+        return sweepResults.getCombinationsPerSecond();
+    }
+
+    /**
+     * Write the summary statistics as comma-separated values, with one row per image.
+     * @param out
+     * @throws IOException
+     */
+    public void writeCsv(Appendable out) throws IOException {
+        out.append("Image,Noise,Realisations");
+        for (var measurement : Measurement.values())
+            out.append(',').append(measurement + " mean").append(',').append(measurement + " variance");
+        out.append('\n');
+        for (int i = 0; i < nImages(); i++) {
+            out.append('"').append(getImageName(i).replace("\"", "\"\"")).append('"');
+            out.append(',').append(String.valueOf(noise));
+            out.append(',').append(String.valueOf(nRealisations()));
+            for (var measurement : Measurement.values()) {
+                out.append(',').append(String.valueOf(getMean(i, measurement)));
+                out.append(',').append(String.valueOf(getVariance(i, measurement)));
+            }
+            out.append('\n');
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NoiseRobustnessResults[images=%d, realisations=%d, noise=%s, completed=%d, %.1f realisations/s]",
+                nImages(), nRealisations(), noise, nCompleted(), getRealisationsPerSecond());
+    }
+
+}
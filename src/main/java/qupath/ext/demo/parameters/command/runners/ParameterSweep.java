@@ -0,0 +1,219 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.common.ThreadTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.plugins.parameters.ParameterList;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Run an {@link AnalysisRunner} for every combination of a set of parameter values, across multiple images.
+ * <p>
+ * Parameters should be added in the order they are used by the analysis (i.e. upstream parameters first).
+ * Combinations are enumerated with the last parameter varying fastest, and each image is split into blocks of
+ * combinations that share the same value for the first parameter. Blocks are analysed in parallel, while
+ * combinations within a block are analysed in turn - so that the runner can reuse any intermediate results it has
+ * cached.
+ * <p>
+ * Only summary values are retained for each combination; see {@link SweepResults}.
+ */
+public class ParameterSweep {
+
+    private static final Logger logger = LoggerFactory.getLogger(ParameterSweep.class);
+
+    private final AnalysisRunner runner;
+    private final ParameterList baseParams;
+
+    private final List<String> keys = new ArrayList<>();
+    private final List<List<Object>> values = new ArrayList<>();
+
+    private int nThreads = Runtime.getRuntime().availableProcessors();
+    private boolean useCache = true;
+
+    /**
+     * Create a parameter sweep.
+     * @param runner the runner used for the analysis
+     * @param baseParams parameters providing the values for anything that isn't included in the sweep
+     */
+    public ParameterSweep(AnalysisRunner runner, ParameterList baseParams) {
+        this.runner = runner;
+        this.baseParams = baseParams.duplicate();
+    }
+
+    /**
+     * Add a numeric parameter to the sweep, with values from min to max (inclusive) in fixed steps.
+     * @param key the parameter key
+     * @param min the first value
+     * @param max the last value
+     * @param step the increment between values
+     * @return this sweep
+     */
+    public ParameterSweep addRange(String key, double min, double max, double step) {
+        if (!(step > 0))
+            throw new IllegalArgumentException("Step must be > 0");
+        List<Object> list = new ArrayList<>();
+        int n = (int) Math.floor((max - min) / step + 1e-6);
+        for (int i = 0; i <= n; i++)
+            list.add(min + i * step);
+        return addChoices(key, list);
+    }
+
+    /**
+     * Add a parameter to the sweep, with a specified collection of values.
+     * @param key the parameter key
+     * @param choices the values to use
+     * @return this sweep
+     */
+    public ParameterSweep addChoices(String key, Collection<?> choices) {
+        if (!baseParams.containsKey(key))
+            throw new IllegalArgumentException("No parameter found with key '" + key + "'");
+        if (keys.contains(key))
+            throw new IllegalArgumentException("Parameter '" + key + "' has already been added");
+        if (choices.isEmpty())
+            throw new IllegalArgumentException("At least one value is required for '" + key + "'");
+        keys.add(key);
+        values.add(new ArrayList<>(choices));
+        return this;
+    }
+
+    /**
+     * Set the number of threads used to run the sweep.
+     * By default, this is the number of available processors.
+     * @param nThreads
+     * @return this sweep
+     */
+    public ParameterSweep threads(int nThreads) {
+        if (nThreads < 1)
+            throw new IllegalArgumentException("Number of threads must be >= 1");
+        this.nThreads = nThreads;
+        return this;
+    }
+
+    /**
+     * Set whether the runner should cache the results and intermediate stages for each combination.
+     * By default, this is true. Turn it off if combinations are unlikely to be requested again and share few stages,
+     * so that they don't evict data the runner has cached for interactive analysis.
+     * @param useCache
+     * @return this sweep
+     * @see AnalysisRunner#runAnalysisUncached(ImageData, ParameterList)
+     */
+    public ParameterSweep useCache(boolean useCache) {
+        this.useCache = useCache;
+        return this;
+    }
+
+    /**
+     * Get the number of parameter combinations for each image.
+     * @return
+     */
+    public int nCombinations() {
+        int n = 1;
+        for (var list : values)
+            n = Math.multiplyExact(n, list.size());
+        return n;
+    }
+
+    /**
+     * Create the parameter list for a specified combination.
+     * @param combination the combination index, between 0 and {@link #nCombinations()} - 1
+     * @return
+     */
+    public ParameterList createParameters(int combination) {
+        var params = baseParams.duplicate();
+        int ind = combination;
+        for (int k = keys.size() - 1; k >= 0; k--) {
+            var list = values.get(k);
+            var value = list.get(ind % list.size());
+            if (!ParameterTools.setValue(params, keys.get(k), value))
+                throw new IllegalArgumentException("Invalid value '" + value + "' for parameter '" + keys.get(k) + "'");
+            ind /= list.size();
+        }
+        return params;
+    }
+
+    /**
+     * Run the sweep and wait for it to complete.
+     * @param images the images to analyse
+     * @return the results
+     * @throws InterruptedException if the sweep is interrupted
+     * @throws ExecutionException if the analysis fails
+     */
+    public SweepResults run(Collection<ImageData<BufferedImage>> images) throws InterruptedException, ExecutionException {
+        return run(images, null);
+    }
+
+    /**
+     * Run the sweep and wait for it to complete, optionally notifying a listener as results become available.
+     * @param images the images to analyse
+     * @param progress optional consumer that is passed the (incomplete) results each time a block of combinations
+     *                 has been analysed; this is called from a background thread
+     * @return the results
+     * @throws InterruptedException if the sweep is interrupted
+     * @throws ExecutionException if the analysis fails
+     */
+    public SweepResults run(Collection<ImageData<BufferedImage>> images, Consumer<SweepResults> progress) throws InterruptedException, ExecutionException {
+        List<ImageData<BufferedImage>> imageList = new ArrayList<>(images);
+        List<String> names = new ArrayList<>();
+        for (var imageData : imageList)
+            names.add(imageData.getServer().getMetadata().getName());
+
+        int nCombinations = nCombinations();
+        int blockSize = values.isEmpty() ? 1 : nCombinations / values.get(0).size();
+        var results = new SweepResults(names, keys, values);
+        logger.info("Starting parameter sweep with {} combinations for {} images", nCombinations, imageList.size());
+
+        var pool = Executors.newFixedThreadPool(nThreads, ThreadTools.createThreadFactory("parameter-sweep", true));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int start = 0; start < nCombinations; start += blockSize) {
+                for (int i = 0; i < imageList.size(); i++) {
+                    int imageIndex = i;
+                    int first = start;
+                    int last = Math.min(start + blockSize, nCombinations);
+                    futures.add(pool.submit(() -> {
+                        runBlock(pool, imageList.get(imageIndex), imageIndex, first, last, results);
+                        if (progress != null)
+                            progress.accept(results);
+                        return null;
+                    }));
+                }
+            }
+            for (var future : futures)
+                future.get();
+        } finally {
+            pool.shutdownNow();
+        }
+        results.finish();
+        logger.info("Parameter sweep completed: {}", results);
+        return results;
+    }
+
+    private void runBlock(ExecutorService pool, ImageData<BufferedImage> imageData, int imageIndex, int first, int last, SweepResults results) throws InterruptedException {
+        for (int c = first; c < last; c++) {
+            // The runner clears the interrupted status, so check the pool instead
+            if (pool.isShutdown())
+                throw new InterruptedException("Parameter sweep cancelled");
+            var params = createParameters(c);
+            var result = useCache ? runner.runAnalysis(imageData, params) : runner.runAnalysisUncached(imageData, params);
+            if (result == null) {
+                logger.warn("No result for combination {} of {}", c, imageData);
+                continue;
+            }
+            results.set(imageIndex, c,
+                    result.numObjectsProperty().get(),
+                    result.meanAreaProperty().get(),
+                    result.meanIntensityProperty().get());
+        }
+    }
+
+}
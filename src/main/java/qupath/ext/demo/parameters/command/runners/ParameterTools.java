@@ -0,0 +1,94 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import qupath.lib.plugins.parameters.DoubleParameter;
+import qupath.lib.plugins.parameters.EmptyParameter;
+import qupath.lib.plugins.parameters.IntParameter;
+import qupath.lib.plugins.parameters.Parameter;
+import qupath.lib.plugins.parameters.ParameterList;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Static helper methods for working with parameter lists outside of a parameter panel.
+ */
+public final class ParameterTools {
+
+    private ParameterTools() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Set the value of a parameter.
+     * Numbers are converted to the type required by numeric parameters, rounding if necessary.
+     * @param params the parameter list to update
+     * @param key the parameter key
+     * @param value the new value
+     * @return true if the value was set, false if it was invalid for the parameter
+     * @throws IllegalArgumentException if the parameter list does not contain the key
+     */
+    @SuppressWarnings("unchecked")
+    public static boolean setValue(ParameterList params, String key, Object value) {
+        var param = params.getParameters().get(key);
+        if (param == null)
+            throw new IllegalArgumentException("No parameter found with key '" + key + "'");
+        if (param instanceof IntParameter && value instanceof Number)
+            value = (int) Math.round(((Number) value).doubleValue());
+        else if (param instanceof DoubleParameter && value instanceof Number)
+            value = ((Number) value).doubleValue();
+        return ((Parameter<Object>) param).setValue(value);
+    }
+
+    /**
+     * Set parameter values from a JSON object, such as the one created by {@link ParameterList#convertToJson(ParameterList)}.
+     * Only the parameters included in the JSON are changed.
+     * @param params the parameter list to update
+     * @param json a JSON object mapping parameter keys to values
+     * @throws IllegalArgumentException if the JSON is not an object, or contains a key or value that isn't valid for the
+     *                                  parameter list
+     */
+    public static void setValuesFromJson(ParameterList params, String json) {
+        var element = JsonParser.parseString(json);
+        if (!element.isJsonObject())
+            throw new IllegalArgumentException("Parameters must be a JSON object");
+        for (var entry : element.getAsJsonObject().entrySet()) {
+            if (entry.getValue().isJsonNull())
+                continue;
+            if (!entry.getValue().isJsonPrimitive())
+                throw new IllegalArgumentException("Unsupported value for parameter '" + entry.getKey() + "': " + entry.getValue());
+            var primitive = (JsonPrimitive) entry.getValue();
+            Object value;
+            if (primitive.isBoolean())
+                value = primitive.getAsBoolean();
+            else if (primitive.isNumber())
+                value = primitive.getAsDouble();
+            else
+                value = primitive.getAsString();
+            if (!setValue(params, entry.getKey(), value))
+                throw new IllegalArgumentException("Invalid value '" + value + "' for parameter '" + entry.getKey() + "'");
+        }
+    }
+
+    /**
+     * Create a canonical string from the values of a parameter list, which is the same for any two lists with the same
+     * keys and values - regardless of the order in which the parameters were added, their prompts or whether they are
+     * hidden. Title and empty parameters are skipped.
+     * @param params the parameter list
+     * @return a string of the form {@code key1=value1;key2=value2;...}, sorted by key
+     */
+    public static String getFingerprint(ParameterList params) {
+        Map<String, Object> values = new TreeMap<>();
+        for (var entry : params.getParameters().entrySet()) {
+            var param = entry.getValue();
+            if (!(param instanceof EmptyParameter))
+                values.put(entry.getKey(), param.getValueOrDefault());
+        }
+        var sb = new StringBuilder();
+        for (var entry : values.entrySet())
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append(';');
+        return sb.toString();
+    }
+
+}
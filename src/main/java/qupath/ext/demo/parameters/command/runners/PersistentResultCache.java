@@ -0,0 +1,443 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.ext.demo.parameters.command.MeasurementTable;
+import qupath.lib.gui.prefs.PathPrefs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Cache for analysis results that persists between sessions, as one compact binary file per result.
+ * <p>
+ * Results are keyed by a SHA-256 hash of the pixels that were analysed, combined with a canonical fingerprint of
+ * the parameters - so a result can be reused for any image with the same content, even if it has been moved or
+ * duplicated. Each file holds the measurement columns of the result followed by its labelled image.
+ * Files are read back by memory mapping: the measurements are read straight away, while the labels are only copied
+ * out of the mapped file if the objects are needed.
+ * <p>
+ * Results are written on a single background thread, so that adding them doesn't delay the analysis; if writes
+ * can't keep up, new results are skipped rather than queued. When the files exceed the size limit, the least recently
+ * used are deleted.
+ */
+public final class PersistentResultCache implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(PersistentResultCache.class);
+
+    private static final AnalysisMetrics metrics = AnalysisMetrics.getInstance();
+
+    private static final int MAGIC = 0x51505243; // "QPRC"
+
+    /**
+     * Format version, which is included in every key - so that changing it ignores all previous files.
+     */
+    private static final int VERSION = 1;
+
+    private static final String EXTENSION = ".qprc";
+
+    private static final byte LABELS_16_BIT = 2;
+    private static final byte LABELS_FLOAT = 4;
+
+    /**
+     * Maximum number of results waiting to be written.
+     */
+    private static final int MAX_PENDING_WRITES = 4;
+
+    /**
+     * Default maximum size of all files, in bytes.
+     */
+    public static final long DEFAULT_MAX_BYTES = 1L << 30;
+
+    private final Path directory;
+    private final long maxBytes;
+
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        var thread = new Thread(r, "parameter-demo-result-cache");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private PersistentResultCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Open a cache in a directory, creating the directory if necessary.
+     * Any incomplete files left by an earlier session are deleted.
+     * @param directory the directory for the cache files
+     * @param maxBytes the approximate maximum total size of the files
+     * @return the cache
+     * @throws IOException if the directory could not be created or read
+     */
+    public static PersistentResultCache open(Path directory, long maxBytes) throws IOException {
+        Files.createDirectories(directory);
+        var cache = new PersistentResultCache(directory, maxBytes);
+        long bytes = 0;
+        for (var path : listFiles(directory)) {
+            if (path.getFileName().toString().endsWith(EXTENSION))
+                bytes += Files.size(path);
+            else if (path.getFileName().toString().endsWith(".tmp"))
+                Files.deleteIfExists(path);
+        }
+        cache.totalBytes.set(bytes);
+        logger.debug("Opened result cache at {} ({} MB)", directory, bytes / (1024 * 1024));
+        return cache;
+    }
+
+    /**
+     * Get the default directory for the cache, which is within the QuPath user directory if it has been set,
+     * or the temp directory otherwise.
+     * @return
+     */
+    public static Path getDefaultDirectory() {
+        String userPath = PathPrefs.getUserPath();
+        if (userPath != null)
+            return Paths.get(userPath, "cache", "parameter-demo");
+        return Paths.get(System.getProperty("java.io.tmpdir"), "qupath-parameter-demo-cache");
+    }
+
+    /**
+     * Compute a hash of the pixels of an image, for use with {@link #createKey(String, String)}.
+     * This can be expensive for large images, so should be cached where possible.
+     * @param ip an 8-bit, 16-bit or 32-bit image
+     * @return the hash, as a hex string
+     */
+    public static String hashPixels(ImageProcessor ip) {
+        var digest = createDigest();
+        var header = ByteBuffer.allocate(12);
+        header.putInt(ip.getWidth()).putInt(ip.getHeight()).putInt(ip.getBitDepth());
+        digest.update(header.array());
+        var pixels = ip.getPixels();
+        if (pixels instanceof byte[]) {
+            digest.update((byte[]) pixels);
+        } else if (pixels instanceof short[]) {
+            var buffer = ByteBuffer.allocate(((short[]) pixels).length * 2);
+            buffer.asShortBuffer().put((short[]) pixels);
+            digest.update(buffer);
+        } else if (pixels instanceof float[]) {
+            var buffer = ByteBuffer.allocate(((float[]) pixels).length * 4);
+            buffer.asFloatBuffer().put((float[]) pixels);
+            digest.update(buffer);
+        } else {
+            throw new IllegalArgumentException("Unsupported image type: " + ip);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Create a key for a result.
+     * @param pixelHash the hash of the pixels analysed, from {@link #hashPixels(ImageProcessor)}
+     * @param fingerprint a canonical description of everything else that determines the result,
+     *                    e.g. from {@link ParameterTools#getFingerprint(qupath.lib.plugins.parameters.ParameterList)}
+     * @return the key
+     */
+    public static String createKey(String pixelHash, String fingerprint) {
+        var digest = createDigest();
+        digest.update((VERSION + ":" + pixelHash + ":" + fingerprint).getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Query whether a result has been stored for a key.
+     * @param key
+     * @return
+     */
+    public boolean contains(String key) {
+        return Files.isRegularFile(getPath(key));
+    }
+
+    /**
+     * Read a stored result.
+     * @param key
+     * @return the result, or null if there is no result for the key (or it could not be read)
+     */
+    public Entry get(String key) {
+        var path = getPath(key);
+        try (var timer = metrics.startTimer("Persistent cache read");
+             var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            var entry = readEntry(buffer);
+            metrics.increment("Persistent cache hits");
+            touch(path);
+            return entry;
+        } catch (NoSuchFileException e) {
+            metrics.increment("Persistent cache misses");
+            return null;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Unable to read cached result {}: {}", path, e.getMessage());
+            logger.debug(e.getMessage(), e);
+            metrics.increment("Persistent cache misses");
+            return null;
+        }
+    }
+
+    private static Entry readEntry(ByteBuffer buffer) {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+            throw new IllegalArgumentException("Not a cached result, or an unsupported version");
+        var measurements = MeasurementTable.readFrom(buffer);
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        byte type = buffer.get();
+        if (type != LABELS_16_BIT && type != LABELS_FLOAT)
+            throw new IllegalArgumentException("Unsupported label type " + type);
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("Invalid label image size " + width + "x" + height);
+        long nBytes = Math.multiplyExact(Math.multiplyExact((long) width, height), type);
+        if (buffer.remaining() != nBytes)
+            throw new IllegalArgumentException("Expected " + nBytes + " bytes of labels, but found " + buffer.remaining());
+        return new Entry(measurements, width, height, type, buffer.slice());
+    }
+
+    /**
+     * Store a result in the background, replacing any existing result for the key.
+     * The result is skipped if too many others are waiting to be written.
+     * @param key the key, from {@link #createKey(String, String)}
+     * @param measurements the measurements of the result, with one row for each label in order (i.e. row {@code i} for label {@code i + 1})
+     * @param labels supplier of the labelled image; this is called on the background thread, so may do some work.
+     *               If it returns null, nothing is stored.
+     */
+    public void put(String key, MeasurementTable measurements, Supplier<? extends ImageProcessor> labels) {
+        if (pendingWrites.incrementAndGet() > MAX_PENDING_WRITES) {
+            pendingWrites.decrementAndGet();
+            metrics.increment("Persistent cache writes skipped");
+            return;
+        }
+        try {
+            writer.execute(() -> {
+                try (var timer = metrics.startTimer("Persistent cache write")) {
+                    var ipLabels = labels.get();
+                    if (ipLabels != null)
+                        write(key, measurements, ipLabels);
+                } catch (IOException | RuntimeException e) {
+                    logger.warn("Unable to write cached result: {}", e.getMessage());
+                    logger.debug(e.getMessage(), e);
+                } finally {
+                    pendingWrites.decrementAndGet();
+                }
+            });
+        } catch (RuntimeException e) {
+            // Most likely because the cache has been closed
+            pendingWrites.decrementAndGet();
+            logger.debug("Unable to store result: {}", e.getMessage());
+        }
+    }
+
+    private void write(String key, MeasurementTable measurements, ImageProcessor ipLabels) throws IOException {
+        byte type = ipLabels instanceof ShortProcessor ? LABELS_16_BIT : LABELS_FLOAT;
+        long nLabelBytes = (long) ipLabels.getWidth() * ipLabels.getHeight() * type;
+        long size = 8 + measurements.getSerializedSize() + 9 + nLabelBytes;
+
+        var path = getPath(key);
+        var temp = Files.createTempFile(directory, key, ".tmp");
+        try {
+            try (var channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.putInt(MAGIC);
+                buffer.putInt(VERSION);
+                measurements.writeTo(buffer);
+                buffer.putInt(ipLabels.getWidth());
+                buffer.putInt(ipLabels.getHeight());
+                buffer.put(type);
+                if (type == LABELS_16_BIT)
+                    buffer.asShortBuffer().put((short[]) ipLabels.getPixels());
+                else
+                    buffer.asFloatBuffer().put((float[]) ipLabels.convertToFloatProcessor().getPixels());
+                buffer.force();
+            }
+            long previous = Files.exists(path) ? Files.size(path) : 0;
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            totalBytes.addAndGet(size - previous);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        if (totalBytes.get() > maxBytes)
+            evict();
+    }
+
+    /**
+     * Delete the least recently used files until the total size is below 90% of the maximum.
+     */
+    private void evict() throws IOException {
+        List<Path> paths = listFiles(directory).stream()
+                .filter(p -> p.getFileName().toString().endsWith(EXTENSION))
+                .collect(Collectors.toCollection(ArrayList::new));
+        paths.sort(Comparator.comparing(PersistentResultCache::getLastModified));
+        long bytes = 0;
+        for (var path : paths)
+            bytes += Files.size(path);
+        int nDeleted = 0;
+        for (var path : paths) {
+            if (bytes <= maxBytes * 0.9)
+                break;
+            long size = Files.size(path);
+            try {
+                Files.delete(path);
+                bytes -= size;
+                nDeleted++;
+            } catch (IOException e) {
+                // Files that are still mapped can't be deleted on some platforms
+                logger.debug("Unable to delete {}: {}", path, e.getMessage());
+            }
+        }
+        totalBytes.set(bytes);
+        logger.debug("Deleted {} cached results, {} MB remaining", nDeleted, bytes / (1024 * 1024));
+    }
+
+    /**
+     * Record that a file has been used, so that recently used files are the last to be deleted.
+     */
+    private static void touch(Path path) {
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            logger.debug("Unable to update the modified time of {}: {}", path, e.getMessage());
+        }
+    }
+
+    private static FileTime getLastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static List<Path> listFiles(Path directory) throws IOException {
+        try (Stream<Path> stream = Files.list(directory)) {
+            return stream.collect(Collectors.toList());
+        }
+    }
+
+    private Path getPath(String key) {
+        return directory.resolve(key + EXTENSION);
+    }
+
+    /**
+     * Get the approximate total size of the stored results, in bytes.
+     * @return
+     */
+    public long getSizeBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * Stop writing results, waiting briefly for any pending writes to finish.
+     * Stored results remain available when the cache is next opened.
+     */
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(5, TimeUnit.SECONDS))
+                logger.warn("Timed out waiting for cached results to be written");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PersistentResultCache[" + directory + ", " + totalBytes.get() / (1024 * 1024) + " MB]";
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        var sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+
+
+    /**
+     * A stored result.
+     */
+    public static final class Entry {
+
+        private final MeasurementTable measurements;
+        private final int width;
+        private final int height;
+        private final byte type;
+        private final ByteBuffer labels;
+
+        private Entry(MeasurementTable measurements, int width, int height, byte type, ByteBuffer labels) {
+            this.measurements = measurements;
+            this.width = width;
+            this.height = height;
+            this.type = type;
+            this.labels = labels;
+        }
+
+        /**
+         * Get the measurements of the result.
+         * @return
+         */
+        public MeasurementTable getMeasurements() {
+            return measurements;
+        }
+
+        /**
+         * Get the labelled image, copying it from the mapped file.
+         * @return
+         */
+        public ImageProcessor getLabels() {
+            var buffer = labels.duplicate();
+            if (type == LABELS_16_BIT) {
+                short[] pixels = new short[width * height];
+                buffer.asShortBuffer().get(pixels);
+                return new ShortProcessor(width, height, pixels, null);
+            } else {
+                float[] pixels = new float[width * height];
+                buffer.asFloatBuffer().get(pixels);
+                return new FloatProcessor(width, height, pixels);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,471 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * Store for the pixels of image regions, held as compact 8-bit or 32-bit float planes.
+ * <p>
+ * Planes are only weakly tied to their {@link ImageData}, so they are released once the image itself is no longer
+ * used (or when {@link #remove(ImageData)} is called). Up to a fixed number of bytes are kept on the heap; beyond that,
+ * the least recently used planes are written to a memory-mapped temporary file, and copied back to the heap when they
+ * are next needed. Since planes are never modified, each is written at most once - and moving it off the heap again is
+ * then free. Space in the file that is released by removed planes is reused for new ones.
+ * Planes that are too large to be mapped in one go (i.e. over 2 GB) are always kept on the heap.
+ * <p>
+ * Pixels are converted directly from the {@link BufferedImage} raster, without creating an ImageJ image first.
+ * 8-bit planes follow ImageJ's default 8-bit conversion: RGB images are converted to the unweighted mean of the
+ * red, green and blue values, while other images use the first channel, scaled from its minimum to its maximum
+ * if it isn't already 8-bit.
+ */
+public final class PixelStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(PixelStore.class);
+
+    private final long maxHeapBytes;
+
+    private final Map<ImageData<?>, Map<PlaneKey, Plane>> planes = new WeakHashMap<>();
+
+    /**
+     * Planes currently on the heap, in access order.
+     */
+    private final Map<Plane, Boolean> heapPlanes = new LinkedHashMap<>(16, 0.75f, true);
+    private long heapBytes;
+
+    /**
+     * Planes that have been written to the temporary file (and may also be on the heap).
+     */
+    private final Set<Plane> spilledPlanes = new HashSet<>();
+    private FileChannel spillChannel;
+    private long spillBytes;
+
+    /**
+     * Regions of the temporary file that are no longer used, mapping the offset of each to its length.
+     * Neighbouring regions are always combined, and there is never a free region at the end of the file.
+     */
+    private final TreeMap<Long, Long> freeRegions = new TreeMap<>();
+
+    /**
+     * Create a pixel store.
+     * @param maxHeapBytes the approximate maximum number of bytes to keep on the heap; the most recently used plane is
+     *                     always kept on the heap, even if it is larger than this
+     */
+    public PixelStore(long maxHeapBytes) {
+        this.maxHeapBytes = maxHeapBytes;
+    }
+
+    /**
+     * Get the 8-bit pixels for a region, reading them from the image if necessary.
+     * @param imageData the image
+     * @param request the region to read
+     * @return the pixels; these may be shared and must not be modified
+     * @throws IOException if the pixels could not be read
+     */
+    public ByteProcessor getBytes(ImageData<BufferedImage> imageData, RegionRequest request) throws IOException {
+        var key = new PlaneKey(request, false);
+        var bp = (ByteProcessor) getProcessor(imageData, key);
+        if (bp == null) {
+            bp = readBytes(imageData.getServer(), request);
+            put(imageData, key, bp, (long) bp.getWidth() * bp.getHeight());
+        }
+        return bp;
+    }
+
+    /**
+     * Get the float pixels of the first channel for a region, reading them from the image if necessary.
+     * Unlike {@link #getBytes(ImageData, RegionRequest)}, no conversion or scaling is applied.
+     * @param imageData the image
+     * @param request the region to read
+     * @return the pixels; these may be shared and must not be modified
+     * @throws IOException if the pixels could not be read
+     */
+    public FloatProcessor getFloats(ImageData<BufferedImage> imageData, RegionRequest request) throws IOException {
+        var key = new PlaneKey(request, true);
+        var fp = (FloatProcessor) getProcessor(imageData, key);
+        if (fp == null) {
+            fp = readFloats(imageData.getServer(), request);
+            put(imageData, key, fp, (long) fp.getWidth() * fp.getHeight() * 4L);
+        }
+        return fp;
+    }
+
+    /**
+     * Remove all planes for an image.
+     * @param imageData
+     */
+    public synchronized void remove(ImageData<?> imageData) {
+        var removed = planes.remove(imageData);
+        if (removed != null) {
+            for (var plane : removed.values())
+                discard(plane);
+        }
+    }
+
+    /**
+     * Remove all planes, and delete the temporary file (if any).
+     */
+    public synchronized void clear() {
+        for (var map : planes.values()) {
+            for (var plane : map.values())
+                discard(plane);
+        }
+        planes.clear();
+        resetSpillFile();
+    }
+
+    /**
+     * Get the number of bytes currently held on the heap.
+     * @return
+     */
+    public synchronized long getHeapBytes() {
+        return heapBytes;
+    }
+
+    /**
+     * Get the number of bytes of the temporary file that are in use, including any space between planes that has been
+     * released by removed planes (which is reused for the next planes that are written).
+     * @return
+     */
+    public synchronized long getSpilledBytes() {
+        return spillBytes;
+    }
+
+    private synchronized ImageProcessor getProcessor(ImageData<?> imageData, PlaneKey key) {
+        var map = planes.get(imageData);
+        var plane = map == null ? null : map.get(key);
+        if (plane == null)
+            return null;
+        if (plane.pixels != null) {
+            heapPlanes.get(plane);
+        } else {
+            // Copy back from the file, retaining the file copy in case the plane is needed off the heap again
+            var buffer = plane.spilled.duplicate();
+            buffer.rewind();
+            if (key.isFloat) {
+                float[] pixels = new float[plane.width * plane.height];
+                buffer.asFloatBuffer().get(pixels);
+                plane.pixels = pixels;
+            } else {
+                byte[] pixels = new byte[plane.width * plane.height];
+                buffer.get(pixels);
+                plane.pixels = pixels;
+            }
+            addToHeap(plane);
+        }
+        if (key.isFloat)
+            return new FloatProcessor(plane.width, plane.height, (float[]) plane.pixels);
+        return new ByteProcessor(plane.width, plane.height, (byte[]) plane.pixels);
+    }
+
+    private synchronized void put(ImageData<?> imageData, PlaneKey key, ImageProcessor ip, long nBytes) {
+        var map = planes.computeIfAbsent(imageData, k -> new HashMap<>());
+        var previous = map.get(key);
+        if (previous != null)
+            discard(previous);
+        var plane = new Plane(imageData, ip.getWidth(), ip.getHeight(), ip.getPixels(), nBytes);
+        map.put(key, plane);
+        addToHeap(plane);
+    }
+
+    private void addToHeap(Plane plane) {
+        heapPlanes.put(plane, Boolean.TRUE);
+        heapBytes += plane.nBytes;
+        // Planes for images that have been garbage collected can't be returned any more
+        heapPlanes.keySet().removeIf(p -> {
+            if (p.owner.get() != null)
+                return false;
+            heapBytes -= p.nBytes;
+            p.pixels = null;
+            return true;
+        });
+        for (var p : spilledPlanes.toArray(Plane[]::new)) {
+            if (p.owner.get() == null)
+                releaseSpilled(p);
+        }
+        var iterator = heapPlanes.keySet().iterator();
+        int nRemaining = heapPlanes.size();
+        while (heapBytes > maxHeapBytes && nRemaining > 1) {
+            var eldest = iterator.next();
+            nRemaining--;
+            if (!canSpill(eldest))
+                continue;
+            iterator.remove();
+            heapBytes -= eldest.nBytes;
+            spill(eldest);
+        }
+    }
+
+    /**
+     * Query whether a plane can be written to the file, which requires that it can be mapped as a single buffer.
+     */
+    private static boolean canSpill(Plane plane) {
+        return plane.spilled != null || plane.nBytes <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * Write a plane to the temporary file, and release its heap pixels.
+     * If this fails, the plane is discarded (and will be read from the image again if needed).
+     */
+    private void spill(Plane plane) {
+        if (plane.spilled != null) {
+            plane.pixels = null;
+            return;
+        }
+        try {
+            if (spillChannel == null) {
+                var path = Files.createTempFile("qupath-parameter-demo", ".pixels");
+                spillChannel = FileChannel.open(path,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+                logger.debug("Writing pixels to {}", path);
+            }
+            long offset = allocate(plane.nBytes);
+            MappedByteBuffer buffer;
+            try {
+                buffer = spillChannel.map(FileChannel.MapMode.READ_WRITE, offset, plane.nBytes);
+            } catch (IOException e) {
+                free(offset, plane.nBytes);
+                throw e;
+            }
+            if (plane.pixels instanceof float[])
+                buffer.asFloatBuffer().put((float[]) plane.pixels);
+            else
+                buffer.put((byte[]) plane.pixels);
+            spilledPlanes.add(plane);
+            plane.spilled = buffer;
+            plane.spillOffset = offset;
+        } catch (IOException e) {
+            logger.warn("Unable to write pixels to temporary file: " + e.getLocalizedMessage(), e);
+            removePlane(plane);
+        }
+        plane.pixels = null;
+    }
+
+    private void removePlane(Plane plane) {
+        var imageData = plane.owner.get();
+        var map = imageData == null ? null : planes.get(imageData);
+        if (map != null)
+            map.values().remove(plane);
+    }
+
+    private void discard(Plane plane) {
+        if (heapPlanes.remove(plane) != null)
+            heapBytes -= plane.nBytes;
+        releaseSpilled(plane);
+        plane.pixels = null;
+    }
+
+    private void releaseSpilled(Plane plane) {
+        if (plane.spilled == null)
+            return;
+        plane.spilled = null;
+        spilledPlanes.remove(plane);
+        if (spilledPlanes.isEmpty())
+            resetSpillFile();
+        else
+            free(plane.spillOffset, plane.nBytes);
+    }
+
+    /**
+     * Find space in the temporary file, using the first free region that is large enough or else the end of the file.
+     * @return the offset of the space
+     */
+    private long allocate(long nBytes) {
+        for (var entry : freeRegions.entrySet()) {
+            long offset = entry.getKey();
+            long length = entry.getValue();
+            if (length >= nBytes) {
+                freeRegions.remove(offset);
+                if (length > nBytes)
+                    freeRegions.put(offset + nBytes, length - nBytes);
+                return offset;
+            }
+        }
+        long offset = spillBytes;
+        spillBytes += nBytes;
+        return offset;
+    }
+
+    /**
+     * Release space in the temporary file, combining it with any free neighbours.
+     * The file isn't truncated, since it may still be mapped, but space at the end is reused first.
+     */
+    private void free(long offset, long length) {
+        var previous = freeRegions.floorEntry(offset);
+        if (previous != null && previous.getKey() + previous.getValue() == offset) {
+            freeRegions.remove(previous.getKey());
+            offset = previous.getKey();
+            length += previous.getValue();
+        }
+        var next = freeRegions.remove(offset + length);
+        if (next != null)
+            length += next;
+        if (offset + length == spillBytes)
+            spillBytes = offset;
+        else
+            freeRegions.put(offset, length);
+    }
+
+    /**
+     * Close the temporary file once nothing refers to it, so that its space can be reused.
+     * Mapped buffers are only released by the garbage collector, so the file may remain on disk until then.
+     */
+    private void resetSpillFile() {
+        if (spillChannel == null)
+            return;
+        try {
+            spillChannel.close();
+        } catch (IOException e) {
+            logger.debug("Unable to close temporary file: " + e.getLocalizedMessage(), e);
+        }
+        spillChannel = null;
+        spillBytes = 0;
+        freeRegions.clear();
+    }
+
+
+    /**
+     * Read the 8-bit pixels for a region, without storing them.
+     * @param server the image
+     * @param request the region to read
+     * @return the pixels
+     * @throws IOException if the pixels could not be read
+     */
+    public static ByteProcessor readBytes(ImageServer<BufferedImage> server, RegionRequest request) throws IOException {
+        var img = server.readRegion(request);
+        var raster = img.getRaster();
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int n = width * height;
+        byte[] pixels = new byte[n];
+        if (server.isRGB() && raster.getNumBands() >= 3) {
+            int[] red = raster.getSamples(0, 0, width, height, 0, (int[]) null);
+            int[] green = raster.getSamples(0, 0, width, height, 1, (int[]) null);
+            int[] blue = raster.getSamples(0, 0, width, height, 2, (int[]) null);
+            double w = 1.0 / 3.0;
+            for (int i = 0; i < n; i++)
+                pixels[i] = (byte) (red[i] * w + green[i] * w + blue[i] * w + 0.5);
+        } else if (raster.getDataBuffer().getDataType() == DataBuffer.TYPE_BYTE) {
+            int[] samples = raster.getSamples(0, 0, width, height, 0, (int[]) null);
+            for (int i = 0; i < n; i++)
+                pixels[i] = (byte) samples[i];
+        } else {
+            float[] samples = raster.getSamples(0, 0, width, height, 0, (float[]) null);
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (float v : samples) {
+                if (v < min)
+                    min = v;
+                if (v > max)
+                    max = v;
+            }
+            int type = raster.getDataBuffer().getDataType();
+            boolean isInteger = type != DataBuffer.TYPE_FLOAT && type != DataBuffer.TYPE_DOUBLE;
+            // As ImageJ, with the display range set to the minimum and maximum
+            double scale = isInteger ? 256.0 / (max - min + 1) : (max > min ? 255.0 / (max - min) : 1.0);
+            for (int i = 0; i < n; i++) {
+                double value = (samples[i] - min) * scale + 0.5;
+                if (Double.isNaN(value) || value < 0)
+                    value = 0;
+                else if (value > 255)
+                    value = 255;
+                pixels[i] = (byte) value;
+            }
+        }
+        return new ByteProcessor(width, height, pixels);
+    }
+
+    /**
+     * Read the float pixels of the first channel for a region, without storing them.
+     * @param server the image
+     * @param request the region to read
+     * @return the pixels
+     * @throws IOException if the pixels could not be read
+     */
+    public static FloatProcessor readFloats(ImageServer<BufferedImage> server, RegionRequest request) throws IOException {
+        var img = server.readRegion(request);
+        int width = img.getWidth();
+        int height = img.getHeight();
+        float[] pixels = img.getRaster().getSamples(0, 0, width, height, 0, (float[]) null);
+        return new FloatProcessor(width, height, pixels);
+    }
+
+
+    private static class PlaneKey {
+
+        private final RegionRequest request;
+        private final boolean isFloat;
+
+        private PlaneKey(RegionRequest request, boolean isFloat) {
+            this.request = request;
+            this.isFloat = isFloat;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof PlaneKey))
+                return false;
+            var other = (PlaneKey) obj;
+            return isFloat == other.isFloat && request.equals(other.request);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(request, isFloat);
+        }
+
+    }
+
+    private static class Plane {
+
+        private final WeakReference<ImageData<?>> owner;
+        private final int width;
+        private final int height;
+        private final long nBytes;
+
+        /**
+         * Pixels on the heap (byte[] or float[]), or null if the plane is only in the file or has been discarded.
+         */
+        private Object pixels;
+        /**
+         * Pixels in the temporary file, or null if the plane hasn't been written to the file.
+         */
+        private MappedByteBuffer spilled;
+        /**
+         * Offset of the pixels in the temporary file, if they have been written to the file.
+         */
+        private long spillOffset;
+
+        private Plane(ImageData<?> owner, int width, int height, Object pixels, long nBytes) {
+            this.owner = new WeakReference<>(owner);
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+            this.nBytes = nBytes;
+        }
+
+    }
+
+}
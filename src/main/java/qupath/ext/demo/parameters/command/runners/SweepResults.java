@@ -0,0 +1,199 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compact table of summary results from a {@link ParameterSweep}.
+ * <p>
+ * Rather than retaining every analysis result, only the object count, mean area and mean intensity are stored
+ * for each combination of image and parameter values. Parameter values are not stored per row, but are derived
+ * from the combination index.
+ */
+public class SweepResults {
+
+    private final List<String> imageNames;
+    private final List<String> keys;
+    private final List<List<Object>> values;
+    private final int nCombinations;
+
+    private final int[] counts;
+    private final double[] meanAreas;
+    private final double[] meanIntensities;
+    private final AtomicInteger nCompleted = new AtomicInteger();
+
+    private final long startTime = System.nanoTime();
+    private volatile long endTime = -1;
+
+    SweepResults(List<String> imageNames, List<String> keys, List<List<Object>> values) {
+        this.imageNames = Collections.unmodifiableList(new ArrayList<>(imageNames));
+        this.keys = Collections.unmodifiableList(new ArrayList<>(keys));
+        this.values = Collections.unmodifiableList(new ArrayList<>(values));
+        int n = 1;
+        for (var list : values)
+            n = Math.multiplyExact(n, list.size());
+        this.nCombinations = n;
+        int nRows = Math.multiplyExact(n, imageNames.size());
+        this.counts = new int[nRows];
+        this.meanAreas = new double[nRows];
+        this.meanIntensities = new double[nRows];
+        for (int i = 0; i < nRows; i++) {
+            counts[i] = -1;
+            meanAreas[i] = Double.NaN;
+            meanIntensities[i] = Double.NaN;
+        }
+    }
+
+    void set(int imageIndex, int combination, int count, double meanArea, double meanIntensity) {
+        int row = getRow(imageIndex, combination);
+        counts[row] = count;
+        meanAreas[row] = meanArea;
+        meanIntensities[row] = meanIntensity;
+        nCompleted.incrementAndGet();
+    }
+
+    void finish() {
+        endTime = System.nanoTime();
+    }
+
+    private int getRow(int imageIndex, int combination) {
+        return imageIndex * nCombinations + combination;
+    }
+
+    /**
+     * Get the number of images.
+     * @return
+     */
+    public int nImages() {
+        return imageNames.size();
+    }
+
+    /**
+     * Get the number of parameter combinations per image.
+     * @return
+     */
+    public int nCombinations() {
+        return nCombinations;
+    }
+
+    /**
+     * Get the number of image and parameter combinations that have been analysed so far.
+     * @return
+     */
+    public int nCompleted() {
+        return nCompleted.get();
+    }
+
+    /**
+     * Get the name of an image.
+     * @param imageIndex
+     * @return
+     */
+    public String getImageName(int imageIndex) {
+        return imageNames.get(imageIndex);
+    }
+
+    /**
+     * Get the keys of the parameters that were varied, in the order they were added to the sweep.
+     * @return
+     */
+    public List<String> getKeys() {
+        return keys;
+    }
+
+    /**
+     * Get the value of a parameter for a combination.
+     * @param combination the combination index
+     * @param keyIndex the index of the parameter within {@link #getKeys()}
+     * @return
+     */
+    public Object getValue(int combination, int keyIndex) {
+        // The last parameter varies fastest
+        int ind = combination;
+        for (int k = values.size() - 1; k > keyIndex; k--)
+            ind /= values.get(k).size();
+        var list = values.get(keyIndex);
+        return list.get(ind % list.size());
+    }
+
+    /**
+     * Get the number of objects detected, or -1 if the combination has not been analysed.
+     * @param imageIndex
+     * @param combination
+     * @return
+     */
+    public int getCount(int imageIndex, int combination) {
+        return counts[getRow(imageIndex, combination)];
+    }
+
+    /**
+     * Get the mean area of detected objects, or NaN if the combination has not been analysed.
+     * @param imageIndex
+     * @param combination
+     * @return
+     */
+    public double getMeanArea(int imageIndex, int combination) {
+        return meanAreas[getRow(imageIndex, combination)];
+    }
+
+    /**
+     * Get the mean intensity of detected objects, or NaN if the combination has not been analysed.
+     * @param imageIndex
+     * @param combination
+     * @return
+     */
+    public double getMeanIntensity(int imageIndex, int combination) {
+        return meanIntensities[getRow(imageIndex, combination)];
+    }
+
+    /**
+     * Get the time taken for the sweep so far (or in total, if it has finished), in seconds.
+     * @return
+     */
+    public double getElapsedSeconds() {
+        long end = endTime < 0 ? System.nanoTime() : endTime;
+        return (end - startTime) / 1e9;
+    }
+
+    /**
+     * Get the throughput, as the number of image and parameter combinations analysed per second.
+     * @return
+     */
+    public double getCombinationsPerSecond() {
+        double seconds = getElapsedSeconds();
+        return seconds <= 0 ? Double.NaN : nCompleted() / seconds;
+    }
+
+    /**
+     * Write the results as comma-separated values, with one row per image and parameter combination.
+     * @param out
+     * @throws IOException
+     */
+    public void writeCsv(Appendable out) throws IOException {
+        out.append("Image");
+        for (var key : keys)
+            out.append(',').append(key);
+        out.append(",Count,Mean area,Mean intensity\n");
+        for (int i = 0; i < nImages(); i++) {
+            for (int c = 0; c < nCombinations; c++) {
+                out.append('"').append(getImageName(i).replace("\"", "\"\"")).append('"');
+                for (int k = 0; k < keys.size(); k++)
+                    out.append(',').append(String.valueOf(getValue(c, k)));
+                out.append(',').append(String.valueOf(getCount(i, c)));
+                out.append(',').append(String.valueOf(getMeanArea(i, c)));
+                out.append(',').append(String.valueOf(getMeanIntensity(i, c)));
+                out.append('\n');
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SweepResults[images=%d, combinations=%d, completed=%d, %.1f combinations/s]",
+                nImages(), nCombinations, nCompleted(), getCombinationsPerSecond());
+    }
+
+}
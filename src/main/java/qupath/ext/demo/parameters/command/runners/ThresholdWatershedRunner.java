@@ -1,51 +1,173 @@
 package qupath.ext.demo.parameters.command.runners;
 
-import ij.IJ;
 import ij.ImagePlus;
-import ij.gui.Roi;
-import ij.measure.Measurements;
-import ij.plugin.filter.MaximumFinder;
 import ij.process.AutoThresholder;
 import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import qupath.ext.demo.parameters.command.AnalysisResult;
+import qupath.ext.demo.parameters.command.MeasurementTable;
 import qupath.imagej.processing.RoiLabeling;
 import qupath.imagej.processing.SimpleThresholding;
-import qupath.imagej.tools.IJTools;
 import qupath.lib.color.ColorMaps;
 import qupath.lib.gui.dialogs.ParameterPanelFX;
 import qupath.lib.images.ImageData;
 import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
 import qupath.lib.plugins.parameters.ParameterList;
 import qupath.lib.regions.ImagePlane;
 import qupath.lib.regions.RegionRequest;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class ThresholdWatershedRunner implements AnalysisRunner {
 
     private static final Logger logger = LoggerFactory.getLogger(ThresholdWatershedRunner.class);
 
+    private static final AnalysisMetrics metrics = AnalysisMetrics.getInstance();
+
     private enum Connectivity {
         FOUR_CONNECTED,
         EIGHT_CONNECTED
     }
 
-    private Map<String, AnalysisResult> cachedResults = new ConcurrentHashMap<>();
+    /**
+     * Downsample factor applied to the image when computing previews.
+     */
+    private static final double PREVIEW_DOWNSAMPLE = 2.0;
+
+    /**
+     * Minimum number of pixels in an image for a preview to be worthwhile.
+     */
+    private static final long PREVIEW_MIN_PIXELS = 256 * 256;
+
+    /**
+     * Step size used when speculatively computing results for nearby Gaussian sigma values.
+     */
+    private static final double SIGMA_STEP = 0.1;
+
+    /**
+     * Cache for images, intermediate stages and results.
+     * All keys start with the server path of the corresponding image, followed by a colon.
+     */
+    private final AnalysisCache<String, Object> cache;
+
+    /**
+     * Pixels of the images that are analysed, converted to 8-bit.
+     */
+    private final PixelStore pixelStore;
+
+    /**
+     * Noise fields, which can be shared between images of the same size.
+     */
+    private final NoiseFieldPool noiseFields;
+
+    private final GaussianBlurEngine blurEngine = new GaussianBlurEngine();
+
+    /**
+     * Sigma values of smoothed images that have been cached, keyed on the image and noise.
+     * Entries may refer to images that have since been evicted from the cache.
+     */
+    private final Map<String, NavigableSet<Double>> blurredSigmas = new ConcurrentHashMap<>();
+
+    /**
+     * Keys of smoothed images that were derived from an image with a smaller sigma, at any time since the image was
+     * opened. Stages computed from these may still be cached, so results for these keys are never persisted.
+     */
+    private final Set<String> incrementalBlurKeys = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Whether a smoothed image may be derived from a cached image with a smaller sigma.
+     */
+    private volatile boolean incrementalBlur = true;
+
+    /**
+     * Optional settings to analyse the whole image in tiles; if null, the lowest resolution is analysed in one go.
+     */
+    private final TiledAnalysis tiling;
+
+    /**
+     * Optional cache for final results that persists between sessions; this isn't used with tiling.
+     */
+    private volatile PersistentResultCache persistentCache;
+
+    /**
+     * Create a runner that may use up to a quarter of the maximum heap size for caching.
+     */
+    public ThresholdWatershedRunner() {
+        this(Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * Create a runner with a specified memory budget for caching.
+     * @param maxCacheBytes the approximate maximum number of bytes used to cache images and results
+     */
+    public ThresholdWatershedRunner(long maxCacheBytes) {
+        this(maxCacheBytes, null);
+    }
+
+    /**
+     * Create a runner with a specified memory budget for caching, and optional tiling.
+     * A quarter of the budget is used to keep the pixels of the images that are analysed on the heap (beyond that,
+     * pixels are written to a temporary file), and a sixteenth for noise fields.
+     * @param maxCacheBytes the approximate maximum number of bytes used to cache images and results
+     * @param tiling settings to analyse the whole image in tiles at a chosen downsample;
+     *               if null, the lowest-resolution level of the image is analysed in one go
+     */
+    public ThresholdWatershedRunner(long maxCacheBytes, TiledAnalysis tiling) {
+        this.pixelStore = new PixelStore(maxCacheBytes / 4);
+        this.noiseFields = new NoiseFieldPool(maxCacheBytes / 16);
+        this.cache = new AnalysisCache<>(maxCacheBytes - maxCacheBytes / 4 - maxCacheBytes / 16, ThresholdWatershedRunner::estimateBytes);
+        this.tiling = tiling;
+    }
 
-    private Map<ImageData<BufferedImage>, ImagePlus> imageMap = new ConcurrentHashMap<>();
+    /**
+     * Set whether a smoothed image may be derived by further smoothing a cached image with a smaller sigma.
+     * This makes increasing the Gaussian sigma faster, but the result then depends slightly upon which images were
+     * cached: see {@link GaussianBlurEngine#blurFrom(FloatProcessor, FloatProcessor, double, double)}.
+     * Turn this off if results must be exactly reproducible. Results that depend upon incremental smoothing are never
+     * stored in the persistent cache.
+     * @param incrementalBlur
+     */
+    public void setIncrementalBlur(boolean incrementalBlur) {
+        this.incrementalBlur = incrementalBlur;
+    }
+
+    /**
+     * Set a cache to store final results between sessions, keyed by the content of the image rather than its path.
+     * This is only used when the whole image is analysed in one go, i.e. not with tiling.
+     * The cache may be shared between runners, and isn't closed by this runner.
+     * @param persistentCache the cache, or null if results should not be persisted
+     */
+    public void setPersistentCache(PersistentResultCache persistentCache) {
+        this.persistentCache = persistentCache;
+    }
 
-    private Map<ImagePlus, FloatProcessor> noiseCache = new ConcurrentHashMap<>();
+    /**
+     * Get the cache used by this runner.
+     * This is useful to query hit, miss and eviction counts when tuning the memory budget.
+     * @return
+     */
+    public AnalysisCache<String, ?> getCache() {
+        return cache;
+    }
 
     @Override
     public ParameterList createParameterList() {
@@ -90,19 +212,25 @@ public class ThresholdWatershedRunner implements AnalysisRunner {
                 "",
                 0.0,
                 20.0,
-                "The watershed tolerance (using ImageJ's 'Find Maxima')");
+                "The watershed tolerance: maxima are only separated if they stand out from their surroundings by more than this");
 
         boolean useQuality = false;
-        if (useQuality) {
+        if (useQuality)
             params.addTitleParameter("Quality parameters");
-            params.addDoubleParameter("noise",
-                    "Noise sigma",
-                    0.0,
-                    "",
-                    0.0,
-                    50,
-                    "The sigma value of Gaussian noise added to the image");
-        }
+        params.addDoubleParameter("noise",
+                "Noise sigma",
+                0.0,
+                "",
+                0.0,
+                50,
+                "The sigma value of Gaussian noise added to the image");
+        params.addIntParameter("noiseSeed",
+                "Noise seed",
+                0,
+                "",
+                "The seed used to generate the noise; each seed gives a different (but reproducible) noise field");
+        if (!useQuality)
+            params.setHiddenParameters(true, "noise", "noiseSeed");
 
 //        params.addChoiceParameter("connectivity",
 //                "Connectivity",
@@ -116,10 +244,25 @@ public class ThresholdWatershedRunner implements AnalysisRunner {
     @Override
     public void updateParameterPane(ParameterPanelFX parameterPane) {
         var params = parameterPane.getParameters();
-        parameterPane.addParameterChangeListener((a, b, c) -> updateEnabled(params, parameterPane));
+        parameterPane.addParameterChangeListener((list, key, isAdjusting) -> {
+            if ("gaussianSigma".equals(key))
+                snapSigma(params, parameterPane);
+            updateEnabled(params, parameterPane);
+        });
         updateEnabled(params, parameterPane);
     }
 
+    /**
+     * Snap the Gaussian sigma to the step used for speculation, since the slider is otherwise continuous - and results
+     * computed speculatively for neighbouring values would then almost never be requested.
+     */
+    private static void snapSigma(ParameterList params, ParameterPanelFX parameterPane) {
+        double sigma = params.getDoubleParameterValue("gaussianSigma");
+        double snapped = roundToStep(sigma, SIGMA_STEP);
+        if (snapped != sigma)
+            parameterPane.setNumericParameterValue("gaussianSigma", snapped);
+    }
+
     private static void updateEnabled(ParameterList params, ParameterPanelFX parameterPane) {
         parameterPane.setParameterEnabled("tolerance", params.getBooleanParameterValue("doWatershed"));
     }
@@ -132,127 +275,810 @@ public class ThresholdWatershedRunner implements AnalysisRunner {
         if (Thread.interrupted())
             return null;
 
-        String key = imageData.getServer().getPath() + ":" + paramsString;
-        if (cachedResults.containsKey(key)) {
-            return cachedResults.get(key);
+        String imageKey = imageData.getServer().getPath();
+        String key = imageKey + ":" + paramsString;
+        var cachedResult = (AnalysisResult) getCached(key);
+        if (cachedResult != null) {
+            return cachedResult;
         }
 
-        RegionRequest request = RegionRequest.createInstance(imageData.getServer(), imageData.getServer().getDownsampleForResolution(imageData.getServer().nResolutions() - 1));
-        var imp = imageMap.computeIfAbsent(imageData, id -> getImagePlus(id, request));
+        try (var timer = metrics.startTimer("Analysis")) {
+            return runAnalysis(imageData, params, imageKey, key);
+        }
+    }
 
-        imp.killRoi();
-        var ipOrig = imp.getProcessor().duplicate();
+    /**
+     * Run the analysis without caching any intermediate stages or the result, and without using the persistent cache.
+     * The pixels of the image itself are still stored, and a final result that is already cached is returned.
+     * <p>
+     * Any noise is generated from a new field for the seed, rather than taken from the shared pool, so that the
+     * results for different seeds are independent. Cached results with noise are therefore not used.
+     */
+    @Override
+    public AnalysisResult runAnalysisUncached(ImageData<BufferedImage> imageData, ParameterList params) {
+        var paramsString = ParameterList.convertToJson(params);
+
+        if (Thread.interrupted())
+            return null;
+
+        double noise = params.containsKey("noise") ? params.getDoubleParameterValue("noise") : 0;
+        if (!(noise > 0)) {
+            String key = imageData.getServer().getPath() + ":" + paramsString;
+            var cachedResult = (AnalysisResult) getCached(key);
+            if (cachedResult != null) {
+                return cachedResult;
+            }
+        }
+
+        try (var timer = metrics.startTimer("Analysis")) {
+            return runAnalysis(imageData, params, null, null);
+        }
+    }
+
+    /**
+     * Run the analysis.
+     * @param imageKey key used to cache intermediate stages; if null, stages are not cached and the persistent cache
+     *                 isn't used
+     * @param key key used to cache the result; if null, the result is not cached
+     */
+    private AnalysisResult runAnalysis(ImageData<BufferedImage> imageData, ParameterList params,
+                                       String imageKey, String key) {
+        AnalysisResult results;
+        if (tiling == null) {
+            RegionRequest request = getDefaultRequest(imageData);
+            var imp = getDefaultImage(imageData, request);
+            if (imp == null)
+                return null;
+            var persistentCache = imageKey == null ? null : this.persistentCache;
+            String persistentKey = persistentCache == null ? null : getPersistentKey(imageKey, imp, params);
+            var entry = persistentKey == null ? null : persistentCache.get(persistentKey);
+            if (entry != null) {
+                results = createResult(imageData, entry, imp, request);
+            } else {
+                results = analyseRegion(imageData, imp, request, params, imageKey, persistentKey, 1.0, false);
+                if (results == null)
+                    return null;
+            }
+        } else {
+            // Tiles aren't cached, since they could easily fill the cache for a large image
+            List<PathObject> pathObjects;
+            try {
+                pathObjects = tiling.run(imageData.getServer(), (tile, token) -> token.callWith(
+                        () -> detectObjects(readTile(imageData, tile), tile, params, null, 1.0)));
+            } catch (ExecutionException e) {
+                logger.warn("Tiled analysis failed for {}", imageData, e);
+                return null;
+            }
+            if (pathObjects == null)
+                return null;
+            results = new AnalysisResult(imageData, pathObjects);
+            setColorsByArea(pathObjects, results.getMeasurements());
+            if (Thread.interrupted())
+                return null;
+        }
+
+        putCachedResult(key, results);
+        return results;
+    }
+
+
+    @Override
+    public AnalysisResult runPreview(ImageData<BufferedImage> imageData, ParameterList params) {
+        var paramsString = ParameterList.convertToJson(params);
+
+        String imageKey = imageData.getServer().getPath();
+        // No preview is needed if the final result is already available
+        if (cache.containsKey(imageKey + ":" + paramsString))
+            return null;
+
+        String previewKey = imageKey + ":preview";
+        String key = previewKey + ":" + paramsString;
+        var cachedResult = (AnalysisResult) cache.get(key);
+        if (cachedResult != null) {
+            return cachedResult;
+        }
+
+        RegionRequest request = getDefaultRequest(imageData);
+        var imp = getDefaultImage(imageData, request);
+        if (imp == null || (long) imp.getWidth() * imp.getHeight() < PREVIEW_MIN_PIXELS)
+            return null;
+        // No preview is needed if the final result can be read quickly
+        var persistentCache = tiling == null ? this.persistentCache : null;
+        if (persistentCache != null && persistentCache.contains(getPersistentKey(imageKey, imp, params)))
+            return null;
+        var impPreview = (ImagePlus) cache.computeIfAbsent(previewKey + ":image", k -> createPreviewImage(imp));
+        var requestPreview = RegionRequest.createInstance(request.getPath(), request.getDownsample() * PREVIEW_DOWNSAMPLE,
+                request.getX(), request.getY(), request.getWidth(), request.getHeight());
+
+        AnalysisResult results;
+        try (var timer = metrics.startTimer("Preview")) {
+            results = analyseRegion(imageData, impPreview, requestPreview, params, previewKey, null, PREVIEW_DOWNSAMPLE, true);
+        }
+        if (results == null)
+            return null;
 
-        var fp = imp.getProcessor().convertToFloatProcessor();
+        putCachedResult(key, results);
+        return results;
+    }
+
+
+    /**
+     * Get the parameters for a single step up or down from the current threshold, tolerance and Gaussian sigma values -
+     * in that order, since later steps reuse fewer cached stages.
+     */
+    @Override
+    public List<ParameterList> getSpeculativeParameters(ParameterList params) {
+        List<ParameterList> list = new ArrayList<>();
+        if (Objects.equals(params.getChoiceParameterValue("autoThreshold"), "Manual"))
+            addNeighbors(list, params, "threshold", params.getIntParameterValue("threshold"), 1);
+        if (!params.containsKey("doWatershed") || params.getBooleanParameterValue("doWatershed"))
+            addNeighbors(list, params, "tolerance", params.getIntParameterValue("tolerance"), 1);
         double sigma = params.getDoubleParameterValue("gaussianSigma");
+        addNeighbors(list, params, "gaussianSigma", sigma, SIGMA_STEP);
+        return list;
+    }
+
+    private static void addNeighbors(List<ParameterList> list, ParameterList params, String key, double value, double step) {
+        for (double v : new double[]{value + step, value - step}) {
+            var neighbor = params.duplicate();
+            double rounded = roundToStep(v, step);
+            if (rounded >= 0 && ParameterTools.setValue(neighbor, key, rounded))
+                list.add(neighbor);
+        }
+    }
+
+    /**
+     * Round to a multiple of a step, avoiding floating point noise (since parameters are used as cache keys).
+     * The step should be 1 or the reciprocal of an integer.
+     */
+    private static double roundToStep(double value, double step) {
+        return Math.round(value / step) / (1.0 / step);
+    }
+
+    /**
+     * Analyse a single (cached) image region, returning a result that creates its objects only when they are needed.
+     * @param persistentKey key used to store the result in the persistent cache, or null if it shouldn't be stored
+     * @return the result, or null if the thread was interrupted
+     */
+    private AnalysisResult analyseRegion(ImageData<BufferedImage> imageData, ImagePlus imp, RegionRequest request,
+                                         ParameterList params, String imageKey, String persistentKey, double scale, boolean isPreview) {
+        AnalysisResult result;
+        Supplier<ImageProcessor> labels;
+        if (isComponentTreeSupported(params)) {
+            var tree = getComponentTree(imp, params, imageKey, scale);
+            if (tree == null || Thread.interrupted())
+                return null;
+            int threshold = params.getIntParameterValue("threshold");
+            result = createResult(imageData, tree, threshold, imp, request, scale, isPreview);
+            labels = () -> tree.createLabels(threshold);
+        } else {
+            var detection = detectLabels(imp, params, imageKey, scale);
+            if (detection == null)
+                return null;
+            result = createResult(imageData, detection, request, scale, isPreview);
+            labels = () -> detection.labels;
+        }
+        // Only persist results that don't depend upon which smaller-sigma images happened to be cached
+        var persistentCache = this.persistentCache;
+        if (persistentKey != null && persistentCache != null && !incrementalBlurKeys.contains(getBlurKey(imageKey, params, scale)))
+            persistentCache.put(persistentKey, result.getMeasurements(), labels);
+        return result;
+    }
+
+    /**
+     * Get the key for a final result in the persistent cache, from the content of the image and the parameters.
+     * The hash of the pixels is cached, so only needs to be computed once for each image.
+     * Only results computed from images smoothed directly are persisted, so the key doesn't depend upon whether
+     * incremental smoothing is used.
+     */
+    private String getPersistentKey(String imageKey, ImagePlus imp, ParameterList params) {
+        var pixelHash = (String) cache.computeIfAbsent(imageKey + ":pixelHash", k -> {
+            try (var timer = metrics.startTimer("Hash pixels")) {
+                return PersistentResultCache.hashPixels(imp.getProcessor());
+            }
+        });
+        String fingerprint = getClass().getName() + ":" + ParameterTools.getFingerprint(params);
+        return PersistentResultCache.createKey(pixelHash, fingerprint);
+    }
+
+    /**
+     * Query whether a component tree can be used instead of thresholding and labelling the image.
+     * This requires a manual threshold without the watershed transform.
+     */
+    private static boolean isComponentTreeSupported(ParameterList params) {
+        boolean doWatershed = params.containsKey("doWatershed") ? params.getBooleanParameterValue("doWatershed") : true;
+        return !doWatershed && Objects.equals(params.getChoiceParameterValue("autoThreshold"), "Manual");
+    }
+
+    /**
+     * Get the component tree for the smoothed image, which can be reused for any manual threshold.
+     * @return the tree, or null if the thread was interrupted
+     */
+    private ComponentTree getComponentTree(ImagePlus imp, ParameterList params, String imageKey, double scale) {
+        imp.killRoi();
+        double sigma = params.getDoubleParameterValue("gaussianSigma") / scale;
+        double noise = params.containsKey("noise") ? params.getDoubleParameterValue("noise") : 0;
+        int seed = params.containsKey("noiseSeed") ? params.getIntParameterValue("noiseSeed") : 0;
+        String blurKey = getBlurKey(imageKey, noise, seed, sigma);
+        if (blurKey == null)
+            return buildComponentTree(imp, null, imageKey, noise, seed, sigma);
+        return (ComponentTree) cache.computeIfAbsent(blurKey + ":tree",
+                k -> buildComponentTree(imp, blurKey, imageKey, noise, seed, sigma));
+    }
+
+    private ComponentTree buildComponentTree(ImagePlus imp, String blurKey, String imageKey, double noise, int seed, double sigma) {
+        var fp = getBlurredImage(blurKey, imageKey, imp, noise, seed, sigma);
+        if (fp == null)
+            return null;
+        try (var timer = metrics.startTimer("Component tree")) {
+            return ComponentTree.build(fp, imp.getProcessor());
+        }
+    }
+
+    /**
+     * Get the key for the image before smoothing, after any noise has been added.
+     */
+    private static String getNoiseKey(String imageKey, double noise, int seed) {
+        if (imageKey == null)
+            return null;
+        return noise > 0 ? imageKey + ":noise=" + noise + ":seed=" + seed : imageKey + ":noise=" + noise;
+    }
+
+    private static String getBlurKey(String imageKey, double noise, int seed, double sigma) {
+        return imageKey == null ? null : getNoiseKey(imageKey, noise, seed) + ":sigma=" + sigma;
+    }
+
+    private static String getBlurKey(String imageKey, ParameterList params, double scale) {
+        double sigma = params.getDoubleParameterValue("gaussianSigma") / scale;
+        double noise = params.containsKey("noise") ? params.getDoubleParameterValue("noise") : 0;
+        int seed = params.containsKey("noiseSeed") ? params.getIntParameterValue("noiseSeed") : 0;
+        return getBlurKey(imageKey, noise, seed, sigma);
+    }
+
+    /**
+     * Create a result for a threshold using a component tree.
+     * Measurements are computed from the tree (in label order, with the same columns as for a {@link Detection}),
+     * and the objects are only extracted from the tree when they are needed.
+     */
+    private static AnalysisResult createResult(ImageData<BufferedImage> imageData, ComponentTree tree,
+                                               int threshold, ImagePlus imp, RegionRequest request, double scale, boolean isPreview) {
+        double[] areas = tree.getAreas(threshold);
+        for (int i = 0; i < areas.length; i++)
+            areas[i] *= scale * scale;
+        var measurements = createMeasurementTable(tree.getMeanIntensities(threshold), tree.getStdDevIntensities(threshold),
+                areas, tree.getMinIntensities(threshold), tree.getMaxIntensities(threshold),
+                tree.getCentroidsX(threshold), tree.getCentroidsY(threshold), request);
+        return new AnalysisResult(imageData, measurements, () -> {
+            var ipLabels = tree.createLabels(threshold);
+            var labelMeasurements = ipLabels == null ? null : LabelMeasurements.measure(ipLabels, imp.getProcessor());
+            var contours = labelMeasurements == null ? null : LabelContourTracer.trace(ipLabels, labelMeasurements.getMaxLabel());
+            if (contours == null)
+                throw new CancellationException("Object creation cancelled");
+            return createColoredObjects(new Detection(ipLabels, labelMeasurements, contours), measurements, request);
+        }, isPreview);
+    }
+
+    /**
+     * Create a result from the persistent cache.
+     * The stored measurements have one row for each stored label, in order, and are used both for the summary values
+     * and for the objects - which are only created from the stored labels when they are needed.
+     */
+    private static AnalysisResult createResult(ImageData<BufferedImage> imageData,
+                                               PersistentResultCache.Entry entry, ImagePlus imp, RegionRequest request) {
+        var measurements = entry.getMeasurements();
+        return new AnalysisResult(imageData, measurements, () -> {
+            var ipLabels = entry.getLabels();
+            var labelMeasurements = LabelMeasurements.measure(ipLabels, imp.getProcessor());
+            var contours = labelMeasurements == null ? null : LabelContourTracer.trace(ipLabels, labelMeasurements.getMaxLabel());
+            if (contours == null)
+                throw new CancellationException("Object creation cancelled");
+            return createColoredObjects(new Detection(ipLabels, labelMeasurements, contours), measurements, request);
+        }, false);
+    }
+
+    /**
+     * Create a result that only creates its objects when they are needed.
+     * Summary values are computed from the measurements, while the contours are retained to create objects later.
+     */
+    private static AnalysisResult createResult(ImageData<BufferedImage> imageData, Detection detection,
+                                               RegionRequest request, double scale, boolean isPreview) {
+        var measurements = detection.createMeasurementTable(scale, request);
+        return new AnalysisResult(imageData, measurements,
+                () -> createColoredObjects(detection, measurements, request), isPreview);
+    }
+
+    /**
+     * Create objects for a lazy result, colored by area.
+     * @throws CancellationException if the thread is interrupted
+     */
+    private static List<PathObject> createColoredObjects(Detection detection, MeasurementTable measurements, RegionRequest request) {
+        var pathObjects = createObjects(detection, measurements, request);
+        if (pathObjects == null)
+            throw new CancellationException("Object creation cancelled");
+        setColorsByArea(pathObjects, measurements);
+        return pathObjects;
+    }
+
+    /**
+     * Create a table with the standard measurement columns and centroids, with one row for each object.
+     * @param centroidsX x-coordinates of the centroids in the analysed image, which are converted to full-resolution
+     *                   image coordinates in place
+     * @param centroidsY y-coordinates of the centroids in the analysed image, which are converted in place
+     * @param request the region request for the analysed image
+     */
+    private static MeasurementTable createMeasurementTable(double[] means, double[] stdDevs, double[] areas, double[] mins, double[] maxs,
+                                                           double[] centroidsX, double[] centroidsY, RegionRequest request) {
+        double downsample = request.getDownsample();
+        for (int i = 0; i < centroidsX.length; i++) {
+            centroidsX[i] = request.getMinX() + centroidsX[i] * downsample;
+            centroidsY[i] = request.getMinY() + centroidsY[i] * downsample;
+        }
+        return MeasurementTable.builder(areas.length)
+                .put(MeasurementTable.MEAN, means)
+                .put(MeasurementTable.STD_DEV, stdDevs)
+                .put(MeasurementTable.AREA, areas)
+                .put(MeasurementTable.MIN, mins)
+                .put(MeasurementTable.MAX, maxs)
+                .put(MeasurementTable.CENTROID_X, centroidsX)
+                .put(MeasurementTable.CENTROID_Y, centroidsY)
+                .build();
+    }
+
+    /**
+     * Set the color of each object according to its area.
+     * @param pathObjects the objects
+     * @param measurements the measurements, with one row for each object in the same order
+     */
+    private static void setColorsByArea(List<PathObject> pathObjects, MeasurementTable measurements) {
+        if (pathObjects.isEmpty() || !measurements.hasColumn(MeasurementTable.AREA))
+            return;
+        double[] areas = measurements.getColumn(MeasurementTable.AREA);
+        double maxArea = 0;
+        for (double area : areas) {
+            if (area > maxArea)
+                maxArea = area;
+        }
+        var cmap = ColorMaps.getDefaultColorMap();
+        for (int i = 0; i < areas.length; i++) {
+            double area = Double.isNaN(areas[i]) ? 0 : areas[i];
+            pathObjects.get(i).setColor(cmap.getColor(area / maxArea, -1.0, 1.0));
+        }
+    }
+
+    /**
+     * Get the request for the region analysed when not using tiles, i.e. the whole image at the lowest resolution.
+     */
+    private static RegionRequest getDefaultRequest(ImageData<BufferedImage> imageData) {
+        var server = imageData.getServer();
+        return RegionRequest.createInstance(server, server.getDownsampleForResolution(server.nResolutions() - 1));
+    }
+
+    /**
+     * Get the (stored) image for the region analysed when not using tiles.
+     * @return the image, or null if it could not be read
+     */
+    private ImagePlus getDefaultImage(ImageData<BufferedImage> imageData, RegionRequest request) {
+        try (var timer = metrics.startTimer("Load image")) {
+            return new ImagePlus(imageData.getServer().getMetadata().getName(), pixelStore.getBytes(imageData, request));
+        } catch (IOException e) {
+            logger.warn("Failed to load image", e);
+            return null;
+        }
+    }
+
+    private static ImagePlus createPreviewImage(ImagePlus imp) {
+        int width = Math.max(1, (int) Math.round(imp.getWidth() / PREVIEW_DOWNSAMPLE));
+        int height = Math.max(1, (int) Math.round(imp.getHeight() / PREVIEW_DOWNSAMPLE));
+        var ip = imp.getProcessor().duplicate();
+        ip.resetRoi();
+        return new ImagePlus(imp.getTitle() + " (preview)", ip.resize(width, height, true));
+    }
+
+
+    /**
+     * Detect and measure objects within a single image region.
+     * @param imp the 8-bit image for the region
+     * @param request the region request, used to convert ROIs to full-resolution image coordinates
+     * @param params the analysis parameters
+     * @param imageKey key used to cache intermediate stages; if null, stages are not cached
+     * @param scale the downsample of the image relative to the image normally analysed; the Gaussian sigma and areas
+     *              are adjusted by this value, so that results are comparable
+     * @return the detected objects, or null if the thread was interrupted
+     */
+    private List<PathObject> detectObjects(ImagePlus imp, RegionRequest request, ParameterList params, String imageKey, double scale) {
+        var detection = detectLabels(imp, params, imageKey, scale);
+        if (detection == null)
+            return null;
+        var pathObjects = createObjects(detection, detection.createMeasurementTable(scale, request), request);
+        if (pathObjects == null || Thread.interrupted())
+            return null;
+        return pathObjects;
+    }
+
+    /**
+     * Detect objects within a single image region, and compute their measurements and contours.
+     * @param imp the 8-bit image for the region
+     * @param params the analysis parameters
+     * @param imageKey key used to cache intermediate stages; if null, stages are not cached
+     * @param scale the downsample of the image relative to the image normally analysed; the Gaussian sigma is
+     *              adjusted by this value, so that results are comparable
+     * @return the detection, or null if the thread was interrupted
+     */
+    private Detection detectLabels(ImagePlus imp, ParameterList params, String imageKey, double scale) {
+        imp.killRoi();
+
+        double sigma = params.getDoubleParameterValue("gaussianSigma") / scale;
         String thresholdMethod = (String) params.getChoiceParameterValue("autoThreshold");
         double threshold = params.getIntParameterValue("threshold");
         boolean doWatershed = params.containsKey("doWatershed") ? params.getBooleanParameterValue("doWatershed") : true;
         double tolerance = params.getIntParameterValue("tolerance");
+        double noise = params.containsKey("noise") ? params.getDoubleParameterValue("noise") : 0;
+        int seed = params.containsKey("noiseSeed") ? params.getIntParameterValue("noiseSeed") : 0;
 
         if (Thread.interrupted())
             return null;
 
-        if (params.containsKey("noise")) {
-            double noise = params.getDoubleParameterValue("noise");
-
-            if (noise > 0) {
-                var noiseProcessor = noiseCache.computeIfAbsent(imp, imp2 -> {
-                    var fpNoise = new FloatProcessor(imp2.getWidth(), imp2.getHeight());
-                    fpNoise.noise(1.0);
-                    return fpNoise;
-                });
-                float[] pixels = (float[]) fp.getPixels();
-                float[] noisePixels = (float[]) noiseProcessor.getPixels();
-                for (int i = 0; i < pixels.length; i++)
-                    pixels[i] += noisePixels[i] * (float) noise;
-            }
+        // Each stage is cached separately, keyed only on the parameters it reads -
+        // so that adjusting a downstream parameter doesn't recompute upstream stages
+        String blurKey = null;
+        String thresholdKey = null;
+        String labelsKey = null;
+        if (imageKey != null) {
+            blurKey = getBlurKey(imageKey, noise, seed, sigma);
+            thresholdKey = blurKey + ":method=" + thresholdMethod;
+            if (Objects.equals(thresholdMethod, "Manual"))
+                thresholdKey += ":threshold=" + threshold;
+            labelsKey = thresholdKey + ":watershed=" + doWatershed;
+            if (doWatershed)
+                labelsKey += ":tolerance=" + tolerance;
         }
 
+        var fp = getBlurredImage(blurKey, imageKey, imp, noise, seed, sigma);
+        if (fp == null)
+            return null;
+
+        threshold = getThreshold(blurKey, fp, thresholdMethod, threshold);
+
         if (Thread.interrupted())
             return null;
 
-//        Connectivity connectivity = (Connectivity) params.getChoiceParameterValue("connectivity");
-        Connectivity connectivity = Connectivity.FOUR_CONNECTED; // Doesn't matter with Maximum Finder involved
-        if (sigma > 0)
-            fp.blurGaussian(sigma);
-//        fp.setThreshold(sigma, 255, ImageProcessor.NO_LUT_UPDATE);
+        ImageProcessor ipLabels = getLabels(labelsKey, thresholdKey, fp, threshold, doWatershed, tolerance);
+        if (ipLabels == null)
+            return null;
 
-        if (!Objects.equals(thresholdMethod, "Manual")) {
-            fp.setAutoThreshold(thresholdMethod, true, ImageProcessor.NO_LUT_UPDATE);
-            threshold = fp.getMinThreshold();
+        // Measure all objects in one pass, reading the original pixels, then trace all their contours in another pass
+        LabelMeasurements measurements;
+        try (var timer = metrics.startTimer("Measure")) {
+            measurements = LabelMeasurements.measure(ipLabels, imp.getProcessor());
+        }
+        if (measurements == null)
+            return null;
+        LabelContourTracer contours;
+        try (var timer = metrics.startTimer("Trace contours")) {
+            contours = LabelContourTracer.trace(ipLabels, measurements.getMaxLabel());
+        }
+        if (contours == null || Thread.interrupted())
+            return null;
+        return new Detection(ipLabels, measurements, contours);
+    }
+
+    /**
+     * Create objects from a detection, in parallel.
+     * @param detection the detected labels
+     * @param measurements the measurements to add, with one row for each label of the detection
+     * @param request the region request, used to convert contours to full-resolution image coordinates
+     * @return the objects, ordered by label, or null if the thread was interrupted
+     */
+    private static List<PathObject> createObjects(Detection detection, MeasurementTable measurements, RegionRequest request) {
+        try (var timer = metrics.startTimer("Create objects")) {
+            return createObjectsInParallel(detection, measurements, request);
+        }
+    }
+
+    private static List<PathObject> createObjectsInParallel(Detection detection, MeasurementTable measurements, RegionRequest request) {
+        var contours = detection.contours;
+        var plane = ImagePlane.getDefaultPlane();
+        int[] labels = detection.getLabels();
+        var names = measurements.getMeasurementNames();
+        var columns = names.stream().map(measurements::getColumn).toArray(double[][]::new);
+        // Objects are created on other threads, which need to check whether this thread has been interrupted
+        var token = CancellationToken.forCurrentThread();
+        var pathObjects = IntStream.range(0, labels.length)
+                .parallel()
+                .mapToObj(i -> {
+                    if (token.isCancelled())
+                        return null;
+                    var roi = contours.createROI(labels[i], request.getMinX(), request.getMinY(), request.getDownsample(), plane);
+                    var pathObject = PathObjects.createAnnotationObject(roi);
+                    try (var ml = pathObject.getMeasurementList()) {
+                        for (int c = 0; c < columns.length; c++)
+                            ml.put(names.get(c), columns[c][i]);
+                    }
+                    return pathObject;
+                })
+                .collect(Collectors.toList());
+        return token.isCancelled() ? null : pathObjects;
+    }
+
+
+    /**
+     * Get the smoothed float image, adding noise first if required.
+     * The returned processor may be shared between analysis runs and must not be modified.
+     * Noise for cached images comes from the shared pool; otherwise, a new field is generated for the seed.
+     * @param key the cache key, or null if the result should not be cached
+     * @return the smoothed image, or null if the thread was interrupted
+     */
+    private FloatProcessor getBlurredImage(String key, String imageKey, ImagePlus imp, double noise, int seed, double sigma) {
+        var fp = (FloatProcessor) getCached(key);
+        if (fp != null)
+            return fp;
+
+        fp = imp.getProcessor().convertToFloatProcessor();
+        if (noise > 0) {
+            try (var timer = metrics.startTimer("Add noise")) {
+                if (key == null)
+                    NoiseFieldPool.addIndependentNoise((float[]) fp.getPixels(), imp.getWidth(), imp.getHeight(), seed, (float) noise);
+                else
+                    noiseFields.addNoise((float[]) fp.getPixels(), imp.getWidth(), imp.getHeight(), seed, (float) noise);
+            }
         }
 
         if (Thread.interrupted())
             return null;
 
-        ByteProcessor bp;
-        if (doWatershed)
-            bp = new MaximumFinder().findMaxima(fp, tolerance, threshold, MaximumFinder.SEGMENTED, false, false);
-        else
-            bp = SimpleThresholding.thresholdAbove(fp, (float) threshold);
+        // If the sigma is being increased, it's usually faster to build on a cached image with a smaller sigma
+        String baseKey = getNoiseKey(imageKey, noise, seed);
+        try (var timer = metrics.startTimer("Gaussian blur")) {
+            var fpIncremental = incrementalBlur ? blurFromSmallerSigma(baseKey, fp, sigma) : null;
+            if (fpIncremental != null) {
+                fp = fpIncremental;
+                // Record this before the image is cached, so that it's seen by anything that uses the cached image
+                if (key != null)
+                    incrementalBlurKeys.add(key);
+            }
+            else if (!blurEngine.blur(fp, sigma))
+                return null;
+        }
 
         if (Thread.interrupted())
             return null;
 
-        ImageProcessor ipLabels = RoiLabeling.labelImage(bp, 0.5f, connectivity == Connectivity.EIGHT_CONNECTED);
+        putBlurred(key, baseKey, sigma, fp);
+        return fp;
+    }
 
-        if (Thread.interrupted())
+    /**
+     * Smooth the cached image with the largest sigma below the requested sigma, if there is one that is large enough
+     * for the result to be accurate.
+     * @param original the image before smoothing
+     * @return the smoothed image, or null if no suitable image is cached or the thread was interrupted
+     */
+    private FloatProcessor blurFromSmallerSigma(String baseKey, FloatProcessor original, double sigma) {
+        var sigmas = baseKey == null ? null : blurredSigmas.get(baseKey);
+        if (sigmas == null)
             return null;
+        Double previous = sigmas.lower(sigma);
+        while (previous != null && previous >= GaussianBlurEngine.MIN_SIGMA_FROM) {
+            var fpPrevious = (FloatProcessor) getCached(baseKey + ":sigma=" + previous);
+            if (fpPrevious != null) {
+                logger.trace("Smoothing from sigma={} to sigma={}", previous, sigma);
+                return blurEngine.blurFrom(original, fpPrevious, previous, sigma);
+            }
+            sigmas.remove(previous);
+            previous = sigmas.lower(previous);
+        }
+        return null;
+    }
 
-        int n = (int) ipLabels.getStatistics().max;
-        List<PathObject> pathObjects = new ArrayList<>();
-        double maxArea = 0;
-        if (n > 0) {
-            Roi[] rois = RoiLabeling.labelsToConnectedROIs(ipLabels, n);
-            if (Thread.interrupted())
-                return null;
+    private void putBlurred(String key, String baseKey, double sigma, FloatProcessor fp) {
+        putCached(key, fp);
+        if (baseKey != null && sigma > 0)
+            blurredSigmas.computeIfAbsent(baseKey, k -> new ConcurrentSkipListSet<>()).add(sigma);
+    }
+
+    /**
+     * Get the threshold to apply, which is either the manual threshold or the one determined by the auto method.
+     * Thresholds for all auto methods are computed together, and cached for the smoothed image.
+     */
+    private double getThreshold(String blurKey, FloatProcessor fp, String thresholdMethod, double threshold) {
+        if (Objects.equals(thresholdMethod, "Manual"))
+            return threshold;
+        return getAutoThresholds(blurKey, fp).getThreshold(thresholdMethod);
+    }
+
+    private AutoThresholds getAutoThresholds(String blurKey, FloatProcessor fp) {
+        String key = blurKey == null ? null : blurKey + ":autoThresholds";
+        var thresholds = (AutoThresholds) getCached(key);
+        if (thresholds == null) {
+            try (var timer = metrics.startTimer("Auto threshold")) {
+                thresholds = AutoThresholds.compute(fp);
+            }
+            putCached(key, thresholds);
+        }
+        return thresholds;
+    }
+
+    /**
+     * Get the labelled image, after thresholding and (optionally) applying the watershed transform.
+     * The watershed merge tree is cached separately, so that it can be reused for all tolerance values.
+     * @param thresholdKey the cache key for the thresholded image, or null if the results should not be cached
+     * @return the labelled image, or null if the thread was interrupted
+     */
+    private ImageProcessor getLabels(String key, String thresholdKey, FloatProcessor fp, double threshold, boolean doWatershed, double tolerance) {
+        var ipLabels = (ImageProcessor) getCached(key);
+        if (ipLabels != null)
+            return ipLabels;
 
-            for (Roi roi : rois) {
-                var pathObject = IJTools.convertToAnnotation(roi,
-                        request.getMinX(), request.getMinY(),
-                        request.getDownsample(), ImagePlane.getDefaultPlane());
-                ipOrig.setRoi(roi);
-                ImageStatistics.getStatistics(ipOrig, Measurements.MEAN + Measurements.AREA + Measurements.MIN_MAX, imp.getCalibration());
-                ImageStatistics stats = ipOrig.getStatistics();
-                try (var ml = pathObject.getMeasurementList()) {
-                    ml.put("Mean", stats.mean);
-                    ml.put("Area", stats.area);
-                    ml.put("Min", stats.min);
-                    ml.put("Max", stats.max);
+        if (doWatershed) {
+            String treeKey = thresholdKey == null ? null : thresholdKey + ":watershedTree";
+            var tree = (HierarchicalWatershed) getCached(treeKey);
+            if (tree == null) {
+                try (var timer = metrics.startTimer("Watershed")) {
+                    tree = HierarchicalWatershed.build(fp, threshold);
                 }
-                maxArea = Math.max(maxArea, stats.area);
-                pathObjects.add(pathObject);
+                if (tree == null)
+                    return null;
+                putCached(treeKey, tree);
             }
-            var cmap = ColorMaps.getDefaultColorMap();
-            for (var pathObject : pathObjects) {
-                Integer color = cmap.getColor(
-                        pathObject.getMeasurementList().getOrDefault("Area", 0.0) / maxArea,
-                        -1.0, 1.0);
-                pathObject.setColor(color);
+            try (var timer = metrics.startTimer("Label")) {
+                ipLabels = tree.createLabels(tolerance);
             }
-
-            if (Thread.interrupted())
+            if (ipLabels == null)
                 return null;
+        } else {
+//            Connectivity connectivity = (Connectivity) params.getChoiceParameterValue("connectivity");
+            Connectivity connectivity = Connectivity.FOUR_CONNECTED;
+            try (var timer = metrics.startTimer("Label")) {
+                ByteProcessor bp = SimpleThresholding.thresholdAbove(fp, (float) threshold);
+                if (Thread.interrupted())
+                    return null;
+                ipLabels = RoiLabeling.labelImage(bp, 0.5f, connectivity == Connectivity.EIGHT_CONNECTED);
+            }
         }
-        var results = new AnalysisResult(imageData, paramsString, pathObjects);
 
-        cachedResults.put(key, results);
-        return results;
+        if (Thread.interrupted())
+            return null;
+
+        putCached(key, ipLabels);
+        return ipLabels;
     }
 
 
-    private static ImagePlus getImagePlus(ImageData<BufferedImage> imageData, RegionRequest request) {
-        try {
-            var server = imageData.getServer();
-            var imp = IJTools.convertToImagePlus(server, request).getImage();
-            if (imp.getType() != ImagePlus.GRAY8) {
-                IJ.run(imp, "8-bit", " ");
+    private Object getCached(String key) {
+        if (key == null)
+            return null;
+        var value = cache.get(key);
+        metrics.increment(value == null ? "Cache misses" : "Cache hits");
+        return value;
+    }
+
+    private void putCached(String key, Object value) {
+        if (key != null)
+            cache.put(key, value);
+    }
+
+    /**
+     * Cache a result, and weigh it again once its objects are created - since they are usually much larger than the
+     * measurements alone.
+     */
+    private void putCachedResult(String key, AnalysisResult result) {
+        if (key == null)
+            return;
+        cache.put(key, result);
+        result.whenObjectsCreated(() -> cache.reweigh(key, result));
+    }
+
+
+    @Override
+    public void imageClosed(ImageData<BufferedImage> imageData) {
+        String prefix = imageData.getServer().getPath() + ":";
+        int n = cache.invalidateAll(key -> key.startsWith(prefix));
+        pixelStore.remove(imageData);
+        blurredSigmas.keySet().removeIf(key -> key.startsWith(prefix));
+        incrementalBlurKeys.removeIf(key -> key.startsWith(prefix));
+        logger.debug("Released {} cached entries for {} ({})", n, imageData, cache);
+    }
+
+
+    /**
+     * Estimate the memory required to cache a value, in bytes.
+     */
+    private static long estimateBytes(Object value) {
+        if (value instanceof ImagePlus)
+            return estimateBytes(((ImagePlus) value).getProcessor());
+        if (value instanceof ImageProcessor) {
+            var ip = (ImageProcessor) value;
+            return (long) ip.getWidth() * ip.getHeight() * Math.max(1, ip.getBitDepth() / 8);
+        }
+        if (value instanceof ComponentTree)
+            return ((ComponentTree) value).estimateBytes();
+        if (value instanceof HierarchicalWatershed)
+            return ((HierarchicalWatershed) value).estimateBytes();
+        if (value instanceof AnalysisResult) {
+            var result = (AnalysisResult) value;
+            long bytes = 256;
+            if (!result.areObjectsCreated()) {
+                // Measurements, plus a rough allowance for the traced contours
+                return bytes + result.getMeasurements().estimateBytes() + result.numObjectsProperty().get() * 256L;
             }
-            return imp;
+            for (var pathObject : result.getObjects()) {
+                // Rough allowance for the object, its measurements and ROI
+                bytes += 512;
+                var roi = pathObject.getROI();
+                if (roi != null)
+                    bytes += roi.getNumPoints() * 16L;
+            }
+            return bytes;
+        }
+        return 16;
+    }
+
+
+    /**
+     * Measurements and contours for all the objects detected in an image region.
+     */
+    private static class Detection {
+
+        private final ImageProcessor labels;
+        private final LabelMeasurements measurements;
+        private final LabelContourTracer contours;
+
+        private Detection(ImageProcessor labels, LabelMeasurements measurements, LabelContourTracer contours) {
+            this.labels = labels;
+            this.measurements = measurements;
+            this.contours = contours;
+        }
+
+        /**
+         * Get the labels that correspond to objects, in ascending order.
+         */
+        private int[] getLabels() {
+            return IntStream.rangeClosed(1, measurements.getMaxLabel())
+                    .filter(label -> measurements.getCount(label) > 0 && contours.hasContour(label))
+                    .toArray();
+        }
+
+        /**
+         * Create a table with the measurements of each object, in the same order as {@link #getLabels()}.
+         * @param scale the downsample of the image relative to the image normally analysed; areas are adjusted by this value
+         * @param request the region request, used to convert centroids to full-resolution image coordinates
+         */
+        private MeasurementTable createMeasurementTable(double scale, RegionRequest request) {
+            int[] labels = getLabels();
+            int n = labels.length;
+            double[] means = new double[n];
+            double[] stdDevs = new double[n];
+            double[] areas = new double[n];
+            double[] mins = new double[n];
+            double[] maxs = new double[n];
+            double[] centroidsX = new double[n];
+            double[] centroidsY = new double[n];
+            for (int i = 0; i < n; i++) {
+                int label = labels[i];
+                means[i] = measurements.getMean(label);
+                stdDevs[i] = measurements.getStdDev(label);
+                areas[i] = measurements.getCount(label) * scale * scale;
+                mins[i] = measurements.getMin(label);
+                maxs[i] = measurements.getMax(label);
+                centroidsX[i] = measurements.getCentroidX(label);
+                centroidsY[i] = measurements.getCentroidY(label);
+            }
+            return ThresholdWatershedRunner.createMeasurementTable(means, stdDevs, areas, mins, maxs, centroidsX, centroidsY, request);
+        }
+
+    }
+
+
+    /**
+     * Read a tile for a tiled analysis.
+     * @throws UncheckedIOException if the tile could not be read, so that the analysis fails rather than skipping it
+     */
+    private static ImagePlus readTile(ImageData<BufferedImage> imageData, RegionRequest request) {
+        try (var timer = metrics.startTimer("Load tile")) {
+            var server = imageData.getServer();
+            return new ImagePlus(server.getMetadata().getName(), PixelStore.readBytes(server, request));
         } catch (IOException e) {
-            logger.warn("Failed to load image", e);
-            return null;
+            throw new UncheckedIOException("Failed to read tile " + request, e);
         }
     }
 
@@ -0,0 +1,407 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.index.quadtree.Quadtree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.GeometryTools;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+
+/**
+ * Helper class to run an object detection across a whole image at a chosen downsample, using overlapping tiles.
+ * <p>
+ * Tiles are processed in parallel, while limiting the number of tiles in flight according to a memory budget.
+ * Afterwards, objects that have been detected in more than one tile are resolved so that each is only counted once:
+ * <ul>
+ *     <li>objects that are complete within a tile are kept by the tile that contains their centroid</li>
+ *     <li>objects that were cut by a tile boundary are merged with the overlapping parts from neighbouring tiles</li>
+ * </ul>
+ * For best results, the overlap should be larger than the objects being detected.
+ */
+public class TiledAnalysis {
+
+    private static final Logger logger = LoggerFactory.getLogger(TiledAnalysis.class);
+
+    /**
+     * Approximate number of bytes required per tile pixel while a tile is being processed
+     * (the image as read, 8-bit and float copies, the binary image and labels).
+     */
+    private static final int BYTES_PER_PIXEL = 24;
+
+    /**
+     * Minimum proportion of the smaller object that must be overlapped for objects from different tiles
+     * to be considered the same.
+     */
+    private static final double MIN_OVERLAP_PROPORTION = 0.1;
+
+    private final double downsample;
+    private final int tileSize;
+    private final int overlap;
+    private final long maxBytesInFlight;
+    private final ForkJoinPool pool;
+
+    /**
+     * Create a tiled analysis that uses the common fork-join pool.
+     * @param downsample the downsample at which tiles should be analysed
+     * @param tileSize the width and height of each tile, in pixels at the requested downsample (excluding overlap)
+     * @param overlap the overlap added to each side of a tile, in pixels at the requested downsample
+     * @param maxBytesInFlight the approximate maximum memory that tiles being processed may use at any one time
+     */
+    public TiledAnalysis(double downsample, int tileSize, int overlap, long maxBytesInFlight) {
+        this(downsample, tileSize, overlap, maxBytesInFlight, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create a tiled analysis that uses a specified pool.
+     * @param downsample the downsample at which tiles should be analysed
+     * @param tileSize the width and height of each tile, in pixels at the requested downsample (excluding overlap)
+     * @param overlap the overlap added to each side of a tile, in pixels at the requested downsample
+     * @param maxBytesInFlight the approximate maximum memory that tiles being processed may use at any one time
+     * @param pool the pool used to process tiles in parallel
+     */
+    public TiledAnalysis(double downsample, int tileSize, int overlap, long maxBytesInFlight, ForkJoinPool pool) {
+        if (downsample <= 0)
+            throw new IllegalArgumentException("Downsample must be > 0");
+        if (tileSize <= 0)
+            throw new IllegalArgumentException("Tile size must be > 0");
+        if (overlap < 0)
+            throw new IllegalArgumentException("Tile overlap must be >= 0");
+        this.downsample = downsample;
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+        this.maxBytesInFlight = maxBytesInFlight;
+        this.pool = pool;
+    }
+
+    /**
+     * Get the downsample at which tiles are analysed.
+     * @return
+     */
+    public double getDownsample() {
+        return downsample;
+    }
+
+    /**
+     * Get the tile size, in pixels at the requested downsample (excluding overlap).
+     * @return
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Get the overlap added to each side of a tile, in pixels at the requested downsample.
+     * @return
+     */
+    public int getOverlap() {
+        return overlap;
+    }
+
+    /**
+     * Function to detect objects within a single tile.
+     */
+    @FunctionalInterface
+    public interface TileFunction {
+
+        /**
+         * Detect objects within a tile.
+         * Tiles are analysed on pool threads, which aren't interrupted if the analysis is cancelled; the function
+         * should check the token instead.
+         * @param request the region to analyse, including the overlap
+         * @param token token that is cancelled if the tile is no longer needed
+         * @return the detected objects with ROIs in full-resolution image coordinates, or null if cancelled
+         * @throws RuntimeException if the tile can't be analysed, e.g. because it can't be read
+         */
+        List<PathObject> detect(RegionRequest request, CancellationToken token);
+
+    }
+
+    /**
+     * Detect objects across a whole image.
+     * @param server the image
+     * @param fun the function used to detect objects in each tile
+     * @return the detected objects, or null if the thread was interrupted
+     * @throws ExecutionException if any tile could not be analysed
+     */
+    public List<PathObject> run(ImageServer<BufferedImage> server, TileFunction fun) throws ExecutionException {
+        var tiles = createTiles(server);
+        long bytesPerTile = (long) Math.pow(tileSize + overlap * 2.0, 2) * BYTES_PER_PIXEL;
+        int maxTilesInFlight = (int) Math.max(1, Math.min(tiles.size(), maxBytesInFlight / bytesPerTile));
+        logger.debug("Analysing {} tiles at downsample {}, with up to {} in flight", tiles.size(), downsample, maxTilesInFlight);
+
+        var permits = new Semaphore(maxTilesInFlight);
+        // Fork-join tasks aren't interrupted when cancelled, so tiles check a token that is cancelled if this thread is
+        // interrupted - or when this method returns, since the interrupted status may have been cleared by then
+        var token = CancellationToken.forCurrentThread().createChild();
+        Map<Tile, Future<List<PathObject>>> futures = new LinkedHashMap<>();
+        try {
+            for (var tile : tiles) {
+                permits.acquire();
+                futures.put(tile, pool.submit(() -> {
+                    try {
+                        if (token.isCancelled())
+                            return null;
+                        return fun.detect(tile.request, token);
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+            Map<Tile, List<PathObject>> results = new LinkedHashMap<>();
+            for (var entry : futures.entrySet()) {
+                var pathObjects = entry.getValue().get();
+                if (pathObjects == null) {
+                    if (token.isCancelled())
+                        return null;
+                    throw new ExecutionException("No objects returned for tile " + entry.getKey().request, null);
+                }
+                results.put(entry.getKey(), pathObjects);
+            }
+            if (Thread.interrupted())
+                return null;
+            return mergeTiles(results);
+        } catch (InterruptedException e) {
+            logger.debug("Tiled analysis interrupted");
+            return null;
+        } finally {
+            token.cancel();
+            for (var future : futures.values())
+                future.cancel(true);
+        }
+    }
+
+    private List<Tile> createTiles(ImageServer<BufferedImage> server) {
+        int width = server.getWidth();
+        int height = server.getHeight();
+        int step = (int) Math.max(1, Math.round(tileSize * downsample));
+        int pad = (int) Math.ceil(overlap * downsample);
+        List<Tile> tiles = new ArrayList<>();
+        for (int y = 0; y < height; y += step) {
+            for (int x = 0; x < width; x += step) {
+                int x2 = Math.min(x + step, width);
+                int y2 = Math.min(y + step, height);
+                int ex = Math.max(0, x - pad);
+                int ey = Math.max(0, y - pad);
+                int ex2 = Math.min(width, x2 + pad);
+                int ey2 = Math.min(height, y2 + pad);
+                var request = RegionRequest.createInstance(server.getPath(), downsample, ex, ey, ex2 - ex, ey2 - ey);
+                tiles.add(new Tile(request, x, y, x2, y2, width, height));
+            }
+        }
+        return tiles;
+    }
+
+    private List<PathObject> mergeTiles(Map<Tile, List<PathObject>> results) {
+        List<PathObject> merged = new ArrayList<>();
+        var keptIndex = new Quadtree();
+        List<Candidate> spares = new ArrayList<>();
+        List<Candidate> fragments = new ArrayList<>();
+
+        // Keep complete objects where the centroid falls within the tile core
+        for (var entry : results.entrySet()) {
+            var tile = entry.getKey();
+            for (var pathObject : entry.getValue()) {
+                var candidate = new Candidate(tile, pathObject);
+                var roi = pathObject.getROI();
+                if (tile.isCut(roi.getBoundsX(), roi.getBoundsY(),
+                        roi.getBoundsX() + roi.getBoundsWidth(), roi.getBoundsY() + roi.getBoundsHeight(), downsample))
+                    fragments.add(candidate);
+                else if (tile.coreContains(roi.getCentroidX(), roi.getCentroidY()))
+                    keep(candidate, merged, keptIndex);
+                else
+                    spares.add(candidate);
+            }
+        }
+
+        // Keep complete objects where the tile containing the centroid only found part of the object
+        for (var candidate : spares) {
+            if (findDuplicate(candidate, keptIndex) == null)
+                keep(candidate, merged, keptIndex);
+        }
+
+        // Discard fragments of objects that have already been found, then merge the rest
+        var fragmentIndex = new Quadtree();
+        List<Candidate> remaining = new ArrayList<>();
+        for (var candidate : fragments) {
+            if (findDuplicate(candidate, keptIndex) == null) {
+                remaining.add(candidate);
+                fragmentIndex.insert(candidate.getEnvelope(), candidate);
+            }
+        }
+        Map<Candidate, Candidate> parents = new HashMap<>();
+        for (var candidate : remaining) {
+            for (var other : query(fragmentIndex, candidate.getEnvelope())) {
+                if (other.tile != candidate.tile && isDuplicate(candidate, other))
+                    union(parents, candidate, other);
+            }
+        }
+        var groups = remaining.stream().collect(Collectors.groupingBy(c -> find(parents, c), LinkedHashMap::new, Collectors.toList()));
+        for (var group : groups.values()) {
+            if (group.size() == 1)
+                merged.add(group.get(0).pathObject);
+            else
+                merged.add(mergeFragments(group));
+        }
+        logger.debug("Merged {} objects from {} tiles ({} fragments)", merged.size(), results.size(), fragments.size());
+        return merged;
+    }
+
+    private static void keep(Candidate candidate, List<PathObject> kept, Quadtree index) {
+        kept.add(candidate.pathObject);
+        index.insert(candidate.getEnvelope(), candidate);
+    }
+
+    private static Candidate findDuplicate(Candidate candidate, Quadtree index) {
+        for (var other : query(index, candidate.getEnvelope())) {
+            if (other.tile != candidate.tile && isDuplicate(candidate, other))
+                return other;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Candidate> query(Quadtree index, Envelope envelope) {
+        return (List<Candidate>) index.query(envelope);
+    }
+
+    private static boolean isDuplicate(Candidate c1, Candidate c2) {
+        if (!c1.getEnvelope().intersects(c2.getEnvelope()))
+            return false;
+        var g1 = c1.getGeometry();
+        var g2 = c2.getGeometry();
+        if (!g1.intersects(g2))
+            return false;
+        double minArea = Math.min(g1.getArea(), g2.getArea());
+        return g1.intersection(g2).getArea() >= minArea * MIN_OVERLAP_PROPORTION;
+    }
+
+    private static Candidate find(Map<Candidate, Candidate> parents, Candidate candidate) {
+        var parent = parents.getOrDefault(candidate, candidate);
+        if (parent == candidate)
+            return candidate;
+        var root = find(parents, parent);
+        parents.put(candidate, root);
+        return root;
+    }
+
+    private static void union(Map<Candidate, Candidate> parents, Candidate c1, Candidate c2) {
+        var r1 = find(parents, c1);
+        var r2 = find(parents, c2);
+        if (r1 != r2)
+            parents.put(r2, r1);
+    }
+
+    /**
+     * Create a single object from fragments detected in different tiles.
+     * Measurements are combined approximately: 'Area' is scaled according to the area of the merged ROI,
+     * 'Min' and 'Max' use the minimum and maximum, and all other measurements use a mean weighted by area.
+     */
+    private static PathObject mergeFragments(List<Candidate> group) {
+        var union = GeometryTools.union(group.stream().map(Candidate::getGeometry).collect(Collectors.toList()));
+        var plane = group.get(0).pathObject.getROI().getImagePlane();
+        var pathObject = PathObjects.createAnnotationObject(GeometryTools.geometryToROI(union, plane));
+
+        double sumGeometryArea = 0;
+        double sumArea = 0;
+        for (var candidate : group) {
+            sumGeometryArea += candidate.getGeometry().getArea();
+            sumArea += candidate.pathObject.getMeasurementList().getOrDefault("Area", candidate.getGeometry().getArea());
+        }
+        Map<String, Double> values = new LinkedHashMap<>();
+        for (var candidate : group) {
+            var ml = candidate.pathObject.getMeasurementList();
+            double area = ml.getOrDefault("Area", candidate.getGeometry().getArea());
+            for (var name : ml.getMeasurementNames()) {
+                double value = ml.get(name);
+                if ("Area".equals(name))
+                    continue;
+                else if ("Min".equals(name))
+                    values.merge(name, value, Math::min);
+                else if ("Max".equals(name))
+                    values.merge(name, value, Math::max);
+                else
+                    values.merge(name, value * area / sumArea, Double::sum);
+            }
+        }
+        try (var ml = pathObject.getMeasurementList()) {
+            ml.put("Area", sumArea * union.getArea() / sumGeometryArea);
+            for (var entry : values.entrySet())
+                ml.put(entry.getKey(), entry.getValue());
+        }
+        return pathObject;
+    }
+
+
+    private static class Tile {
+
+        private final RegionRequest request;
+        private final int x, y, x2, y2;
+        private final int width, height;
+
+        private Tile(RegionRequest request, int x, int y, int x2, int y2, int width, int height) {
+            this.request = request;
+            this.x = x;
+            this.y = y;
+            this.x2 = x2;
+            this.y2 = y2;
+            this.width = width;
+            this.height = height;
+        }
+
+        private boolean coreContains(double cx, double cy) {
+            return cx >= x && cx < x2 && cy >= y && cy < y2;
+        }
+
+        /**
+         * Check if an object with the specified bounds touches a tile boundary that isn't also an image boundary,
+         * in which case it may have been cut off.
+         */
+        private boolean isCut(double minX, double minY, double maxX, double maxY, double tolerance) {
+            return (request.getMinX() > 0 && minX <= request.getMinX() + tolerance) ||
+                    (request.getMinY() > 0 && minY <= request.getMinY() + tolerance) ||
+                    (request.getMaxX() < width && maxX >= request.getMaxX() - tolerance) ||
+                    (request.getMaxY() < height && maxY >= request.getMaxY() - tolerance);
+        }
+
+    }
+
+    private static class Candidate {
+
+        private final Tile tile;
+        private final PathObject pathObject;
+        private Geometry geometry;
+
+        private Candidate(Tile tile, PathObject pathObject) {
+            this.tile = tile;
+            this.pathObject = pathObject;
+        }
+
+        private Geometry getGeometry() {
+            if (geometry == null)
+                geometry = pathObject.getROI().getGeometry();
+            return geometry;
+        }
+
+        private Envelope getEnvelope() {
+            return getGeometry().getEnvelopeInternal();
+        }
+
+    }
+
+}
@@ -0,0 +1,124 @@
+package qupath.ext.demo.parameters.command;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class QuantileSketchTest {
+
+    private static final int K = 200;
+
+    /**
+     * Documented rank error for the sketch, which should hold for 99% of quantile estimates.
+     */
+    private static final double MAX_RANK_ERROR = 2.6 / K;
+
+    private static final double[] QUANTILES = IntStream.range(1, 100).mapToDouble(i -> i / 100.0).toArray();
+
+    private static final int N_VALUES = 200_000;
+
+    @Test
+    public void testRankError() {
+        int nSeeds = 20;
+        int nLarge = 0;
+        for (long seed = 1; seed <= nSeeds; seed++) {
+            var sketch = new QuantileSketch(K, seed);
+            for (int v : shuffledValues(N_VALUES, seed))
+                sketch.add(v);
+            assertEquals(N_VALUES, sketch.getCount());
+            nLarge += countLargeErrors(sketch, N_VALUES, "Seed " + seed);
+        }
+        // Errors for quantiles from the same sketch are correlated, so allow some slack over 1% of estimates
+        assertTrue(nLarge <= nSeeds * QUANTILES.length / 50, nLarge + " estimates with large errors");
+    }
+
+    @Test
+    public void testMergedRankError() {
+        int nSketches = 8;
+        int[] values = shuffledValues(N_VALUES, 10);
+        var merged = new QuantileSketch(K, 10);
+        for (int s = 0; s < nSketches; s++) {
+            var sketch = new QuantileSketch(K, 10 + s);
+            for (int i = s; i < values.length; i += nSketches)
+                sketch.add(values[i]);
+            merged.merge(sketch);
+        }
+        assertEquals(N_VALUES, merged.getCount());
+        int nLarge = countLargeErrors(merged, N_VALUES, "Merged");
+        assertTrue(nLarge <= 1, nLarge + " estimates with large errors");
+    }
+
+    @Test
+    public void testMemoryBounded() {
+        var sketch = new QuantileSketch(K, 1);
+        int maxRetained = 0;
+        for (int v : shuffledValues(N_VALUES, 1)) {
+            sketch.add(v);
+            maxRetained = Math.max(maxRetained, sketch.getRetainedCount());
+        }
+        // About 3k values, plus a few for every level
+        assertTrue(maxRetained <= 3 * K + 8 * 20, "Retained " + maxRetained + " values");
+    }
+
+    @Test
+    public void testExactExtremes() {
+        var sketch = new QuantileSketch(K, 1);
+        assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+        assertTrue(Double.isNaN(sketch.getMin()));
+        var random = new Random(1);
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < 10_000; i++) {
+            double v = random.nextGaussian();
+            sketch.add(v);
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        sketch.add(Double.NaN);
+        assertEquals(10_000, sketch.getCount());
+        assertEquals(min, sketch.getQuantile(0), 0.0);
+        assertEquals(max, sketch.getQuantile(1), 0.0);
+        assertEquals(min, sketch.getMin(), 0.0);
+        assertEquals(max, sketch.getMax(), 0.0);
+        assertThrows(IllegalArgumentException.class, () -> sketch.getQuantile(1.5));
+
+        sketch.reset();
+        assertTrue(sketch.isEmpty());
+        assertEquals(0, sketch.getRetainedCount());
+    }
+
+    /**
+     * Count the quantiles of the values 0 to n-1 with a rank error above the documented error (since the rank of each
+     * value is the value itself), checking that no error is much larger.
+     */
+    private static int countLargeErrors(QuantileSketch sketch, int n, String message) {
+        int count = 0;
+        for (double quantile : QUANTILES) {
+            double rank = sketch.getQuantile(quantile) / n;
+            assertEquals(quantile, rank, 2 * MAX_RANK_ERROR, message + ", quantile " + quantile);
+            if (Math.abs(rank - quantile) > MAX_RANK_ERROR)
+                count++;
+        }
+        return count;
+    }
+
+    private static int[] shuffledValues(int n, long seed) {
+        int[] values = new int[n];
+        for (int i = 0; i < n; i++)
+            values[i] = i;
+        var random = new Random(seed);
+        for (int i = n - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int temp = values[i];
+            values[i] = values[j];
+            values[j] = temp;
+        }
+        return values;
+    }
+
+}
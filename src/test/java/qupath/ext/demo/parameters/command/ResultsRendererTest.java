@@ -0,0 +1,107 @@
+package qupath.ext.demo.parameters.command;
+
+import javafx.collections.FXCollections;
+import javafx.scene.chart.XYChart;
+import org.junit.jupiter.api.Test;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+
+import java.awt.image.BufferedImage;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class ResultsRendererTest {
+
+    private static final Comparator<ImageData<?>> COMPARATOR = Comparator.comparing(ResultsRendererTest::getName);
+
+    private final List<AnalysisResult> items = FXCollections.observableArrayList();
+    private final XYChart.Series<Number, String> series = new XYChart.Series<>();
+    private final ResultsRenderer renderer = new ResultsRenderer(COMPARATOR, ResultsRendererTest::getName, items);
+
+    {
+        renderer.addSeries(series, result -> result.numObjectsProperty().get());
+    }
+
+    @Test
+    public void testRowsSorted() {
+        var imageB = createImageData("B");
+        var imageA = createImageData("A");
+        var imageC = createImageData("C");
+        apply(imageB, createResult(imageB, 2));
+        apply(imageC, createResult(imageC, 3));
+        apply(imageA, createResult(imageA, 1));
+        assertRows("A", "B", "C");
+        assertEquals(List.of(1, 2, 3), getBarValues());
+
+        var resultB = createResult(imageB, 5);
+        apply(imageB, resultB);
+        assertSame(resultB, items.get(1));
+        assertEquals(List.of(1, 5, 3), getBarValues());
+
+        apply(imageB, null);
+        assertRows("A", "C");
+        assertEquals(List.of(1, 3), getBarValues());
+    }
+
+    @Test
+    public void testEqualImagesShareRow() {
+        // For example, the same image opened twice
+        var image = createImageData("Same");
+        var imageCopy = createImageData("Same");
+        var imageOther = createImageData("Other");
+        apply(imageOther, createResult(imageOther, 1));
+        apply(image, createResult(image, 2));
+
+        var resultCopy = createResult(imageCopy, 3);
+        apply(imageCopy, resultCopy);
+        assertRows("Other", "Same");
+        assertSame(resultCopy, items.get(1));
+        assertEquals(List.of(1, 3), getBarValues());
+
+        apply(imageCopy, null);
+        assertRows("Other");
+        assertEquals(List.of(1), getBarValues());
+
+        // The shared row has already gone
+        apply(image, null);
+        assertRows("Other");
+    }
+
+    private void apply(ImageData<?> imageData, AnalysisResult result) {
+        Map<ImageData<?>, AnalysisResult> changes = new LinkedHashMap<>();
+        changes.put(imageData, result);
+        renderer.applyChanges(changes);
+    }
+
+    private void assertRows(String... names) {
+        assertEquals(List.of(names), items.stream().map(r -> r.titleProperty().get()).collect(Collectors.toList()));
+        assertEquals(List.of(names), series.getData().stream().map(XYChart.Data::getYValue).collect(Collectors.toList()));
+    }
+
+    private List<Number> getBarValues() {
+        return series.getData().stream().map(XYChart.Data::getXValue).collect(Collectors.toList());
+    }
+
+    private static ImageData<BufferedImage> createImageData(String name) {
+        return new ImageData<>(new WrappedBufferedImageServer(name, new BufferedImage(8, 8, BufferedImage.TYPE_BYTE_GRAY)));
+    }
+
+    private static AnalysisResult createResult(ImageData<BufferedImage> imageData, int nObjects) {
+        var measurements = MeasurementTable.builder(nObjects)
+                .put(MeasurementTable.AREA, new double[nObjects])
+                .put(MeasurementTable.MEAN, new double[nObjects])
+                .build();
+        return new AnalysisResult(imageData, measurements, null, false);
+    }
+
+    private static String getName(ImageData<?> imageData) {
+        return imageData.getServer().getMetadata().getName();
+    }
+
+}
@@ -0,0 +1,73 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AnalysisCacheTest {
+
+    @Test
+    public void testEvictLeastRecentlyUsed() {
+        var cache = new AnalysisCache<String, AtomicLong>(100, AtomicLong::get);
+        cache.put("a", new AtomicLong(40));
+        cache.put("b", new AtomicLong(40));
+        // Using 'a' makes 'b' the least recently used
+        cache.get("a");
+        cache.put("c", new AtomicLong(40));
+        assertTrue(cache.containsKey("a"));
+        assertFalse(cache.containsKey("b"));
+        assertTrue(cache.containsKey("c"));
+        assertEquals(80, cache.getWeight());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testReweigh() {
+        var cache = new AnalysisCache<String, AtomicLong>(100, AtomicLong::get);
+        var a = new AtomicLong(10);
+        var b = new AtomicLong(10);
+        cache.put("a", a);
+        cache.put("b", b);
+        assertEquals(20, cache.getWeight());
+
+        // The weight isn't updated until the value is reweighed
+        b.set(50);
+        assertEquals(20, cache.getWeight());
+        cache.reweigh("b", b);
+        assertEquals(60, cache.getWeight());
+
+        // Growing beyond the budget evicts the least recently used entries
+        b.set(95);
+        cache.reweigh("b", b);
+        assertFalse(cache.containsKey("a"));
+        assertTrue(cache.containsKey("b"));
+        assertEquals(95, cache.getWeight());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testReweighReplacedOrTooHeavy() {
+        var cache = new AnalysisCache<String, AtomicLong>(100, AtomicLong::get);
+        var a = new AtomicLong(10);
+        var a2 = new AtomicLong(20);
+        cache.put("a", a);
+        cache.put("a", a2);
+        // The old value is no longer cached, so nothing changes
+        a.set(90);
+        cache.reweigh("a", a);
+        assertEquals(20, cache.getWeight());
+        assertEquals(a2, cache.get("a"));
+
+        // A value heavier than the whole budget is removed
+        a2.set(200);
+        cache.reweigh("a", a2);
+        assertFalse(cache.containsKey("a"));
+        assertEquals(0, cache.getWeight());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+}
@@ -0,0 +1,77 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import ij.process.AutoThresholder;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AutoThresholdsTest {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+
+    @Test
+    public void testByteMatchesImageJ() {
+        for (long seed = 1; seed <= 3; seed++)
+            assertMatchesImageJ(TestImages.createNuclei(WIDTH, HEIGHT, seed));
+    }
+
+    @Test
+    public void testFloatMatchesImageJ() {
+        for (long seed = 1; seed <= 3; seed++) {
+            var fp = TestImages.smooth(TestImages.createNuclei(WIDTH, HEIGHT, seed), 1.5);
+            fp.resetMinAndMax();
+            assertMatchesImageJ(fp);
+        }
+    }
+
+    @Test
+    public void testScaledFloatMatchesImageJ() {
+        // Values that aren't in the 8-bit range, including negative values
+        var fp = TestImages.smooth(TestImages.createNuclei(WIDTH, HEIGHT, 4), 2.0);
+        fp.multiply(0.37);
+        fp.add(-20);
+        fp.resetMinAndMax();
+        assertMatchesImageJ(fp);
+    }
+
+    @Test
+    public void testImageUnchanged() {
+        var fp = TestImages.smooth(TestImages.createNuclei(WIDTH, HEIGHT, 5), 1.0);
+        fp.resetMinAndMax();
+        float[] pixels = ((float[]) fp.getPixels()).clone();
+        double min = fp.getMin();
+        double max = fp.getMax();
+        AutoThresholds.compute(fp);
+        assertArrayEquals(pixels, (float[]) fp.getPixels());
+        assertEquals(min, fp.getMin());
+        assertEquals(max, fp.getMax());
+        assertEquals(ImageProcessor.NO_THRESHOLD, fp.getMinThreshold());
+    }
+
+    @Test
+    public void testUnknownMethod() {
+        var thresholds = AutoThresholds.compute(TestImages.createNuclei(WIDTH, HEIGHT, 6));
+        assertTrue(Double.isNaN(thresholds.getThreshold("Unknown")));
+        assertEquals(AutoThresholder.getMethods().length, thresholds.getThresholds().size());
+    }
+
+    /**
+     * Check that the threshold for every method is the same as ImageJ sets with a dark background.
+     */
+    private static void assertMatchesImageJ(ImageProcessor ip) {
+        var thresholds = AutoThresholds.compute(ip);
+        for (var method : AutoThresholder.getMethods()) {
+            var ip2 = ip.duplicate();
+            ip2.setAutoThreshold(method, true, ImageProcessor.NO_LUT_UPDATE);
+            double expected = ip2.getMinThreshold();
+            assertEquals(expected, thresholds.getThreshold(method), Math.abs(expected) * 1e-6,
+                    method + " threshold for " + ip.getClass().getSimpleName());
+        }
+    }
+
+}
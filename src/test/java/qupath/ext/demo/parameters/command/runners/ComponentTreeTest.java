@@ -0,0 +1,77 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import org.junit.jupiter.api.Test;
+import qupath.imagej.processing.RoiLabeling;
+import qupath.imagej.processing.SimpleThresholding;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ComponentTreeTest {
+
+    private static final int[] THRESHOLDS = {0, 9, 10, 25, 40, 64, 100, 128, 180, 254, 255};
+
+    @Test
+    public void testLabelsMatchThresholdAndLabel() {
+        var bp = TestImages.createNuclei(160, 120, 1);
+        var fp = TestImages.smooth(bp, 1.5);
+        var tree = ComponentTree.build(fp, bp);
+        for (int threshold : THRESHOLDS) {
+            var expected = RoiLabeling.labelImage(SimpleThresholding.thresholdAbove(fp, threshold), 0.5f, false);
+            var labels = tree.createLabels(threshold);
+            assertTrue(TestImages.isSamePartition(TestImages.getLabels(expected), TestImages.getLabels(labels)),
+                    "Different objects for threshold " + threshold);
+            int count = LabelMeasurements.measure(expected, bp).getMaxLabel();
+            assertEquals(count, tree.getCount(threshold), "Count for threshold " + threshold);
+        }
+    }
+
+    @Test
+    public void testMeasurementsInLabelOrder() {
+        var bp = TestImages.createNuclei(160, 120, 2);
+        var fp = TestImages.smooth(bp, 1.0);
+        var tree = ComponentTree.build(fp, bp);
+        for (int threshold : THRESHOLDS) {
+            var measurements = LabelMeasurements.measure(tree.createLabels(threshold), bp);
+            double[] areas = tree.getAreas(threshold);
+            double[] means = tree.getMeanIntensities(threshold);
+            double[] stdDevs = tree.getStdDevIntensities(threshold);
+            double[] mins = tree.getMinIntensities(threshold);
+            double[] maxs = tree.getMaxIntensities(threshold);
+            double[] centroidsX = tree.getCentroidsX(threshold);
+            double[] centroidsY = tree.getCentroidsY(threshold);
+            assertEquals(measurements.getMaxLabel(), areas.length);
+            double sumAreas = 0;
+            double sumMeans = 0;
+            for (int i = 0; i < areas.length; i++) {
+                int label = i + 1;
+                String message = "Label " + label + " for threshold " + threshold;
+                assertEquals(measurements.getCount(label), areas[i], 0.0, message);
+                assertEquals(measurements.getMean(label), means[i], 1e-9, message);
+                assertEquals(measurements.getStdDev(label), stdDevs[i], 1e-6, message);
+                assertEquals(measurements.getMin(label), mins[i], 0.0, message);
+                assertEquals(measurements.getMax(label), maxs[i], 0.0, message);
+                assertEquals(measurements.getCentroidX(label), centroidsX[i], 1e-9, message);
+                assertEquals(measurements.getCentroidY(label), centroidsY[i], 1e-9, message);
+                sumAreas += areas[i];
+                sumMeans += means[i];
+            }
+            if (areas.length > 0) {
+                assertEquals(sumAreas / areas.length, tree.getMeanArea(threshold), 1e-9);
+                assertEquals(sumMeans / areas.length, tree.getMeanIntensity(threshold), 1e-9);
+            } else {
+                assertTrue(Double.isNaN(tree.getMeanArea(threshold)));
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidThreshold() {
+        var bp = TestImages.createNuclei(20, 20, 3);
+        var tree = ComponentTree.build(bp, bp);
+        assertThrows(IllegalArgumentException.class, () -> tree.getCount(-1));
+        assertThrows(IllegalArgumentException.class, () -> tree.createLabels(ComponentTree.N_THRESHOLDS));
+    }
+
+}
@@ -0,0 +1,78 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import org.junit.jupiter.api.Test;
+import qupath.ext.demo.parameters.command.AnalysisResult;
+import qupath.ext.demo.parameters.command.MeasurementTable;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CsvBatchOutputTest {
+
+    @Test
+    public void testRowsWrittenFromMeasurements() throws IOException {
+        var dir = Files.createTempDirectory("batch-output");
+        var summaryFile = dir.resolve("summary.csv");
+        var objectsFile = dir.resolve("objects.csv");
+        try {
+            try (var output = BatchOutput.csv(summaryFile, objectsFile)) {
+                output.write("First", createResult(2), 1.5);
+                output.write("Failed", null, 0.5);
+                output.write("Empty", createResult(0), 0.25);
+                output.write("Second", createResult(1), 2.0);
+            }
+            assertEquals(List.of(
+                    "Image,Status,Count,Mean area,Mean intensity,Seconds",
+                    "\"First\",Completed,2,15.0,1.5,1.5",
+                    "\"Failed\",Failed,NaN,NaN,NaN,0.5",
+                    "\"Empty\",Completed,0,NaN,NaN,0.25",
+                    "\"Second\",Completed,1,10.0,1.0,2.0"
+            ), Files.readAllLines(summaryFile, StandardCharsets.UTF_8));
+            // Centroids are written first, and aren't repeated as measurements
+            assertEquals(List.of(
+                    "Image,Centroid X,Centroid Y,\"Mean\",\"Area\"",
+                    "\"First\",0.5,100.5,1.0,10.0",
+                    "\"First\",1.5,101.5,2.0,20.0",
+                    "\"Second\",0.5,100.5,1.0,10.0"
+            ), Files.readAllLines(objectsFile, StandardCharsets.UTF_8));
+        } finally {
+            Files.deleteIfExists(summaryFile);
+            Files.deleteIfExists(objectsFile);
+            Files.delete(dir);
+        }
+    }
+
+    /**
+     * Create a result that fails if its objects are requested, since the output should only need its measurements.
+     */
+    private static AnalysisResult createResult(int nObjects) {
+        double[] means = new double[nObjects];
+        double[] areas = new double[nObjects];
+        double[] xs = new double[nObjects];
+        double[] ys = new double[nObjects];
+        for (int i = 0; i < nObjects; i++) {
+            means[i] = i + 1;
+            areas[i] = (i + 1) * 10;
+            xs[i] = i + 0.5;
+            ys[i] = i + 100.5;
+        }
+        var measurements = MeasurementTable.builder(nObjects)
+                .put(MeasurementTable.CENTROID_X, xs)
+                .put(MeasurementTable.MEAN, means)
+                .put(MeasurementTable.AREA, areas)
+                .put(MeasurementTable.CENTROID_Y, ys)
+                .build();
+        var imageData = new ImageData<>(new WrappedBufferedImageServer("batch", new BufferedImage(8, 8, BufferedImage.TYPE_BYTE_GRAY)));
+        return new AnalysisResult(imageData, measurements, () -> {
+            throw new AssertionError("Objects should not be created");
+        }, false);
+    }
+
+}
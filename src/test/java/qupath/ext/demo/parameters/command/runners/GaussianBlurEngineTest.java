@@ -0,0 +1,119 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import ij.process.FloatProcessor;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GaussianBlurEngineTest {
+
+    private static final int WIDTH = 256;
+    private static final int HEIGHT = 200;
+
+    /**
+     * Tolerances from the class javadoc, as a fraction of the input image range.
+     */
+    private static final double TOLERANCE_SMALL_SIGMA = 1e-5;
+    private static final double TOLERANCE_LARGE_SIGMA = 0.005;
+    private static final double TOLERANCE_INCREMENTAL = 2e-4;
+
+    private final GaussianBlurEngine engine = new GaussianBlurEngine();
+
+    @Test
+    public void testBlurMatchesImageJ() {
+        var original = createImage();
+        for (double sigma : new double[] {0.5, 1.0, 1.7, 2.0, 3.5, 4.5}) {
+            var fp = (FloatProcessor) original.duplicate();
+            assertTrue(engine.blur(fp, sigma));
+            assertWithinTolerance(blurImageJ(original, sigma), fp, TOLERANCE_SMALL_SIGMA, "sigma " + sigma);
+        }
+    }
+
+    @Test
+    public void testLargeSigmaBlurMatchesImageJ() {
+        var original = createImage();
+        for (double sigma : new double[] {5.0, 8.0, 12.0}) {
+            var fp = (FloatProcessor) original.duplicate();
+            assertTrue(engine.blur(fp, sigma));
+            assertWithinTolerance(blurImageJ(original, sigma), fp, TOLERANCE_LARGE_SIGMA, "sigma " + sigma);
+        }
+    }
+
+    @Test
+    public void testIncrementalBlurMatchesImageJ() {
+        var original = createImage();
+        double[][] sigmas = {{2.0, 2.1}, {2.0, 3.0}, {3.0, 4.5}, {2.5, 8.0}};
+        for (var pair : sigmas) {
+            double sigmaFrom = pair[0];
+            double sigmaTo = pair[1];
+            var blurred = (FloatProcessor) original.duplicate();
+            assertTrue(engine.blur(blurred, sigmaFrom));
+            var fp = engine.blurFrom(original, blurred, sigmaFrom, sigmaTo);
+            assertNotNull(fp);
+            double tolerance = (sigmaTo <= 4.5 ? TOLERANCE_SMALL_SIGMA : TOLERANCE_LARGE_SIGMA) + TOLERANCE_INCREMENTAL;
+            assertWithinTolerance(blurImageJ(original, sigmaTo), fp, tolerance, "sigma " + sigmaFrom + " to " + sigmaTo);
+        }
+    }
+
+    @Test
+    public void testIncrementalBlurSmallImage() {
+        // Small enough that every pixel is recomputed from the original
+        var original = createImage(40, 30, 2);
+        var blurred = (FloatProcessor) original.duplicate();
+        assertTrue(engine.blur(blurred, 2.0));
+        var fp = engine.blurFrom(original, blurred, 2.0, 4.0);
+        assertWithinTolerance(blurImageJ(original, 4.0), fp, TOLERANCE_SMALL_SIGMA, "small image");
+    }
+
+    @Test
+    public void testCannotReduceSigma() {
+        var original = createImage();
+        assertThrows(IllegalArgumentException.class, () -> engine.blurFrom(original, original, 2.0, 1.0));
+    }
+
+    private static FloatProcessor blurImageJ(FloatProcessor fp, double sigma) {
+        var fp2 = (FloatProcessor) fp.duplicate();
+        fp2.blurGaussian(sigma);
+        return fp2;
+    }
+
+    private static void assertWithinTolerance(FloatProcessor expected, FloatProcessor actual, double tolerance, String message) {
+        float[] expectedPixels = (float[]) expected.getPixels();
+        float[] actualPixels = (float[]) actual.getPixels();
+        double maxDiff = 0;
+        for (int i = 0; i < expectedPixels.length; i++)
+            maxDiff = Math.max(maxDiff, Math.abs(expectedPixels[i] - actualPixels[i]));
+        assertTrue(maxDiff <= tolerance * 255,
+                message + ": max difference " + maxDiff + " exceeds " + (tolerance * 255));
+    }
+
+    private static FloatProcessor createImage() {
+        return createImage(WIDTH, HEIGHT, 1);
+    }
+
+    /**
+     * Create an image in the range 0-255 containing a gradient, bright spots and noise, so that edges, smooth
+     * regions and high frequencies are all tested.
+     */
+    private static FloatProcessor createImage(int width, int height, long seed) {
+        var random = new Random(seed);
+        float[] pixels = new float[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double v = 40.0 * x / width + 20.0 * y / height;
+                double dx = (x % 32) - 16;
+                double dy = (y % 32) - 16;
+                if (dx * dx + dy * dy < 64)
+                    v += 120;
+                v += random.nextDouble() * 75;
+                pixels[y * width + x] = (float) v;
+            }
+        }
+        return new FloatProcessor(width, height, pixels);
+    }
+
+}
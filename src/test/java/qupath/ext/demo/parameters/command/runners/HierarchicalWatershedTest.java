@@ -0,0 +1,193 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import ij.process.FloatProcessor;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HierarchicalWatershedTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    private static final double[] TOLERANCES = {0, 1, 5, 20, 50, 100, 250, 500, 1000, 5000};
+
+    @Test
+    public void testCountsMatchBruteForce() {
+        for (long seed = 1; seed <= 3; seed++) {
+            var fp = createRankImage(seed);
+            double threshold = WIDTH * HEIGHT * 0.4;
+            var watershed = HierarchicalWatershed.build(fp, threshold);
+            double[] dynamics = computeDynamics(fp, threshold);
+            for (double tolerance : TOLERANCES) {
+                long expected = Arrays.stream(dynamics).filter(d -> d > tolerance).count();
+                assertEquals(expected, watershed.getCount(tolerance), "Count for seed " + seed + ", tolerance " + tolerance);
+            }
+        }
+    }
+
+    @Test
+    public void testLabelsMatchBruteForce() {
+        var fp = createRankImage(4);
+        double threshold = WIDTH * HEIGHT * 0.3;
+        var watershed = HierarchicalWatershed.build(fp, threshold);
+        int[] maxima = findMaxima(fp, threshold);
+        double[] dynamics = computeDynamics(fp, threshold);
+        for (double tolerance : TOLERANCES) {
+            String message = "Tolerance " + tolerance;
+            int[] labels = TestImages.getLabels(watershed.createLabels(tolerance));
+            // Every pixel above the threshold is labelled
+            for (int i = 0; i < labels.length; i++)
+                assertEquals(fp.getf(i) > threshold, labels[i] > 0, message);
+            // Every label is connected, and contains exactly one of the maxima that should be retained
+            int maxLabel = Arrays.stream(labels).max().orElse(0);
+            assertEquals(watershed.getCount(tolerance), maxLabel, message);
+            Map<Integer, Integer> maximaPerLabel = new HashMap<>();
+            for (int m = 0; m < maxima.length; m++) {
+                if (dynamics[m] > tolerance)
+                    maximaPerLabel.merge(labels[maxima[m]], 1, Integer::sum);
+            }
+            assertEquals(maxLabel, maximaPerLabel.size(), message);
+            for (int label = 1; label <= maxLabel; label++) {
+                assertEquals(1, (int) maximaPerLabel.getOrDefault(label, 0), message + ", label " + label);
+                assertTrue(isConnected(labels, label), message + ", label " + label);
+            }
+        }
+    }
+
+    /**
+     * Create a smoothed image of nuclei in which every pixel has a different value, by replacing values with their
+     * rank (breaking ties at random).
+     * This doesn't change the regional maxima or how they are connected, but means that the brute force method doesn't
+     * need to handle plateaus or equal peaks.
+     */
+    private static FloatProcessor createRankImage(long seed) {
+        var fp = TestImages.smooth(TestImages.createNuclei(WIDTH, HEIGHT, seed), 1.5);
+        int n = WIDTH * HEIGHT;
+        var random = new Random(seed);
+        double[] tieBreaks = random.doubles(n).toArray();
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        Arrays.sort(order, Comparator.comparingDouble((Integer i) -> fp.getf(i)).thenComparingDouble(i -> tieBreaks[i]));
+        float[] ranks = new float[n];
+        for (int r = 0; r < n; r++)
+            ranks[order[r]] = r;
+        return new FloatProcessor(WIDTH, HEIGHT, ranks);
+    }
+
+    /**
+     * Find the regional maxima above a threshold, assuming that all pixel values differ.
+     */
+    private static int[] findMaxima(FloatProcessor fp, double threshold) {
+        List<Integer> maxima = new ArrayList<>();
+        for (int p = 0; p < WIDTH * HEIGHT; p++) {
+            float v = fp.getf(p);
+            if (v <= threshold)
+                continue;
+            boolean isMax = true;
+            for (int q : getNeighbors(p)) {
+                if (fp.getf(q) > v)
+                    isMax = false;
+            }
+            if (isMax)
+                maxima.add(p);
+        }
+        return maxima.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Compute the dynamics of each regional maximum, in the order returned by {@link #findMaxima(FloatProcessor, double)}.
+     * <p>
+     * This floods from each maximum separately, always visiting the highest pixel next, until it reaches a pixel
+     * higher than the maximum. The lowest pixel visited on the way is the highest 'pass' to a higher maximum.
+     * The highest maximum never reaches one, so has infinite dynamics.
+     */
+    private static double[] computeDynamics(FloatProcessor fp, double threshold) {
+        int[] maxima = findMaxima(fp, threshold);
+        double[] dynamics = new double[maxima.length];
+        for (int m = 0; m < maxima.length; m++) {
+            float peak = fp.getf(maxima[m]);
+            boolean[] visited = new boolean[WIDTH * HEIGHT];
+            var queue = new PriorityQueue<Integer>(Comparator.comparingDouble((Integer p) -> fp.getf(p)).reversed());
+            queue.add(maxima[m]);
+            visited[maxima[m]] = true;
+            float pass = peak;
+            dynamics[m] = Double.POSITIVE_INFINITY;
+            while (!queue.isEmpty()) {
+                int p = queue.poll();
+                float v = fp.getf(p);
+                if (v > peak) {
+                    dynamics[m] = peak - pass;
+                    break;
+                }
+                pass = Math.min(pass, v);
+                for (int q : getNeighbors(p)) {
+                    if (!visited[q] && fp.getf(q) > threshold) {
+                        visited[q] = true;
+                        queue.add(q);
+                    }
+                }
+            }
+        }
+        return dynamics;
+    }
+
+    private static boolean isConnected(int[] labels, int label) {
+        int start = -1;
+        int count = 0;
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i] == label) {
+                if (start < 0)
+                    start = i;
+                count++;
+            }
+        }
+        if (start < 0)
+            return false;
+        boolean[] visited = new boolean[labels.length];
+        var queue = new ArrayDeque<Integer>();
+        queue.add(start);
+        visited[start] = true;
+        int nVisited = 0;
+        while (!queue.isEmpty()) {
+            int p = queue.poll();
+            nVisited++;
+            for (int q : getNeighbors(p)) {
+                if (!visited[q] && labels[q] == label) {
+                    visited[q] = true;
+                    queue.add(q);
+                }
+            }
+        }
+        return nVisited == count;
+    }
+
+    private static int[] getNeighbors(int p) {
+        int x = p % WIDTH;
+        int y = p / WIDTH;
+        int[] neighbors = new int[4];
+        int n = 0;
+        if (x > 0)
+            neighbors[n++] = p - 1;
+        if (x < WIDTH - 1)
+            neighbors[n++] = p + 1;
+        if (y > 0)
+            neighbors[n++] = p - WIDTH;
+        if (y < HEIGHT - 1)
+            neighbors[n++] = p + WIDTH;
+        return Arrays.copyOf(neighbors, n);
+    }
+
+}
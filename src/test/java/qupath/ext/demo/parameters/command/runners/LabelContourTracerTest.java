@@ -0,0 +1,189 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.junit.jupiter.api.Test;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.interfaces.ROI;
+
+import java.awt.geom.Path2D;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LabelContourTracerTest {
+
+    @Test
+    public void testPolygonsMatchComponents() {
+        var bp = TestImages.createNuclei(160, 120, 1);
+        var fp = TestImages.smooth(bp, 1.5);
+        var tree = ComponentTree.build(fp, bp);
+        for (int threshold : new int[] {20, 40, 100}) {
+            var labels = tree.createLabels(threshold);
+            assertPolygonsMatchLabels(labels, tree.getCount(threshold));
+        }
+    }
+
+    @Test
+    public void testPolygonsMatchTouchingLabels() {
+        // Watershed regions share boundaries with their neighbours
+        var bp = TestImages.createNuclei(160, 120, 2);
+        var fp = TestImages.smooth(bp, 1.5);
+        var watershed = HierarchicalWatershed.build(fp, 30);
+        for (double tolerance : new double[] {0, 5, 20}) {
+            var labels = watershed.createLabels(tolerance);
+            assertPolygonsMatchLabels(labels, watershed.getCount(tolerance));
+        }
+    }
+
+    @Test
+    public void testHolesAndDiagonals() {
+        var labels = createLabels(new String[] {
+                "........",
+                ".1111...",
+                ".1..1.2.",
+                ".1111.22",
+                "......2.",
+                ".33.4...",
+                "..3.....",
+                "..3.....",
+        });
+        var tracer = LabelContourTracer.trace(labels, 4);
+        // The hole in label 1 is filled
+        assertArrayEquals(new double[] {1, 1, 5, 1, 5, 4, 1, 4}, getVertices(tracer, 1));
+        // Label 3 touches label 4 only diagonally, and has a concave corner
+        assertArrayEquals(new double[] {1, 5, 3, 5, 3, 8, 2, 8, 2, 6, 1, 6}, getVertices(tracer, 3));
+        assertArrayEquals(new double[] {4, 5, 5, 5, 5, 6, 4, 6}, getVertices(tracer, 4));
+        assertPolygonsMatchLabels(labels, 4);
+    }
+
+    @Test
+    public void testOriginAndDownsample() {
+        var labels = createLabels(new String[] {
+                "....",
+                ".11.",
+                ".11.",
+                "....",
+        });
+        var tracer = LabelContourTracer.trace(labels, 1);
+        var roi = tracer.createROI(1, 100, 50, 2.0, ImagePlane.getDefaultPlane());
+        assertEquals(102, roi.getBoundsX(), 1e-6);
+        assertEquals(52, roi.getBoundsY(), 1e-6);
+        assertEquals(4, roi.getBoundsWidth(), 1e-6);
+        assertEquals(4, roi.getBoundsHeight(), 1e-6);
+    }
+
+    @Test
+    public void testMissingLabels() {
+        var labels = createLabels(new String[] {
+                "1..",
+                "..3",
+        });
+        // Labels above the maximum are ignored
+        var tracer = LabelContourTracer.trace(labels, 2);
+        assertEquals(2, tracer.getMaxLabel());
+        assertTrue(tracer.hasContour(1));
+        assertFalse(tracer.hasContour(0));
+        assertFalse(tracer.hasContour(2));
+        assertFalse(tracer.hasContour(3));
+        assertNull(tracer.createROI(2, 0, 0, 1, ImagePlane.getDefaultPlane()));
+    }
+
+    /**
+     * Check that the polygon for every label contains the centres of exactly the pixels of the label, after filling
+     * its holes.
+     */
+    private static void assertPolygonsMatchLabels(ImageProcessor labels, int maxLabel) {
+        var tracer = LabelContourTracer.trace(labels, maxLabel);
+        int[] pixels = TestImages.getLabels(labels);
+        int width = labels.getWidth();
+        int height = labels.getHeight();
+        for (int label = 1; label <= maxLabel; label++) {
+            assertTrue(tracer.hasContour(label), "No contour for label " + label);
+            var path = toPath(tracer.createROI(label, 0, 0, 1, ImagePlane.getDefaultPlane()));
+            boolean[] expected = fillHoles(pixels, width, height, label);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    assertEquals(expected[y * width + x], path.contains(x + 0.5, y + 0.5),
+                            "Label " + label + " at (" + x + ", " + y + ")");
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the pixels of a label, plus any pixels that can't be reached from outside the image without crossing it.
+     * The outside is 8-connected, since diagonal pixels of the label aren't connected.
+     */
+    private static boolean[] fillHoles(int[] pixels, int width, int height, int label) {
+        // Pad the image by one pixel, so that the outside is connected
+        int w = width + 2;
+        int h = height + 2;
+        boolean[] outside = new boolean[w * h];
+        var queue = new ArrayDeque<Integer>();
+        outside[0] = true;
+        queue.add(0);
+        while (!queue.isEmpty()) {
+            int p = queue.poll();
+            int x = p % w;
+            int y = p / w;
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    int xx = x + dx;
+                    int yy = y + dy;
+                    if (xx < 0 || yy < 0 || xx >= w || yy >= h || outside[yy * w + xx])
+                        continue;
+                    boolean inImage = xx > 0 && yy > 0 && xx <= width && yy <= height;
+                    if (inImage && pixels[(yy - 1) * width + xx - 1] == label)
+                        continue;
+                    outside[yy * w + xx] = true;
+                    queue.add(yy * w + xx);
+                }
+            }
+        }
+        boolean[] filled = new boolean[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++)
+                filled[y * width + x] = !outside[(y + 1) * w + x + 1];
+        }
+        return filled;
+    }
+
+    private static Path2D toPath(ROI roi) {
+        var path = new Path2D.Double();
+        var points = roi.getAllPoints();
+        path.moveTo(points.get(0).getX(), points.get(0).getY());
+        for (var p : points.subList(1, points.size()))
+            path.lineTo(p.getX(), p.getY());
+        path.closePath();
+        return path;
+    }
+
+    private static double[] getVertices(LabelContourTracer tracer, int label) {
+        var points = tracer.createROI(label, 0, 0, 1, ImagePlane.getDefaultPlane()).getAllPoints();
+        return points.stream().flatMapToDouble(p -> Arrays.stream(new double[] {p.getX(), p.getY()})).toArray();
+    }
+
+    /**
+     * Create a labelled image from rows of characters, using '.' for background and digits for labels.
+     */
+    private static ShortProcessor createLabels(String[] rows) {
+        int width = rows[0].length();
+        int height = rows.length;
+        short[] pixels = new short[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                char c = rows[y].charAt(x);
+                if (c != '.')
+                    pixels[y * width + x] = (short) (c - '0');
+            }
+        }
+        return new ShortProcessor(width, height, pixels, null);
+    }
+
+}
@@ -0,0 +1,117 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class NoiseFieldPoolTest {
+
+    private static final int WIDTH = 97;
+    private static final int HEIGHT = 61;
+
+    @Test
+    public void testReproducible() {
+        var pool = new NoiseFieldPool(1L << 20);
+        var pool2 = new NoiseFieldPool(1L << 20);
+        for (int seed : new int[] {0, 1, 5, -3, Integer.MAX_VALUE}) {
+            assertArrayEquals(addNoise(pool, seed, 2), addNoise(pool, seed, 2));
+            // A different pool (e.g. in another session) should give the same noise
+            assertArrayEquals(addNoise(pool, seed, 2), addNoise(pool2, seed, 2));
+        }
+        // Noise scales linearly, and is added to the existing pixels
+        float[] noise1 = addNoise(pool, 7, 1);
+        float[] noise3 = addNoise(pool, 7, 3);
+        for (int i = 0; i < noise1.length; i++)
+            assertEquals(noise1[i] * 3, noise3[i], 1e-4);
+        float[] pixels = new float[WIDTH * HEIGHT];
+        Arrays.fill(pixels, 10f);
+        pool.addNoise(pixels, WIDTH, HEIGHT, 7, 1f);
+        for (int i = 0; i < noise1.length; i++)
+            assertEquals(10f + noise1[i], pixels[i], 1e-5);
+    }
+
+    @Test
+    public void testSeedsDiffer() {
+        var pool = new NoiseFieldPool(1L << 20);
+        int nSeeds = 20;
+        float[][] fields = new float[nSeeds][];
+        for (int s = 0; s < nSeeds; s++)
+            fields[s] = addNoise(pool, s, 1);
+        for (int s = 0; s < nSeeds; s++) {
+            for (int t = s + 1; t < nSeeds; t++) {
+                // Realisations should be (almost) uncorrelated, even if they share a base field
+                assertFalse(Arrays.equals(fields[s], fields[t]));
+                assertEquals(0, correlation(fields[s], fields[t]), 0.1);
+            }
+        }
+    }
+
+    @Test
+    public void testIndependentNoise() {
+        int nSeeds = 8;
+        float[][] fields = new float[nSeeds][];
+        for (int s = 0; s < nSeeds; s++) {
+            fields[s] = new float[WIDTH * HEIGHT];
+            NoiseFieldPool.addIndependentNoise(fields[s], WIDTH, HEIGHT, s, 2f);
+            float[] repeat = new float[WIDTH * HEIGHT];
+            NoiseFieldPool.addIndependentNoise(repeat, WIDTH, HEIGHT, s, 2f);
+            assertArrayEquals(fields[s], repeat);
+        }
+        // Unlike the pool, these don't share any base fields - so no field is a rearrangement of another
+        for (int s = 0; s < nSeeds; s++) {
+            float[] sorted = fields[s].clone();
+            Arrays.sort(sorted);
+            for (int t = s + 1; t < nSeeds; t++) {
+                float[] sortedOther = fields[t].clone();
+                Arrays.sort(sortedOther);
+                assertFalse(Arrays.equals(sorted, sortedOther));
+                assertEquals(0, correlation(fields[s], fields[t]), 0.1);
+            }
+        }
+    }
+
+    @Test
+    public void testDistribution() {
+        var pool = new NoiseFieldPool(1L << 20);
+        for (int seed = 0; seed < 8; seed++) {
+            float[] noise = addNoise(pool, seed, 1);
+            double sum = 0;
+            double sumSquared = 0;
+            for (float v : noise) {
+                sum += v;
+                sumSquared += v * v;
+            }
+            double mean = sum / noise.length;
+            double variance = sumSquared / noise.length - mean * mean;
+            assertEquals(0, mean, 0.05);
+            assertEquals(1, variance, 0.05);
+        }
+    }
+
+    private static float[] addNoise(NoiseFieldPool pool, int seed, float scale) {
+        float[] pixels = new float[WIDTH * HEIGHT];
+        pool.addNoise(pixels, WIDTH, HEIGHT, seed, scale);
+        return pixels;
+    }
+
+    private static double correlation(float[] a, float[] b) {
+        double sumA = 0, sumB = 0, sumAB = 0, sumA2 = 0, sumB2 = 0;
+        int n = a.length;
+        for (int i = 0; i < n; i++) {
+            sumA += a[i];
+            sumB += b[i];
+            sumAB += a[i] * b[i];
+            sumA2 += a[i] * a[i];
+            sumB2 += b[i] * b[i];
+        }
+        double cov = sumAB / n - sumA / n * sumB / n;
+        double varA = sumA2 / n - sumA / n * sumA / n;
+        double varB = sumB2 / n - sumB / n * sumB / n;
+        return cov / Math.sqrt(varA * varB);
+    }
+
+}
@@ -0,0 +1,146 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import org.junit.jupiter.api.Test;
+import qupath.ext.demo.parameters.command.AnalysisResult;
+import qupath.ext.demo.parameters.command.MeasurementTable;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.plugins.parameters.ParameterList;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class NoiseRobustnessAnalysisTest {
+
+    private static final int N_REALISATIONS = 50;
+
+    /**
+     * Seeds for which the runner fails, which shouldn't contribute to the statistics.
+     */
+    private static final int FAILED_SEED = 13;
+
+    private final List<ImageData<BufferedImage>> images = List.of(createImageData("First"), createImageData("Second"));
+
+    @Test
+    public void testStatistics() throws InterruptedException, ExecutionException {
+        var results = createAnalysis(4).run(images);
+        assertEquals(2, results.nImages());
+        assertEquals(N_REALISATIONS, results.nRealisations());
+        for (int i = 0; i < results.nImages(); i++) {
+            for (var measurement : NoiseRobustnessResults.Measurement.values()) {
+                // Compare with a two-pass computation
+                double sum = 0;
+                int n = 0;
+                for (int r = 0; r < N_REALISATIONS; r++) {
+                    double v = results.getValue(i, r, measurement);
+                    double expected = getExpectedValue(i, results.getSeed(r), measurement);
+                    assertEquals(expected, v, Math.abs(expected) * 1e-12);
+                    if (!Double.isNaN(v)) {
+                        sum += v;
+                        n++;
+                    }
+                }
+                double mean = sum / n;
+                double sumSquares = 0;
+                for (int r = 0; r < N_REALISATIONS; r++) {
+                    double v = results.getValue(i, r, measurement);
+                    if (!Double.isNaN(v))
+                        sumSquares += (v - mean) * (v - mean);
+                }
+                double variance = sumSquares / (n - 1);
+                String message = results.getImageName(i) + ", " + measurement;
+                assertEquals(N_REALISATIONS - 1, results.getN(i, measurement), message);
+                assertEquals(mean, results.getMean(i, measurement), Math.abs(mean) * 1e-12, message);
+                assertEquals(variance, results.getVariance(i, measurement), variance * 1e-6, message);
+            }
+        }
+    }
+
+    @Test
+    public void testReproducible() throws InterruptedException, ExecutionException, IOException {
+        // Realisations complete in a different order with different numbers of threads
+        var csv1 = new StringBuilder();
+        createAnalysis(1).run(images).writeCsv(csv1);
+        var csv4 = new StringBuilder();
+        createAnalysis(4).run(images).writeCsv(csv4);
+        assertEquals(csv1.toString(), csv4.toString());
+    }
+
+    @Test
+    public void testSeeds() {
+        var analysis = createAnalysis(1).seed(10);
+        for (int r = 0; r < N_REALISATIONS; r++) {
+            assertEquals(10 + r, analysis.getSeed(r));
+            assertEquals(10 + r, analysis.createParameters(r).getIntParameterValue("noiseSeed"));
+        }
+        assertThrows(ArithmeticException.class, () -> createAnalysis(1).seed(Integer.MAX_VALUE).getSeed(1));
+    }
+
+    private static NoiseRobustnessAnalysis createAnalysis(int nThreads) {
+        var params = new ParameterList()
+                .addDoubleParameter("noise", "Noise", 0, "", "Noise sigma")
+                .addIntParameter("noiseSeed", "Noise seed", 0, "", "Noise seed");
+        return new NoiseRobustnessAnalysis(NoiseRobustnessAnalysisTest::runAnalysis, params)
+                .noise(2.0)
+                .seed(-5)
+                .realisations(N_REALISATIONS)
+                .threads(nThreads);
+    }
+
+    /**
+     * Create a result with one object for each unit of the expected count, so that the summary values are the
+     * expected values.
+     */
+    private static AnalysisResult runAnalysis(ImageData<BufferedImage> imageData, ParameterList params) {
+        assertEquals(2.0, params.getDoubleParameterValue("noise"));
+        int seed = params.getIntParameterValue("noiseSeed");
+        if (seed == FAILED_SEED)
+            return null;
+        int imageIndex = imageData.getServer().getMetadata().getName().equals("First") ? 0 : 1;
+        int count = (int) getExpectedValue(imageIndex, seed, NoiseRobustnessResults.Measurement.COUNT);
+        double[] areas = new double[count];
+        double[] means = new double[count];
+        Arrays.fill(areas, getExpectedValue(imageIndex, seed, NoiseRobustnessResults.Measurement.MEAN_AREA));
+        Arrays.fill(means, getExpectedValue(imageIndex, seed, NoiseRobustnessResults.Measurement.MEAN_INTENSITY));
+        var measurements = MeasurementTable.builder(count)
+                .put(MeasurementTable.AREA, areas)
+                .put(MeasurementTable.MEAN, means)
+                .build();
+        return new AnalysisResult(imageData, measurements, null, false);
+    }
+
+    /**
+     * Get a value that depends only upon the image and seed.
+     * Areas are large, with a small variance, to check that the variance is computed without cancellation.
+     */
+    private static double getExpectedValue(int imageIndex, int seed, NoiseRobustnessResults.Measurement measurement) {
+        if (seed == FAILED_SEED)
+            return Double.NaN;
+        var random = new Random(seed * 31L + imageIndex);
+        int count = 1 + random.nextInt(20);
+        double area = 1e6 + random.nextDouble();
+        double intensity = 100 + random.nextGaussian() * 10;
+        switch (measurement) {
+            case COUNT:
+                return count;
+            case MEAN_AREA:
+                return area;
+            case MEAN_INTENSITY:
+                return intensity;
+            default:
+                throw new IllegalArgumentException("Unknown measurement " + measurement);
+        }
+    }
+
+    private static ImageData<BufferedImage> createImageData(String name) {
+        return new ImageData<>(new WrappedBufferedImageServer(name, new BufferedImage(8, 8, BufferedImage.TYPE_BYTE_GRAY)));
+    }
+
+}
@@ -0,0 +1,204 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import qupath.ext.demo.parameters.command.MeasurementTable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PersistentResultCacheTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        var labels = createLabels();
+        var table = createTable();
+        String key = PersistentResultCache.createKey(PersistentResultCache.hashPixels(labels), "threshold=10;");
+
+        // Closing waits for the background write, and results should be available in a later session
+        try (var cache = PersistentResultCache.open(directory, PersistentResultCache.DEFAULT_MAX_BYTES)) {
+            assertFalse(cache.contains(key));
+            assertNull(cache.get(key));
+            cache.put(key, table, () -> labels);
+        }
+        try (var cache = PersistentResultCache.open(directory, PersistentResultCache.DEFAULT_MAX_BYTES)) {
+            assertTrue(cache.contains(key));
+            var entry = cache.get(key);
+            assertNotNull(entry);
+            assertTableEquals(table, entry.getMeasurements());
+            var labels2 = entry.getLabels();
+            assertTrue(labels2 instanceof ShortProcessor);
+            assertArrayEquals((short[]) labels.getPixels(), (short[]) labels2.getPixels());
+            assertEquals(cache.getSizeBytes(), Files.size(listFiles().get(0)));
+        }
+    }
+
+    @Test
+    public void testRoundTripFloatLabels() throws IOException {
+        float[] pixels = new float[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = 65536 + i;
+        var labels = new FloatProcessor(WIDTH, HEIGHT, pixels);
+        var table = createTable();
+        String key = PersistentResultCache.createKey(PersistentResultCache.hashPixels(labels), "");
+        try (var cache = PersistentResultCache.open(directory, PersistentResultCache.DEFAULT_MAX_BYTES)) {
+            cache.put(key, table, () -> labels);
+        }
+        try (var cache = PersistentResultCache.open(directory, PersistentResultCache.DEFAULT_MAX_BYTES)) {
+            var entry = cache.get(key);
+            assertNotNull(entry);
+            assertTableEquals(table, entry.getMeasurements());
+            assertArrayEquals(pixels, (float[]) entry.getLabels().getPixels());
+        }
+    }
+
+    @Test
+    public void testKeys() {
+        var labels = createLabels();
+        String hash = PersistentResultCache.hashPixels(labels);
+        assertEquals(hash, PersistentResultCache.hashPixels(labels.duplicate()));
+        assertEquals(PersistentResultCache.createKey(hash, "a=1;"), PersistentResultCache.createKey(hash, "a=1;"));
+        assertNotEquals(PersistentResultCache.createKey(hash, "a=1;"), PersistentResultCache.createKey(hash, "a=2;"));
+
+        var labels2 = createLabels();
+        labels2.setf(0, 100);
+        assertNotEquals(hash, PersistentResultCache.hashPixels(labels2));
+    }
+
+    @Test
+    public void testNothingStoredWithoutLabels() throws IOException {
+        try (var cache = PersistentResultCache.open(directory, PersistentResultCache.DEFAULT_MAX_BYTES)) {
+            cache.put("key", createTable(), () -> null);
+        }
+        assertTrue(listFiles().isEmpty());
+    }
+
+    @Test
+    public void testCorruptFileIgnored() throws IOException {
+        try (var cache = PersistentResultCache.open(directory, PersistentResultCache.DEFAULT_MAX_BYTES)) {
+            cache.put("key", createTable(), this::createLabels);
+        }
+        var path = listFiles().get(0);
+        byte[] bytes = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(bytes, bytes.length - 10));
+        try (var cache = PersistentResultCache.open(directory, PersistentResultCache.DEFAULT_MAX_BYTES)) {
+            assertNull(cache.get("key"));
+        }
+    }
+
+    @Test
+    public void testOverflowingSizeIgnored() throws IOException {
+        try (var cache = PersistentResultCache.open(directory, PersistentResultCache.DEFAULT_MAX_BYTES)) {
+            cache.put("key", createTable(), this::createLabels);
+        }
+        // Replace the labels with a size for which the number of bytes overflows to 0 as an int
+        var path = listFiles().get(0);
+        byte[] bytes = Files.readAllBytes(path);
+        int headerEnd = bytes.length - WIDTH * HEIGHT * 2;
+        var buffer = ByteBuffer.wrap(Arrays.copyOf(bytes, headerEnd));
+        buffer.putInt(headerEnd - 9, 65536);
+        buffer.putInt(headerEnd - 5, 32768);
+        Files.write(path, buffer.array());
+        try (var cache = PersistentResultCache.open(directory, PersistentResultCache.DEFAULT_MAX_BYTES)) {
+            assertNull(cache.get("key"));
+        }
+    }
+
+    @Test
+    public void testIncompleteFilesDeleted() throws IOException {
+        Files.write(directory.resolve("partial.tmp"), new byte[100]);
+        try (var cache = PersistentResultCache.open(directory, PersistentResultCache.DEFAULT_MAX_BYTES)) {
+            assertTrue(listFiles().isEmpty());
+            assertEquals(0, cache.getSizeBytes());
+        }
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws IOException {
+        var table = createTable();
+        // Each entry is a little larger than the labels, so the limit allows two but not three
+        long maxBytes = WIDTH * HEIGHT * 2 * 5 / 2;
+        long now = System.currentTimeMillis();
+        write("a", table, maxBytes);
+        setLastModified("a", now - 7200_000);
+        write("b", table, maxBytes);
+        setLastModified("b", now - 3600_000);
+        try (var cache = PersistentResultCache.open(directory, maxBytes)) {
+            // Reading 'a' makes 'b' the least recently used
+            assertNotNull(cache.get("a"));
+            cache.put("c", table, this::createLabels);
+        }
+        try (var cache = PersistentResultCache.open(directory, maxBytes)) {
+            assertTrue(cache.contains("a"));
+            assertFalse(cache.contains("b"));
+            assertTrue(cache.contains("c"));
+            assertTrue(cache.getSizeBytes() <= maxBytes);
+        }
+    }
+
+    private void write(String key, MeasurementTable table, long maxBytes) throws IOException {
+        try (var cache = PersistentResultCache.open(directory, maxBytes)) {
+            cache.put(key, table, this::createLabels);
+        }
+    }
+
+    private void setLastModified(String key, long millis) throws IOException {
+        var path = listFiles().stream()
+                .filter(p -> p.getFileName().toString().startsWith(key + "."))
+                .findFirst()
+                .orElseThrow();
+        Files.setLastModifiedTime(path, FileTime.fromMillis(millis));
+    }
+
+    private List<Path> listFiles() throws IOException {
+        try (Stream<Path> stream = Files.list(directory)) {
+            return stream.collect(Collectors.toList());
+        }
+    }
+
+    private ShortProcessor createLabels() {
+        short[] pixels = new short[WIDTH * HEIGHT];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = (short) ((i / 10) % 3);
+        return new ShortProcessor(WIDTH, HEIGHT, pixels, null);
+    }
+
+    private static MeasurementTable createTable() {
+        return MeasurementTable.builder(2)
+                .put(MeasurementTable.MEAN, new double[] {12.5, 200})
+                .put(MeasurementTable.AREA, new double[] {100, 3.25})
+                .put(MeasurementTable.MAX, new double[] {Double.NaN, 255})
+                .build();
+    }
+
+    private static void assertTableEquals(MeasurementTable expected, MeasurementTable actual) {
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected.getColumnNames(), actual.getColumnNames());
+        for (var name : expected.getColumnNames())
+            assertArrayEquals(expected.getColumn(name), actual.getColumn(name));
+    }
+
+}
@@ -0,0 +1,107 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import org.junit.jupiter.api.Test;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.regions.RegionRequest;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PixelStoreTest {
+
+    private static final int WIDTH = 100;
+    private static final int HEIGHT = 80;
+    private static final long PLANE_BYTES = WIDTH * HEIGHT;
+
+    @Test
+    public void testSpilledPlanesRoundTrip() throws IOException {
+        var store = new PixelStore(PLANE_BYTES);
+        try {
+            List<ImageData<BufferedImage>> images = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                var imageData = createImageData(i);
+                images.add(imageData);
+                store.getBytes(imageData, createRequest(imageData));
+                assertTrue(store.getHeapBytes() <= PLANE_BYTES);
+            }
+            assertEquals(3 * PLANE_BYTES, store.getSpilledBytes());
+            // Pixels read back from the file should match those read from the image
+            for (var imageData : images) {
+                var request = createRequest(imageData);
+                var expected = PixelStore.readBytes(imageData.getServer(), request);
+                assertArrayEquals((byte[]) expected.getPixels(), (byte[]) store.getBytes(imageData, request).getPixels());
+                assertTrue(store.getHeapBytes() <= PLANE_BYTES);
+            }
+            // Every plane has now been written, so moving them off the heap doesn't need any more space
+            assertEquals(4 * PLANE_BYTES, store.getSpilledBytes());
+        } finally {
+            store.clear();
+        }
+        assertEquals(0, store.getSpilledBytes());
+        assertEquals(0, store.getHeapBytes());
+    }
+
+    @Test
+    public void testFreedSpaceReused() throws IOException {
+        var store = new PixelStore(PLANE_BYTES);
+        try {
+            List<ImageData<BufferedImage>> images = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                var imageData = createImageData(i);
+                images.add(imageData);
+                store.getBytes(imageData, createRequest(imageData));
+            }
+            long spilledBytes = store.getSpilledBytes();
+            assertEquals(5 * PLANE_BYTES, spilledBytes);
+
+            // Remove planes from the start and middle of the file, then add new images that should fill the gaps
+            store.remove(images.get(0));
+            store.remove(images.get(2));
+            store.remove(images.get(3));
+            for (int i = 6; i < 9; i++) {
+                var imageData = createImageData(i);
+                images.add(imageData);
+                store.getBytes(imageData, createRequest(imageData));
+            }
+            assertEquals(spilledBytes, store.getSpilledBytes());
+
+            // Removing the last plane in the file makes its space available again too
+            store.remove(images.get(4));
+            store.remove(images.get(5));
+            store.remove(images.get(6));
+            store.remove(images.get(7));
+            assertTrue(store.getSpilledBytes() < spilledBytes);
+
+            for (int i : new int[] {1, 8}) {
+                var imageData = images.get(i);
+                var request = createRequest(imageData);
+                var expected = PixelStore.readBytes(imageData.getServer(), request);
+                assertArrayEquals((byte[]) expected.getPixels(), (byte[]) store.getBytes(imageData, request).getPixels());
+            }
+        } finally {
+            store.clear();
+        }
+    }
+
+    private static ImageData<BufferedImage> createImageData(int seed) {
+        var img = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_GRAY);
+        var raster = img.getRaster();
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++)
+                raster.setSample(x, y, 0, (x * 7 + y * 13 + seed * 31) % 256);
+        }
+        return new ImageData<>(new WrappedBufferedImageServer("pixel-store-" + seed, img));
+    }
+
+    private static RegionRequest createRequest(ImageData<BufferedImage> imageData) {
+        return RegionRequest.createInstance(imageData.getServer(), 1.0);
+    }
+
+}
@@ -0,0 +1,107 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Small synthetic 8-bit images of nuclei for tests, generated from a seed so that every run uses the same pixels.
+ * <p>
+ * Nuclei are bright blobs that often touch or overlap, on a dark background with noise - so thresholds give many
+ * objects of different sizes, with holes and merged neighbours.
+ */
+final class TestImages {
+
+    private TestImages() {
+        throw new AssertionError("Cannot instantiate this class");
+    }
+
+    /**
+     * Create an image of nuclei.
+     * @param width
+     * @param height
+     * @param seed
+     * @return
+     */
+    static ByteProcessor createNuclei(int width, int height, long seed) {
+        var random = new Random(seed);
+        double[] values = new double[width * height];
+        int nNuclei = Math.max(1, width * height / 400);
+        for (int n = 0; n < nNuclei; n++) {
+            double cx = random.nextDouble() * width;
+            double cy = random.nextDouble() * height;
+            double radius = 3 + random.nextDouble() * 6;
+            double peak = 80 + random.nextDouble() * 150;
+            int r = (int) Math.ceil(radius * 2);
+            for (int y = Math.max(0, (int) cy - r); y < Math.min(height, (int) cy + r); y++) {
+                for (int x = Math.max(0, (int) cx - r); x < Math.min(width, (int) cx + r); x++) {
+                    double d2 = ((x - cx) * (x - cx) + (y - cy) * (y - cy)) / (radius * radius);
+                    values[y * width + x] += peak * Math.exp(-d2 * d2);
+                }
+            }
+        }
+        byte[] pixels = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            double v = 10 + values[i] + random.nextGaussian() * 8;
+            pixels[i] = (byte) Math.max(0, Math.min(255, Math.round(v)));
+        }
+        return new ByteProcessor(width, height, pixels);
+    }
+
+    /**
+     * Convert an image to float and smooth it, as before thresholding.
+     * @param bp
+     * @param sigma
+     * @return
+     */
+    static FloatProcessor smooth(ByteProcessor bp, double sigma) {
+        int n = bp.getWidth() * bp.getHeight();
+        float[] pixels = new float[n];
+        for (int i = 0; i < n; i++)
+            pixels[i] = bp.getf(i);
+        var fp = new FloatProcessor(bp.getWidth(), bp.getHeight(), pixels);
+        new GaussianBlurEngine().blur(fp, sigma);
+        return fp;
+    }
+
+    /**
+     * Get the label at every pixel.
+     * @param ip
+     * @return
+     */
+    static int[] getLabels(ImageProcessor ip) {
+        int[] labels = new int[ip.getWidth() * ip.getHeight()];
+        for (int i = 0; i < labels.length; i++)
+            labels[i] = (int) ip.getf(i);
+        return labels;
+    }
+
+    /**
+     * Query whether two labelled images contain the same objects, allowing for a different order of labels.
+     * @param labels1
+     * @param labels2
+     * @return
+     */
+    static boolean isSamePartition(int[] labels1, int[] labels2) {
+        if (labels1.length != labels2.length)
+            return false;
+        Map<Integer, Integer> map12 = new HashMap<>();
+        Map<Integer, Integer> map21 = new HashMap<>();
+        for (int i = 0; i < labels1.length; i++) {
+            int l1 = labels1[i];
+            int l2 = labels2[i];
+            if ((l1 == 0) != (l2 == 0))
+                return false;
+            if (l1 == 0)
+                continue;
+            if (map12.computeIfAbsent(l1, k -> l2) != l2 || map21.computeIfAbsent(l2, k -> l1) != l1)
+                return false;
+        }
+        return true;
+    }
+
+}
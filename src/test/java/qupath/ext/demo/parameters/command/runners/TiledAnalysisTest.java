@@ -0,0 +1,176 @@
+package qupath.ext.demo.parameters.command.runners;
+
+import org.junit.jupiter.api.Test;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.regions.RegionRequest;
+import qupath.lib.roi.ROIs;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TiledAnalysisTest {
+
+    private static final int WIDTH = 1000;
+    private static final int HEIGHT = 800;
+
+    private static final int TILE_SIZE = 256;
+    private static final int OVERLAP = 32;
+
+    @Test
+    public void testObjectsCountedOnce() throws ExecutionException {
+        // Small squares, many of which cross the boundaries between tile cores at multiples of the tile size
+        List<Rectangle> objects = new ArrayList<>();
+        for (int y = 10; y + 20 < HEIGHT; y += 50) {
+            for (int x = 10; x + 20 < WIDTH; x += 50)
+                objects.add(new Rectangle(x, y, 20, 20));
+        }
+        var pathObjects = runTiled(objects);
+        assertEquals(objects.size(), pathObjects.size());
+        assertSameObjects(objects, pathObjects);
+    }
+
+    @Test
+    public void testCutObjectsMerged() throws ExecutionException {
+        // Objects larger than the overlap, which are cut by one or more tile boundaries
+        List<Rectangle> objects = List.of(
+                new Rectangle(200, 40, 100, 10),
+                new Rectangle(40, 200, 10, 100),
+                new Rectangle(220, 220, 80, 80),
+                new Rectangle(100, 600, 700, 12),
+                new Rectangle(600, 100, 15, 15)
+        );
+        var pathObjects = runTiled(objects);
+        assertEquals(objects.size(), pathObjects.size());
+        assertSameObjects(objects, pathObjects);
+    }
+
+    @Test
+    public void testTileFailureReported() {
+        var tiling = new TiledAnalysis(1.0, TILE_SIZE, OVERLAP, Long.MAX_VALUE);
+        var server = createServer();
+        var e = assertThrows(ExecutionException.class, () -> tiling.run(server, (request, token) -> {
+            if (request.getMinX() > 0 && request.getMinY() > 0)
+                throw new UncheckedIOException(new IOException("Unable to read " + request));
+            return new ArrayList<>();
+        }));
+        assertTrue(e.getCause() instanceof UncheckedIOException);
+
+        // A tile that returns no result, without being cancelled, is also a failure rather than a cancellation
+        assertThrows(ExecutionException.class, () -> tiling.run(server, (request, token) -> null));
+    }
+
+    @Test
+    public void testRunningTilesCancelled() throws InterruptedException {
+        var pool = new ForkJoinPool(2);
+        try {
+            var tiling = new TiledAnalysis(1.0, TILE_SIZE, OVERLAP, Long.MAX_VALUE, pool);
+            var server = createServer();
+            var started = new CountDownLatch(2);
+            var nCancelled = new AtomicInteger();
+            var result = new AtomicReference<Object>("Not run");
+            // Tiles only finish when they see that they have been cancelled, although their thread isn't interrupted
+            var thread = new Thread(() -> {
+                try {
+                    result.set(tiling.run(server, (request, token) -> {
+                        started.countDown();
+                        long timeout = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                        while (!token.isCancelled() && System.nanoTime() < timeout)
+                            Thread.onSpinWait();
+                        if (token.isCancelled())
+                            nCancelled.incrementAndGet();
+                        return token.isCancelled() ? null : new ArrayList<>();
+                    }));
+                } catch (ExecutionException e) {
+                    result.set(e);
+                }
+            });
+            thread.start();
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            thread.interrupt();
+            thread.join(10_000);
+            assertFalse(thread.isAlive());
+            assertNull(result.get());
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(2, nCancelled.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Run a tiled analysis that 'detects' the parts of rectangles within each tile.
+     */
+    private static List<PathObject> runTiled(List<Rectangle> objects) throws ExecutionException {
+        var tiling = new TiledAnalysis(1.0, TILE_SIZE, OVERLAP, Long.MAX_VALUE);
+        return tiling.run(createServer(), (request, token) -> detect(objects, request));
+    }
+
+    private static List<PathObject> detect(List<Rectangle> objects, RegionRequest request) {
+        var bounds = new Rectangle(request.getMinX(), request.getMinY(), request.getWidth(), request.getHeight());
+        List<PathObject> pathObjects = new ArrayList<>();
+        for (var rect : objects) {
+            var part = rect.intersection(bounds);
+            if (part.isEmpty())
+                continue;
+            var pathObject = PathObjects.createAnnotationObject(
+                    ROIs.createRectangleROI(part.x, part.y, part.width, part.height, ImagePlane.getDefaultPlane()));
+            try (var ml = pathObject.getMeasurementList()) {
+                ml.put("Area", part.width * part.height);
+                ml.put("Mean", 100);
+                ml.put("Max", part.x + part.width);
+            }
+            pathObjects.add(pathObject);
+        }
+        return pathObjects;
+    }
+
+    /**
+     * Check that the objects match the rectangles, regardless of order.
+     */
+    private static void assertSameObjects(List<Rectangle> expected, List<PathObject> pathObjects) {
+        var sortedExpected = new ArrayList<>(expected);
+        sortedExpected.sort(Comparator.comparingInt((Rectangle r) -> r.y).thenComparingInt(r -> r.x));
+        var sorted = new ArrayList<>(pathObjects);
+        sorted.sort(Comparator.comparingDouble((PathObject p) -> p.getROI().getBoundsY()).thenComparingDouble(p -> p.getROI().getBoundsX()));
+        for (int i = 0; i < sorted.size(); i++) {
+            var rect = sortedExpected.get(i);
+            var roi = sorted.get(i).getROI();
+            var ml = sorted.get(i).getMeasurementList();
+            assertEquals(rect.x, roi.getBoundsX(), 1e-6);
+            assertEquals(rect.y, roi.getBoundsY(), 1e-6);
+            assertEquals(rect.width, roi.getBoundsWidth(), 1e-6);
+            assertEquals(rect.height, roi.getBoundsHeight(), 1e-6);
+            assertEquals(rect.width * rect.height, ml.get("Area"), 1e-6);
+            assertEquals(100, ml.get("Mean"), 1e-6);
+            // The maximum of merged fragments should be retained
+            assertEquals(rect.x + rect.width, ml.get("Max"), 1e-6);
+        }
+    }
+
+    private static ImageServer<BufferedImage> createServer() {
+        return new WrappedBufferedImageServer("tiled-test", new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_GRAY));
+    }
+
+}